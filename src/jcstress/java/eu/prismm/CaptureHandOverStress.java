@@ -0,0 +1,90 @@
+package eu.prismm;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.I_Result;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.openjdk.jcstress.annotations.Expect.ACCEPTABLE;
+import static org.openjdk.jcstress.annotations.Expect.FORBIDDEN;
+
+/**
+ * Captures from two threads into one directory, the way ExceptionLogger files captures of
+ * sources that fall back to the shared error directory.
+ *
+ * The capture writers of a directory aren't thread-safe; it is only safe because every write
+ * to a directory runs on the writer thread of the shard that owns it, with writes from other
+ * shards handed over to that one. Each capture here appends to a plain list, standing in for
+ * the directory's capture file, and records the writer thread, so a write from the wrong
+ * thread or a lost write shows up in the outcome. The directory itself isn't written: creating
+ * one per state would measure the file system rather than the hand-over.
+ */
+@JCStressTest
+@Outcome(id = "2", expect = ACCEPTABLE, desc = "Both captures were written by the thread owning the directory")
+@Outcome(id = "-1", expect = FORBIDDEN, desc = "A capture was written by another writer thread")
+@Outcome(expect = FORBIDDEN, desc = "A capture was lost")
+@State
+public class CaptureHandOverStress {
+    private static final String DIRECTORY = "Console Errors";
+    // With two shards, alpha shares the shard of the directory and gamma has to hand over
+    private static final String[] SOURCES = {"alpha", "gamma"};
+    private static final ExceptionWriterPool POOL = new ExceptionWriterPool(2);
+
+    // Not thread-safe on purpose, like the capture writers
+    private final List<String> writers = new ArrayList<>();
+    private final CountDownLatch written = new CountDownLatch(SOURCES.length);
+
+    @Actor
+    public void first() {
+        capture(SOURCES[0]);
+    }
+
+    @Actor
+    public void second() {
+        capture(SOURCES[1]);
+    }
+
+    @Arbiter
+    public void check(I_Result result) {
+        // The latch orders the appends of the writer thread before the reads below
+        if (!awaitWritten()) {
+            result.r1 = SOURCES.length - (int) written.getCount();
+            return;
+        }
+        result.r1 = writers.stream().distinct().count() == 1 ? writers.size() : -1;
+    }
+
+    private boolean awaitWritten() {
+        try {
+            return written.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * The same routing ExceptionLogger.submitWrite uses for a source without its own directory
+     */
+    private void capture(String source) {
+        POOL.submit(source, shard -> {
+            if (shard.owns(DIRECTORY)) {
+                write();
+            } else {
+                POOL.handOver(DIRECTORY, target -> write());
+            }
+        });
+    }
+
+    private void write() {
+        writers.add(Thread.currentThread().getName());
+        written.countDown();
+    }
+}
@@ -0,0 +1,69 @@
+package eu.prismm;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.LLL_Result;
+
+import java.util.List;
+
+import static org.openjdk.jcstress.annotations.Expect.ACCEPTABLE;
+import static org.openjdk.jcstress.annotations.Expect.FORBIDDEN;
+
+/**
+ * Swaps the rules of SpamFilter and PreEnqueueFilter while another thread filters.
+ *
+ * Both rule sets deny the same events but number their patterns the other way around, so a
+ * verdict and a rule description taken from different sets name the wrong pattern. Whichever
+ * set the filtering thread sees, the outcome has to be the same.
+ */
+@JCStressTest
+@Outcome(id = "DENY, ^alpha .*, DENY", expect = ACCEPTABLE, desc = "Every verdict came from one complete rule set")
+@Outcome(expect = FORBIDDEN, desc = "A verdict or its rule description mixed the two rule sets")
+@State
+public class RuleSwapStress {
+    private static final FilterRules FORWARD = FilterRules.fromSources(List.of("^alpha .*", "^beta .*"), List.of("ignored"));
+    private static final FilterRules REVERSED = FilterRules.fromSources(List.of("^beta .*", "^alpha .*"), List.of("ignored"));
+    private static final LogEvent SPAM = event("stress", "alpha 1");
+    private static final LogEvent IGNORED = event("ignored", "gamma 1");
+
+    // Written and read by the filtering actor only, through the observer it calls
+    private String observedRule;
+    private final SpamFilter filter = new SpamFilter(FORWARD, null, null, List.of(new FilterObserver() {
+        @Override
+        public void observe(LogEvent event, boolean suppressed) {
+        }
+
+        @Override
+        public void observe(LogEvent event, boolean suppressed, String rule) {
+            observedRule = rule;
+        }
+    }));
+    private final PreEnqueueFilter preEnqueue = new PreEnqueueFilter(FORWARD);
+
+    @Actor
+    public void reload() {
+        filter.setRules(REVERSED);
+        preEnqueue.setRules(REVERSED);
+    }
+
+    @Actor
+    public void filter(LLL_Result result) {
+        result.r1 = filter.filter(SPAM);
+        result.r2 = observedRule;
+        result.r3 = preEnqueue.filter(IGNORED);
+    }
+
+    private static LogEvent event(String loggerName, String message) {
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName(loggerName)
+                .setLevel(Level.INFO)
+                .setMessage(new SimpleMessage(message))
+                .build();
+    }
+}
@@ -0,0 +1,516 @@
+package eu.prismm;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.ToIntBiFunction;
+
+/**
+ * A concurrent cache bounded by the estimated bytes of its entries, with W-TinyLFU eviction.
+ *
+ * New entries enter a small LRU window. Entries leaving the window only get into the main
+ * space if a frequency sketch says they are used more often than the entry they would replace,
+ * so a flood of one-off keys, such as logger names or messages with player names and
+ * coordinates in them, can't push out the entries that are hit all the time. The main space is
+ * a segmented LRU: entries hit again move from probation to a protected segment.
+ *
+ * Hits only read the map and record the access in a small lossy per-thread-stripe buffer;
+ * the policy is updated in batches by whichever thread holds the lock. Caches are created
+ * through CacheBudget, which sizes them from the global budget.
+ */
+public final class BoundedCache<K, V> {
+    // Rough cost of an entry besides its key and value: the map node, the policy node and the boxing
+    public static final int ENTRY_OVERHEAD = 96;
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+    // Both powers of two
+    private static final int READ_BUFFER_STRIPES = 4;
+    private static final int READ_BUFFER_SIZE = 32;
+
+    private static final int NEW = -1;
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+    private static final int REMOVED = 3;
+
+    private final String name;
+    private final int sharePercent;
+    private final ToIntBiFunction<? super K, ? super V> weigher;
+    private final ConcurrentHashMap<K, Node<K, V>> map = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ReadBuffer<K, V>[] readBuffers;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private volatile long maxBytes;
+    private volatile long evictions;
+    private volatile long estimatedBytes;
+
+    // Guarded by lock
+    private final AccessOrder<K, V> window = new AccessOrder<>();
+    private final AccessOrder<K, V> probation = new AccessOrder<>();
+    private final AccessOrder<K, V> protectedOrder = new AccessOrder<>();
+    private final FrequencySketch sketch = new FrequencySketch();
+    private long windowBytes;
+    private long probationBytes;
+    private long protectedBytes;
+    private long maxWindowBytes;
+    private long maxProtectedBytes;
+
+    /**
+     * @param name The name the cache is reported under
+     * @param sharePercent The percentage of the global budget this cache may use
+     * @param weigher Estimates the bytes of a key and value, not counting ENTRY_OVERHEAD
+     * @param maxBytes The initial size limit
+     */
+    @SuppressWarnings("unchecked")
+    BoundedCache(String name, int sharePercent, ToIntBiFunction<? super K, ? super V> weigher, long maxBytes) {
+        this.name = name;
+        this.sharePercent = sharePercent;
+        this.weigher = weigher;
+        this.readBuffers = (ReadBuffer<K, V>[]) new ReadBuffer<?, ?>[READ_BUFFER_STRIPES];
+        for (int i = 0; i < readBuffers.length; i++) {
+            readBuffers[i] = new ReadBuffer<>();
+        }
+        setMaxBytes(maxBytes);
+    }
+
+    /**
+     * @param key The key
+     * @return The cached value, or null
+     */
+    public V get(K key) {
+        Node<K, V> node = map.get(key);
+        if (node == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        recordRead(node);
+        return node.value;
+    }
+
+    /**
+     * Return the cached value, computing and caching it on a miss. The value is computed
+     * outside of any lock, so two threads may compute the same value at once.
+     *
+     * @param key The key
+     * @param loader Computes the value; a null result isn't cached
+     * @return The value
+     */
+    public V get(K key, Function<? super K, ? extends V> loader) {
+        V value = get(key);
+        if (value == null) {
+            value = loader.apply(key);
+            if (value != null) {
+                put(key, value);
+            }
+        }
+        return value;
+    }
+
+    public void put(K key, V value) {
+        long limit = maxBytes;
+        int weight = ENTRY_OVERHEAD + weigher.applyAsInt(key, value);
+        if (weight > limit) {
+            // Also covers a budget of 0, which turns caching off
+            return;
+        }
+        Node<K, V> node = new Node<>(key, value, weight);
+        Node<K, V> prior = map.putIfAbsent(key, node);
+        if (prior != null) {
+            prior.value = value;
+            reweigh(prior, weight);
+            return;
+        }
+
+        lock.lock();
+        try {
+            drainReadBuffers();
+            sketch.increment(key.hashCode());
+            node.segment = WINDOW;
+            window.addLast(node);
+            // Read under the lock, since a put of the same key may have re-weighed the node meanwhile
+            windowBytes += node.weight;
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Account for the new weight of an entry whose value was replaced
+     */
+    private void reweigh(Node<K, V> node, int weight) {
+        if (node.weight == weight) {
+            return;
+        }
+        lock.lock();
+        try {
+            int delta = weight - node.weight;
+            node.weight = weight;
+            switch (node.segment) {
+                case WINDOW -> windowBytes += delta;
+                case PROBATION -> probationBytes += delta;
+                case PROTECTED -> protectedBytes += delta;
+                default -> {
+                    // Not in the policy yet, or already gone; the new weight is used when it is added
+                    return;
+                }
+            }
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void recordRead(Node<K, V> node) {
+        ReadBuffer<K, V> buffer = readBuffers[(int) Thread.currentThread().threadId() & (READ_BUFFER_STRIPES - 1)];
+        int pending = buffer.offer(node);
+        if ((pending < 0 || pending >= READ_BUFFER_SIZE / 2) && lock.tryLock()) {
+            try {
+                drainReadBuffers();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void drainReadBuffers() {
+        for (ReadBuffer<K, V> buffer : readBuffers) {
+            buffer.drain(this);
+        }
+    }
+
+    /**
+     * Apply one recorded hit to the policy
+     */
+    private void onAccess(Node<K, V> node) {
+        if (node.segment == NEW || node.segment == REMOVED) {
+            return;
+        }
+        sketch.increment(node.key.hashCode());
+        switch (node.segment) {
+            case WINDOW -> window.moveToLast(node);
+            case PROBATION -> {
+                probation.remove(node);
+                probationBytes -= node.weight;
+                node.segment = PROTECTED;
+                protectedOrder.addLast(node);
+                protectedBytes += node.weight;
+                demoteProtected();
+            }
+            default -> protectedOrder.moveToLast(node);
+        }
+    }
+
+    private void demoteProtected() {
+        while (protectedBytes > maxProtectedBytes && protectedOrder.first() != null) {
+            Node<K, V> node = protectedOrder.removeFirst();
+            protectedBytes -= node.weight;
+            node.segment = PROBATION;
+            probation.addLast(node);
+            probationBytes += node.weight;
+        }
+    }
+
+    /**
+     * Move entries out of the window and evict until the cache fits, letting each entry from
+     * the window duel the least recently used probation entry on frequency
+     */
+    private void evict() {
+        Node<K, V> candidate = null;
+        while (windowBytes > maxWindowBytes && window.first() != null) {
+            Node<K, V> node = window.removeFirst();
+            windowBytes -= node.weight;
+            node.segment = PROBATION;
+            probation.addLast(node);
+            probationBytes += node.weight;
+            if (candidate == null) {
+                candidate = node;
+            }
+        }
+
+        while (windowBytes + probationBytes + protectedBytes > maxBytes) {
+            Node<K, V> victim = probation.first();
+            if (victim != null && candidate != null && victim != candidate) {
+                if (sketch.frequency(candidate.key.hashCode()) > sketch.frequency(victim.key.hashCode())) {
+                    remove(victim);
+                } else {
+                    Node<K, V> next = candidate.next;
+                    remove(candidate);
+                    candidate = next;
+                }
+            } else if (victim != null) {
+                if (victim == candidate) {
+                    candidate = victim.next;
+                }
+                remove(victim);
+            } else if (protectedOrder.first() != null) {
+                remove(protectedOrder.first());
+            } else if (window.first() != null) {
+                remove(window.first());
+            } else {
+                break;
+            }
+        }
+        estimatedBytes = windowBytes + probationBytes + protectedBytes;
+    }
+
+    private void remove(Node<K, V> node) {
+        switch (node.segment) {
+            case WINDOW -> {
+                window.remove(node);
+                windowBytes -= node.weight;
+            }
+            case PROBATION -> {
+                probation.remove(node);
+                probationBytes -= node.weight;
+            }
+            case PROTECTED -> {
+                protectedOrder.remove(node);
+                protectedBytes -= node.weight;
+            }
+            default -> {
+                return;
+            }
+        }
+        node.segment = REMOVED;
+        map.remove(node.key, node);
+        evictions++;
+    }
+
+    /**
+     * Resize the cache, evicting what no longer fits
+     *
+     * @param maxBytes The new limit; 0 turns the cache off
+     */
+    void setMaxBytes(long maxBytes) {
+        lock.lock();
+        try {
+            this.maxBytes = Math.max(0, maxBytes);
+            this.maxWindowBytes = this.maxBytes * WINDOW_PERCENT / 100;
+            this.maxProtectedBytes = (this.maxBytes - maxWindowBytes) * PROTECTED_PERCENT / 100;
+            sketch.ensureCapacity(this.maxBytes / (ENTRY_OVERHEAD + 64));
+            demoteProtected();
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getSharePercent() {
+        return sharePercent;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions;
+    }
+
+    private static final class Node<K, V> {
+        final K key;
+        volatile V value;
+        // Guarded by the cache lock
+        int weight;
+        int segment = NEW;
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node(K key, V value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * An intrusive doubly linked list from least to most recently used
+     */
+    private static final class AccessOrder<K, V> {
+        private Node<K, V> head;
+        private Node<K, V> tail;
+
+        Node<K, V> first() {
+            return head;
+        }
+
+        void addLast(Node<K, V> node) {
+            node.prev = tail;
+            node.next = null;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+        }
+
+        void remove(Node<K, V> node) {
+            if (node.prev == null) {
+                head = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+        }
+
+        Node<K, V> removeFirst() {
+            Node<K, V> node = head;
+            remove(node);
+            return node;
+        }
+
+        void moveToLast(Node<K, V> node) {
+            if (node != tail) {
+                remove(node);
+                addLast(node);
+            }
+        }
+    }
+
+    /**
+     * A bounded ring of recent hits. Offers never wait: when the ring is full or another
+     * reader wins the slot, the hit is simply not recorded.
+     */
+    private static final class ReadBuffer<K, V> {
+        private static final int MASK = READ_BUFFER_SIZE - 1;
+        private final AtomicReferenceArray<Node<K, V>> slots = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+        private final AtomicLong writes = new AtomicLong();
+        // Only advanced by the thread holding the cache lock
+        private volatile long reads;
+
+        /**
+         * @return The number of pending hits, or -1 if the buffer is full
+         */
+        int offer(Node<K, V> node) {
+            long head = reads;
+            long tail = writes.get();
+            long size = tail - head;
+            if (size >= READ_BUFFER_SIZE) {
+                return -1;
+            }
+            if (writes.compareAndSet(tail, tail + 1)) {
+                slots.lazySet((int) (tail & MASK), node);
+                return (int) size + 1;
+            }
+            return (int) size;
+        }
+
+        void drain(BoundedCache<K, V> cache) {
+            long head = reads;
+            long tail = writes.get();
+            for (; head < tail; head++) {
+                int index = (int) (head & MASK);
+                Node<K, V> node = slots.get(index);
+                if (node == null) {
+                    // Claimed but not written yet, picked up by the next drain
+                    break;
+                }
+                slots.lazySet(index, null);
+                cache.onAccess(node);
+            }
+            reads = head;
+        }
+    }
+
+    /**
+     * A count-min sketch of 4-bit counters that estimates how often keys were used recently.
+     * All counters are halved periodically, so old popularity fades.
+     */
+    private static final class FrequencySketch {
+        private static final long RESET_MASK = 0x7777777777777777L;
+        private static final long[] SEEDS = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        private long[] table = new long[8];
+        private int sampleSize = 80;
+        private int additions;
+
+        void ensureCapacity(long expectedEntries) {
+            int entries = (int) Math.max(16, Math.min(expectedEntries, 1 << 22));
+            // Four counters per expected entry, sixteen counters per long
+            int length = Integer.highestOneBit(entries / 4 - 1) << 1;
+            if (length != table.length) {
+                table = new long[Math.max(8, length)];
+                additions = 0;
+            }
+            sampleSize = 10 * entries;
+        }
+
+        void increment(int hashCode) {
+            int hash = spread(hashCode);
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int counter = counterIndex(hash, i);
+                int word = counter >>> 4;
+                int shift = (counter & 15) << 2;
+                if (((table[word] >>> shift) & 0xF) != 0xF) {
+                    table[word] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(int hashCode) {
+            int hash = spread(hashCode);
+            int frequency = 0xF;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int counter = counterIndex(hash, i);
+                frequency = Math.min(frequency, (int) ((table[counter >>> 4] >>> ((counter & 15) << 2)) & 0xF));
+            }
+            return frequency;
+        }
+
+        private int counterIndex(int hash, int row) {
+            long h = (hash + SEEDS[row]) * SEEDS[row];
+            h += h >>> 32;
+            return (int) h & (table.length * 16 - 1);
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            additions /= 2;
+        }
+
+        private static int spread(int hashCode) {
+            int h = hashCode * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
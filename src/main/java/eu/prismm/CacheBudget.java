@@ -0,0 +1,212 @@
+package eu.prismm;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.ToIntBiFunction;
+
+/**
+ * The memory budget shared by every cache in NoConsoleSpam.
+ *
+ * Each cache gets a fixed percentage of the budget set in spamfilters.json, so the total
+ * heap used by caches is bounded no matter how many distinct loggers, messages or exceptions
+ * a long-running server produces. Changing the budget resizes the caches that already exist.
+ *
+ * Several caches of one name can be alive at once, such as the caches of the rules still in use
+ * while rebuilt rules take over, or those of several exception loggers. They split the share of
+ * their name, so the budget holds however many there are, and are reported together. Caches are
+ * held weakly; once one is garbage collected, its part of the share goes back to the others of
+ * its name the next time the budget is configured, creates a cache or is read.
+ */
+public final class CacheBudget implements CacheBudgetMXBean {
+    private static final Logger LOGGER = LogManager.getLogger(NoConsoleSpam.MOD_ID);
+    public static final long DEFAULT_MAX_BYTES = 8L * 1024 * 1024;
+    private static final String OBJECT_NAME = "eu.prismm.noconsolespam:type=Caches";
+    private static final CacheBudget GLOBAL = new CacheBudget(DEFAULT_MAX_BYTES);
+
+    private volatile long maxBytes;
+    // The live caches of each name; guarded by this
+    private final Map<String, List<Registration>> caches = new HashMap<>();
+    private final ReferenceQueue<BoundedCache<?, ?>> collected = new ReferenceQueue<>();
+
+    private static final class Registration extends WeakReference<BoundedCache<?, ?>> {
+        final String name;
+
+        Registration(BoundedCache<?, ?> cache, ReferenceQueue<BoundedCache<?, ?>> queue) {
+            super(cache, queue);
+            this.name = cache.getName();
+        }
+    }
+
+    CacheBudget(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+    }
+
+    /**
+     * @return The budget all caches are created from
+     */
+    public static CacheBudget global() {
+        return GLOBAL;
+    }
+
+    /**
+     * Set the budget and resize the existing caches to their share of it
+     *
+     * @param maxBytes The total bytes all caches may use; 0 turns caching off
+     */
+    public synchronized void configure(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        expungeCollected();
+        for (String name : new ArrayList<>(caches.keySet())) {
+            resize(name);
+        }
+    }
+
+    /**
+     * @param name The name the cache is reported under
+     * @param sharePercent The percentage of the budget the caches of this name may use together
+     * @param weigher Estimates the bytes of a key and its value
+     * @return A new cache, which shares the budget of its name with the other live caches of that name
+     */
+    public synchronized <K, V> BoundedCache<K, V> newCache(String name, int sharePercent, ToIntBiFunction<? super K, ? super V> weigher) {
+        expungeCollected();
+        List<Registration> registrations = caches.computeIfAbsent(name, n -> new ArrayList<>());
+        BoundedCache<K, V> cache = new BoundedCache<>(name, sharePercent, weigher,
+                shareOf(sharePercent) / (registrations.size() + 1));
+        registrations.add(new Registration(cache, collected));
+        resize(name);
+        return cache;
+    }
+
+    /**
+     * Divide the share of a name evenly among its live caches
+     */
+    private void resize(String name) {
+        List<BoundedCache<?, ?>> live = live(name);
+        for (BoundedCache<?, ?> cache : live) {
+            cache.setMaxBytes(shareOf(cache.getSharePercent()) / live.size());
+        }
+    }
+
+    /**
+     * @return The caches of a name that weren't garbage collected, dropping those that were
+     */
+    private List<BoundedCache<?, ?>> live(String name) {
+        List<BoundedCache<?, ?>> live = new ArrayList<>();
+        List<Registration> registrations = caches.get(name);
+        if (registrations == null) {
+            return live;
+        }
+        for (Iterator<Registration> it = registrations.iterator(); it.hasNext(); ) {
+            BoundedCache<?, ?> cache = it.next().get();
+            if (cache == null) {
+                it.remove();
+            } else {
+                live.add(cache);
+            }
+        }
+        if (registrations.isEmpty()) {
+            caches.remove(name);
+        }
+        return live;
+    }
+
+    /**
+     * Give the share of collected caches back to the remaining caches of their names
+     */
+    private void expungeCollected() {
+        Reference<? extends BoundedCache<?, ?>> reference;
+        while ((reference = collected.poll()) != null) {
+            resize(((Registration) reference).name);
+        }
+    }
+
+    private long shareOf(int sharePercent) {
+        return maxBytes / 100 * sharePercent;
+    }
+
+    public void registerMBean() {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Could not register the cache MBean: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public synchronized long getEstimatedBytes() {
+        expungeCollected();
+        long total = 0;
+        for (String name : new ArrayList<>(caches.keySet())) {
+            for (BoundedCache<?, ?> cache : live(name)) {
+                total += cache.getEstimatedBytes();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return One entry per name, summing its live caches
+     */
+    @Override
+    public synchronized List<CacheStats> getCaches() {
+        expungeCollected();
+        List<CacheStats> stats = new ArrayList<>();
+        for (String name : new TreeMap<>(caches).keySet()) {
+            List<BoundedCache<?, ?>> live = live(name);
+            if (live.isEmpty()) {
+                continue;
+            }
+            int entries = 0;
+            long estimatedBytes = 0;
+            long maxBytes = 0;
+            long hits = 0;
+            long misses = 0;
+            long evictions = 0;
+            for (BoundedCache<?, ?> cache : live) {
+                entries += cache.size();
+                estimatedBytes += cache.getEstimatedBytes();
+                maxBytes += cache.getMaxBytes();
+                hits += cache.getHitCount();
+                misses += cache.getMissCount();
+                evictions += cache.getEvictionCount();
+            }
+            stats.add(new CacheStats(name, entries, estimatedBytes, maxBytes, hits, misses, evictions));
+        }
+        return stats;
+    }
+
+    /**
+     * @return The estimated bytes of a String, header and array included
+     */
+    public static int stringBytes(String value) {
+        return value == null ? 0 : 40 + 2 * value.length();
+    }
+
+    /**
+     * @return The estimated bytes of a Path, which keeps both its bytes and its string form
+     */
+    public static int pathBytes(Path path) {
+        return 80 + 3 * path.toString().length();
+    }
+}
@@ -0,0 +1,80 @@
+package eu.prismm;
+
+import java.util.List;
+
+/**
+ * JMX view of the memory budget shared by all NoConsoleSpam caches
+ */
+public interface CacheBudgetMXBean {
+    long getMaxBytes();
+
+    long getEstimatedBytes();
+
+    List<CacheStats> getCaches();
+
+    /**
+     * Usage of one cache
+     */
+    final class CacheStats {
+        private final String name;
+        private final int entries;
+        private final long estimatedBytes;
+        private final long maxBytes;
+        private final long hitCount;
+        private final long missCount;
+        private final long evictionCount;
+
+        public CacheStats(String name, int entries, long estimatedBytes, long maxBytes, long hitCount, long missCount,
+                          long evictionCount) {
+            this.name = name;
+            this.entries = entries;
+            this.estimatedBytes = estimatedBytes;
+            this.maxBytes = maxBytes;
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.evictionCount = evictionCount;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getEntries() {
+            return entries;
+        }
+
+        /**
+         * @return The estimated heap used by the entries
+         */
+        public long getEstimatedBytes() {
+            return estimatedBytes;
+        }
+
+        /**
+         * @return This cache's share of the budget
+         */
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        public long getMissCount() {
+            return missCount;
+        }
+
+        /**
+         * @return The fraction of lookups that were hits, 0 before the first lookup
+         */
+        public double getHitRate() {
+            long lookups = hitCount + missCount;
+            return lookups == 0 ? 0 : (double) hitCount / lookups;
+        }
+
+        public long getEvictionCount() {
+            return evictionCount;
+        }
+    }
+}
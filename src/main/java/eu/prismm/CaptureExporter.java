@@ -0,0 +1,399 @@
+package eu.prismm;
+
+import com.google.gson.stream.JsonWriter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.URI;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Streams captures to a collector on a TCP or Unix domain socket, such as a syslog daemon or a
+ * sidecar that gathers the exceptions of many servers.
+ *
+ * Each capture is one JSON object, either newline-delimited or prefixed with its length as a
+ * 4-byte big-endian integer. The capture path only offers a record to a bounded queue and never
+ * blocks: when the queue is full the record is dropped and counted. A single background thread
+ * renders the records, batches them for up to the linger time and writes each batch in one go,
+ * reconnecting with exponential backoff when the collector goes away.
+ */
+public class CaptureExporter {
+    private static final Logger LOGGER = LogManager.getLogger(NoConsoleSpam.MOD_ID);
+    private static final int MAX_BATCH_BYTES = 256 * 1024;
+    private static final long MIN_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+    private static final long DROP_REPORT_INTERVAL_MILLIS = 60_000;
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 2_000;
+
+    public enum Framing {
+        NEWLINE,
+        LENGTH_PREFIXED
+    }
+
+    /**
+     * One capture waiting to be exported. The trace is only rendered on the exporter thread.
+     */
+    public record Capture(long time, String source, String message, Throwable exception, long fingerprint, boolean repeat) {
+    }
+
+    private static final Capture STOP = new Capture(0, null, null, null, 0, false);
+
+    private final SocketAddress address;
+    private final Framing framing;
+    private final long lingerNanos;
+    private final Function<Throwable, String> categorizer;
+    private final ArrayBlockingQueue<Capture> queue;
+    private final String host;
+    private final Thread thread;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+    private final BatchBuffer batch = new BatchBuffer();
+    private SocketChannel channel;
+    private long backoffMillis = MIN_BACKOFF_MILLIS;
+    private long nextConnectAttempt;
+    private long lastDropReport;
+    private long lastReportedDrops;
+    private volatile boolean stopped = false;
+
+    /**
+     * @param address The collector address, an InetSocketAddress or a UnixDomainSocketAddress
+     * @param framing How records are delimited on the wire
+     * @param lingerMillis How long to wait for more records before sending a batch
+     * @param capacity The maximum number of records waiting to be sent
+     * @param categorizer Maps an exception to its category name
+     */
+    public CaptureExporter(SocketAddress address, Framing framing, long lingerMillis, int capacity,
+                           Function<Throwable, String> categorizer) {
+        this.address = address;
+        this.framing = framing;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, lingerMillis));
+        this.categorizer = categorizer;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.host = hostName();
+        this.thread = new Thread(this::run, "NoConsoleSpam-CaptureExporter");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Create an exporter from the exception settings
+     *
+     * @return The started exporter, or null if exporting is disabled
+     */
+    public static CaptureExporter fromSettings(FilterConfig.ExceptionSettings settings, Function<Throwable, String> categorizer) {
+        String target = settings.getExportTarget();
+        if (target == null || target.isBlank()) {
+            return null;
+        }
+        Framing framing = "length".equalsIgnoreCase(settings.getExportFraming()) ? Framing.LENGTH_PREFIXED : Framing.NEWLINE;
+        CaptureExporter exporter = new CaptureExporter(parseTarget(target), framing,
+                settings.getExportLingerMillis(), settings.getExportBufferSize(), categorizer);
+        exporter.start();
+        return exporter;
+    }
+
+    /**
+     * @param target "tcp://host:port" or "unix:/path/to/socket"
+     * @return The socket address of the collector
+     */
+    public static SocketAddress parseTarget(String target) {
+        if (target.startsWith("unix:")) {
+            String path = target.substring("unix:".length());
+            // Accept both unix:/path and unix:///path
+            while (path.startsWith("//")) {
+                path = path.substring(1);
+            }
+            return UnixDomainSocketAddress.of(path);
+        }
+        URI uri = URI.create(target.contains("://") ? target : "tcp://" + target);
+        if (uri.getHost() == null || uri.getPort() < 0) {
+            throw new IllegalArgumentException("Invalid export target: " + target);
+        }
+        return new InetSocketAddress(uri.getHost(), uri.getPort());
+    }
+
+    public void start() {
+        thread.start();
+        LOGGER.info("Exporting exception captures to {}", address);
+    }
+
+    /**
+     * Queue a capture for export. Never blocks; the capture is dropped if the queue is full.
+     *
+     * @return Whether the capture was queued
+     */
+    public boolean offer(Capture capture) {
+        if (stopped || !queue.offer(capture)) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getReconnects() {
+        return reconnects.get();
+    }
+
+    /**
+     * Send what is still queued, giving up after a short timeout, and close the connection
+     */
+    public void shutdown() {
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+        // Make room for the sentinel rather than block on a full queue
+        while (!queue.offer(STOP)) {
+            if (queue.poll() != null) {
+                dropped.incrementAndGet();
+            }
+        }
+        try {
+            thread.join(SHUTDOWN_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            thread.interrupt();
+        }
+    }
+
+    private void run() {
+        List<Capture> pending = new ArrayList<>();
+        boolean running = true;
+        while (running) {
+            try {
+                // A batch that could not be sent is kept until the collector is back
+                if (batch.size() == 0) {
+                    Capture first = queue.take();
+                    if (first == STOP) {
+                        break;
+                    }
+                    pending.add(first);
+                    long deadline = System.nanoTime() + lingerNanos;
+                    while (batch.size() < MAX_BATCH_BYTES) {
+                        long remaining = deadline - System.nanoTime();
+                        Capture next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                        if (next == null) {
+                            break;
+                        }
+                        if (next == STOP) {
+                            running = false;
+                            break;
+                        }
+                        pending.add(next);
+                        if (pending.size() >= 64) {
+                            encode(pending);
+                        }
+                    }
+                    encode(pending);
+                }
+
+                if (!send() && running) {
+                    // Wait out the backoff, but keep the queue from hiding drops meanwhile
+                    Thread.sleep(Math.max(1, nextConnectAttempt - System.currentTimeMillis()));
+                }
+                reportDrops();
+            } catch (InterruptedException e) {
+                break;
+            } catch (Exception e) {
+                // A record that can't be encoded must not stop the exporter
+                LOGGER.debug("Failed to export exception captures", e);
+                pending.clear();
+                batch.reset();
+            }
+        }
+        if (batch.size() > 0) {
+            send();
+        }
+        closeChannel();
+    }
+
+    private void encode(List<Capture> captures) throws IOException {
+        for (Capture capture : captures) {
+            int start = batch.size();
+            if (framing == Framing.LENGTH_PREFIXED) {
+                // Placeholder for the length, filled in below
+                batch.write(new byte[4]);
+            }
+            Writer writer = new OutputStreamWriter(batch, StandardCharsets.UTF_8);
+            JsonWriter json = new JsonWriter(writer);
+            json.beginObject();
+            json.name("time").value(capture.time());
+            json.name("host").value(host);
+            json.name("modpack").value(Long.toHexString(ModpackVersion.current()));
+            json.name("source").value(capture.source());
+            json.name("class").value(capture.exception().getClass().getName());
+            json.name("category").value(categorizer.apply(capture.exception()));
+            long fingerprint = capture.fingerprint() != 0 ? capture.fingerprint() : ThrowableFingerprint.of(capture.exception());
+            json.name("fingerprint").value(Long.toHexString(fingerprint));
+            json.name("repeat").value(capture.repeat());
+            json.name("message").value(capture.message());
+            json.name("exceptionMessage").value(capture.exception().getMessage());
+            // Repeats of an exception already sent in full only carry the fingerprint
+            if (!capture.repeat()) {
+                StringWriter trace = new StringWriter();
+                capture.exception().printStackTrace(new PrintWriter(trace));
+                json.name("trace").value(trace.toString());
+            }
+            json.endObject();
+            json.flush();
+
+            if (framing == Framing.LENGTH_PREFIXED) {
+                batch.writeLengthAt(start);
+            } else {
+                batch.write('\n');
+            }
+            batch.records++;
+        }
+        captures.clear();
+    }
+
+    /**
+     * @return Whether the batch was sent. A failed batch stays buffered for the next attempt.
+     */
+    private boolean send() {
+        if (batch.size() == 0) {
+            return true;
+        }
+        if (channel == null && !connect()) {
+            return false;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(batch.buffer(), 0, batch.size());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            sent.addAndGet(batch.records);
+            batch.reset();
+            return true;
+        } catch (IOException e) {
+            // Records of a half-written batch may arrive twice, which a collector can spot by time and fingerprint
+            LOGGER.debug("Lost connection to capture collector {}: {}", address, e.getMessage());
+            closeChannel();
+            scheduleReconnect();
+            return false;
+        }
+    }
+
+    private boolean connect() {
+        if (System.currentTimeMillis() < nextConnectAttempt) {
+            return false;
+        }
+        try {
+            SocketChannel opened = address instanceof UnixDomainSocketAddress
+                    ? SocketChannel.open(StandardProtocolFamily.UNIX)
+                    : SocketChannel.open();
+            try {
+                opened.connect(address);
+            } catch (IOException e) {
+                opened.close();
+                throw e;
+            }
+            channel = opened;
+            backoffMillis = MIN_BACKOFF_MILLIS;
+            reconnects.incrementAndGet();
+            return true;
+        } catch (IOException e) {
+            LOGGER.debug("Could not connect to capture collector {}: {}", address, e.getMessage());
+            scheduleReconnect();
+            return false;
+        }
+    }
+
+    private void scheduleReconnect() {
+        // Jitter keeps many servers from reconnecting to a restarted collector in lockstep
+        long jitter = ThreadLocalRandom.current().nextLong(backoffMillis / 2 + 1);
+        nextConnectAttempt = System.currentTimeMillis() + backoffMillis + jitter;
+        backoffMillis = Math.min(MAX_BACKOFF_MILLIS, backoffMillis * 2);
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing left to do with a broken connection
+            }
+            channel = null;
+        }
+    }
+
+    private void reportDrops() {
+        long now = System.currentTimeMillis();
+        long drops = dropped.get();
+        if (drops != lastReportedDrops && now - lastDropReport >= DROP_REPORT_INTERVAL_MILLIS) {
+            LOGGER.warn("Capture exporter dropped {} captures because {} could not keep up", drops - lastReportedDrops, address);
+            lastReportedDrops = drops;
+            lastDropReport = now;
+        }
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+
+    /**
+     * Encoded records waiting to be sent
+     */
+    private static class BatchBuffer extends ByteArrayOutputStream {
+        int records;
+
+        BatchBuffer() {
+            super(64 * 1024);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+
+        /**
+         * Fill in the 4-byte length placeholder of the record starting at the given offset
+         */
+        void writeLengthAt(int start) {
+            int length = count - start - 4;
+            buf[start] = (byte) (length >>> 24);
+            buf[start + 1] = (byte) (length >>> 16);
+            buf[start + 2] = (byte) (length >>> 8);
+            buf[start + 3] = (byte) length;
+        }
+
+        @Override
+        public synchronized void reset() {
+            super.reset();
+            records = 0;
+        }
+    }
+}
@@ -0,0 +1,475 @@
+package eu.prismm;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Compact on-disk index over exception captures, so they can be searched without opening
+ * the capture files.
+ *
+ * The index lives in "Console Errors/.index" and consists of three append-only files:
+ *   terms.dat    - one term per line; a term's id is its line number
+ *   captures.dat - fixed-size records: time, class, source, category, top frame, path
+ *   paths.dat    - the capture file paths referenced by the records
+ *
+ * ExceptionLogger appends one record per capture. The Reader maps the records file and
+ * builds postings lists per field and per hour in a single pass, after which queries are
+ * intersections of sorted record id arrays.
+ */
+public class CaptureIndex {
+    private static final Logger LOGGER = LogManager.getLogger(NoConsoleSpam.MOD_ID);
+    public static final String DIRECTORY = ".index";
+    private static final String TERMS_FILE = "terms.dat";
+    private static final String RECORDS_FILE = "captures.dat";
+    private static final String PATHS_FILE = "paths.dat";
+
+    static final int RECORD_SIZE = 40;
+    private static final int RECORD_TIME = 0;
+    private static final int RECORD_CLASS = 8;
+    private static final int RECORD_SOURCE = 12;
+    private static final int RECORD_CATEGORY = 16;
+    private static final int RECORD_FRAME = 20;
+    private static final int RECORD_PATH_OFFSET = 24;
+    private static final int RECORD_PATH_LENGTH = 32;
+    private static final long BUCKET_MILLIS = 60 * 60 * 1000L;
+
+    private final Path directory;
+    private final Map<String, Integer> termIds = new HashMap<>();
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    private FileChannel terms;
+    private FileChannel records;
+    private FileChannel paths;
+
+    private CaptureIndex(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Open the index for appending, creating it if needed
+     *
+     * @param errorDirectory The exception log directory
+     * @return The opened index
+     */
+    public static CaptureIndex open(Path errorDirectory) throws IOException {
+        CaptureIndex index = new CaptureIndex(errorDirectory.resolve(DIRECTORY));
+        Files.createDirectories(index.directory);
+
+        // Drop a term torn by a crash, or the next term appended would be merged into its line
+        // and every later term id would be off by one for the reader
+        truncateTornLine(index.directory.resolve(TERMS_FILE));
+        List<String> existing = readTerms(index.directory);
+        for (int i = 0; i < existing.size(); i++) {
+            index.termIds.put(existing.get(i), i);
+        }
+
+        index.terms = openAppend(index.directory.resolve(TERMS_FILE));
+        index.records = openAppend(index.directory.resolve(RECORDS_FILE));
+        index.paths = openAppend(index.directory.resolve(PATHS_FILE));
+
+        // Drop a record torn by a crash so the file stays aligned
+        long aligned = index.records.size() - index.records.size() % RECORD_SIZE;
+        if (aligned != index.records.size()) {
+            index.records.truncate(aligned);
+        }
+        return index;
+    }
+
+    /**
+     * Cut a file back to the end of its last complete line
+     */
+    private static void truncateTornLine(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer block = ByteBuffer.allocate(4096);
+            long end = channel.size();
+            long lineEnd = 0;
+            while (end > 0 && lineEnd == 0) {
+                long start = Math.max(0, end - block.capacity());
+                block.clear().limit((int) (end - start));
+                while (block.hasRemaining()) {
+                    if (channel.read(block, start + block.position()) < 0) {
+                        break;
+                    }
+                }
+                for (int i = block.position() - 1; i >= 0; i--) {
+                    if (block.get(i) == '\n') {
+                        lineEnd = start + i + 1;
+                        break;
+                    }
+                }
+                end = start;
+            }
+            if (lineEnd != channel.size()) {
+                channel.truncate(lineEnd);
+            }
+        }
+    }
+
+    private static FileChannel openAppend(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static List<String> readTerms(Path directory) throws IOException {
+        Path file = directory.resolve(TERMS_FILE);
+        if (!Files.exists(file)) {
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(Files.readAllLines(file, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Append a capture to the index
+     *
+     * @param time The capture time in epoch milliseconds
+     * @param exceptionClass The fully qualified exception class
+     * @param source The source directory the capture was filed under
+     * @param category The exception category, may be null
+     * @param topFrame The top stack frame as class.method, may be null
+     * @param capturePath The capture file relative to the exception log directory
+     */
+    public synchronized void add(long time, String exceptionClass, String source, String category,
+                                 String topFrame, String capturePath) {
+        if (records == null) {
+            return;
+        }
+        try {
+            byte[] pathBytes = (capturePath != null ? capturePath : "").getBytes(StandardCharsets.UTF_8);
+            long pathOffset = paths.size();
+            paths.write(ByteBuffer.wrap(pathBytes));
+
+            record.clear();
+            record.putLong(RECORD_TIME, time);
+            record.putInt(RECORD_CLASS, termId(exceptionClass));
+            record.putInt(RECORD_SOURCE, termId(source));
+            record.putInt(RECORD_CATEGORY, termId(category));
+            record.putInt(RECORD_FRAME, termId(topFrame));
+            record.putLong(RECORD_PATH_OFFSET, pathOffset);
+            record.putInt(RECORD_PATH_LENGTH, pathBytes.length);
+            while (record.hasRemaining()) {
+                records.write(record);
+            }
+        } catch (IOException e) {
+            LOGGER.error("Failed to add capture to the exception index", e);
+        }
+    }
+
+    private int termId(String term) throws IOException {
+        // Terms are stored one per line
+        String value = term != null ? term.replace('\n', ' ').replace('\r', ' ') : "";
+        Integer id = termIds.get(value);
+        if (id == null) {
+            id = termIds.size();
+            terms.write(ByteBuffer.wrap((value + "\n").getBytes(StandardCharsets.UTF_8)));
+            termIds.put(value, id);
+        }
+        return id;
+    }
+
+    public synchronized void close() {
+        for (FileChannel channel : new FileChannel[] {terms, records, paths}) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    LOGGER.debug("Failed to close exception index file", e);
+                }
+            }
+        }
+        records = null;
+    }
+
+    /**
+     * Open the index for querying
+     *
+     * @param errorDirectory The exception log directory
+     * @return A reader over a snapshot of the index
+     */
+    public static Reader read(Path errorDirectory) throws IOException {
+        return new Reader(errorDirectory.resolve(DIRECTORY));
+    }
+
+    /**
+     * A single query result
+     */
+    public record Hit(long time, String exceptionClass, String source, String category, String topFrame, String path) {
+    }
+
+    /**
+     * Query criteria. Unset criteria match everything.
+     */
+    public static class Query {
+        String exceptionClass;
+        String source;
+        String category;
+        String framePrefix;
+        long since = Long.MIN_VALUE;
+        long until = Long.MAX_VALUE;
+
+        /**
+         * @param exceptionClass A fully qualified or simple class name
+         */
+        public Query exceptionClass(String exceptionClass) {
+            this.exceptionClass = exceptionClass;
+            return this;
+        }
+
+        public Query source(String source) {
+            this.source = source;
+            return this;
+        }
+
+        public Query category(String category) {
+            this.category = category;
+            return this;
+        }
+
+        /**
+         * @param framePrefix A prefix of the top frame, for example a package name
+         */
+        public Query topFrame(String framePrefix) {
+            this.framePrefix = framePrefix;
+            return this;
+        }
+
+        public Query since(long since) {
+            this.since = since;
+            return this;
+        }
+
+        public Query until(long until) {
+            this.until = until;
+            return this;
+        }
+    }
+
+    /**
+     * Read-only view of the index with postings built in memory
+     */
+    public static class Reader {
+        private final List<String> terms;
+        private final ByteBuffer records;
+        private final ByteBuffer paths;
+        private final int recordCount;
+        // Postings per field: term id -> ascending record ids
+        private final Map<Integer, int[]> classPostings;
+        private final Map<Integer, int[]> sourcePostings;
+        private final Map<Integer, int[]> categoryPostings;
+        private final Map<Integer, int[]> framePostings;
+        private final Map<Long, int[]> bucketPostings;
+
+        Reader(Path directory) throws IOException {
+            terms = readTerms(directory);
+            records = map(directory.resolve(RECORDS_FILE));
+            paths = map(directory.resolve(PATHS_FILE));
+            recordCount = records.capacity() / RECORD_SIZE;
+
+            Map<Integer, IntList> classes = new HashMap<>();
+            Map<Integer, IntList> sources = new HashMap<>();
+            Map<Integer, IntList> categories = new HashMap<>();
+            Map<Integer, IntList> frames = new HashMap<>();
+            Map<Long, IntList> buckets = new HashMap<>();
+            for (int id = 0; id < recordCount; id++) {
+                int base = id * RECORD_SIZE;
+                classes.computeIfAbsent(records.getInt(base + RECORD_CLASS), k -> new IntList()).add(id);
+                sources.computeIfAbsent(records.getInt(base + RECORD_SOURCE), k -> new IntList()).add(id);
+                categories.computeIfAbsent(records.getInt(base + RECORD_CATEGORY), k -> new IntList()).add(id);
+                frames.computeIfAbsent(records.getInt(base + RECORD_FRAME), k -> new IntList()).add(id);
+                buckets.computeIfAbsent(records.getLong(base + RECORD_TIME) / BUCKET_MILLIS, k -> new IntList()).add(id);
+            }
+            classPostings = freeze(classes);
+            sourcePostings = freeze(sources);
+            categoryPostings = freeze(categories);
+            framePostings = freeze(frames);
+            bucketPostings = freeze(buckets);
+        }
+
+        private static ByteBuffer map(Path file) throws IOException {
+            if (!Files.exists(file)) {
+                return ByteBuffer.allocate(0);
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (file.getFileName().toString().equals(RECORDS_FILE)) {
+                    // Ignore a record that is still being written
+                    size -= size % RECORD_SIZE;
+                }
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+        }
+
+        private static <K> Map<K, int[]> freeze(Map<K, IntList> lists) {
+            Map<K, int[]> frozen = new HashMap<>(lists.size() * 2);
+            lists.forEach((key, list) -> frozen.put(key, list.toArray()));
+            return frozen;
+        }
+
+        public int size() {
+            return recordCount;
+        }
+
+        /**
+         * @param query The criteria to match
+         * @param limit The maximum number of hits to return, newest first
+         * @return The matching captures, newest first
+         */
+        public List<Hit> query(Query query, int limit) {
+            int[] matches = matchIds(query);
+            List<Hit> hits = new ArrayList<>(Math.min(matches.length, limit));
+            for (int i = matches.length - 1; i >= 0 && hits.size() < limit; i--) {
+                hits.add(hit(matches[i]));
+            }
+            return hits;
+        }
+
+        /**
+         * @param query The criteria to match
+         * @return The number of matching captures
+         */
+        public int count(Query query) {
+            return matchIds(query).length;
+        }
+
+        private int[] matchIds(Query query) {
+            int[] result = null;
+            if (query.exceptionClass != null) {
+                String wanted = query.exceptionClass;
+                result = intersect(result, union(classPostings, term -> term.equals(wanted) || term.endsWith("." + wanted)));
+            }
+            if (query.source != null) {
+                result = intersect(result, union(sourcePostings, term -> term.equalsIgnoreCase(query.source)));
+            }
+            if (query.category != null) {
+                result = intersect(result, union(categoryPostings, term -> term.equalsIgnoreCase(query.category)));
+            }
+            if (query.framePrefix != null) {
+                result = intersect(result, union(framePostings, term -> term.startsWith(query.framePrefix)));
+            }
+            if (query.since != Long.MIN_VALUE || query.until != Long.MAX_VALUE) {
+                result = intersect(result, timeRange(query.since, query.until));
+            }
+            if (result == null) {
+                result = new int[recordCount];
+                Arrays.setAll(result, i -> i);
+            }
+            return result;
+        }
+
+        private int[] union(Map<Integer, int[]> postings, Predicate<String> termMatches) {
+            IntList merged = new IntList();
+            postings.forEach((termId, ids) -> {
+                if (termId < terms.size() && termMatches.test(terms.get(termId))) {
+                    merged.addAll(ids);
+                }
+            });
+            return merged.toSortedArray();
+        }
+
+        private int[] timeRange(long since, long until) {
+            IntList merged = new IntList();
+            bucketPostings.forEach((bucket, ids) -> {
+                long bucketStart = bucket * BUCKET_MILLIS;
+                if (bucketStart + BUCKET_MILLIS <= since || bucketStart > until) {
+                    return;
+                }
+                boolean whollyInside = bucketStart >= since && bucketStart + BUCKET_MILLIS - 1 <= until;
+                for (int id : ids) {
+                    long time = records.getLong(id * RECORD_SIZE + RECORD_TIME);
+                    if (whollyInside || (time >= since && time <= until)) {
+                        merged.add(id);
+                    }
+                }
+            });
+            return merged.toSortedArray();
+        }
+
+        private static int[] intersect(int[] a, int[] b) {
+            if (a == null) {
+                return b;
+            }
+            int[] out = new int[Math.min(a.length, b.length)];
+            int i = 0;
+            int j = 0;
+            int n = 0;
+            while (i < a.length && j < b.length) {
+                if (a[i] < b[j]) {
+                    i++;
+                } else if (a[i] > b[j]) {
+                    j++;
+                } else {
+                    out[n++] = a[i];
+                    i++;
+                    j++;
+                }
+            }
+            return Arrays.copyOf(out, n);
+        }
+
+        private Hit hit(int id) {
+            int base = id * RECORD_SIZE;
+            byte[] path = new byte[records.getInt(base + RECORD_PATH_LENGTH)];
+            long offset = records.getLong(base + RECORD_PATH_OFFSET);
+            if (offset + path.length <= paths.capacity()) {
+                paths.get((int) offset, path);
+            }
+            return new Hit(records.getLong(base + RECORD_TIME),
+                    term(records.getInt(base + RECORD_CLASS)),
+                    term(records.getInt(base + RECORD_SOURCE)),
+                    term(records.getInt(base + RECORD_CATEGORY)),
+                    term(records.getInt(base + RECORD_FRAME)),
+                    new String(path, StandardCharsets.UTF_8));
+        }
+
+        private String term(int id) {
+            return id >= 0 && id < terms.size() ? terms.get(id) : "";
+        }
+    }
+
+    /**
+     * Growable int array used while building postings
+     */
+    private static class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        void addAll(int[] more) {
+            if (size + more.length > values.length) {
+                values = Arrays.copyOf(values, Math.max(values.length * 2, size + more.length));
+            }
+            System.arraycopy(more, 0, values, size, more.length);
+            size += more.length;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+
+        int[] toSortedArray() {
+            int[] sorted = toArray();
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package eu.prismm;
+
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Command line query tool over the CaptureIndex.
+ *
+ * Usage: java -cp noconsolespam.jar:log4j-api.jar:log4j-core.jar eu.prismm.CaptureQuery
+ *        [--dir "Console Errors"] [--class NullPointerException] [--source create]
+ *        [--category Runtime] [--frame com.simibubi] [--since 3d] [--until 1h]
+ *        [--limit 50] [--count]
+ *
+ * Durations are relative to now and accept the suffixes s, m, h and d.
+ */
+public class CaptureQuery {
+
+    public static void main(String[] args) {
+        Path directory = Path.of("Console Errors");
+        CaptureIndex.Query query = new CaptureIndex.Query();
+        int limit = 50;
+        boolean countOnly = false;
+        long now = System.currentTimeMillis();
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--dir" -> directory = Path.of(args[++i]);
+                    case "--class" -> query.exceptionClass(args[++i]);
+                    case "--source" -> query.source(args[++i]);
+                    case "--category" -> query.category(args[++i]);
+                    case "--frame" -> query.topFrame(args[++i]);
+                    case "--since" -> query.since(now - parseDuration(args[++i]));
+                    case "--until" -> query.until(now - parseDuration(args[++i]));
+                    case "--limit" -> limit = Integer.parseInt(args[++i]);
+                    case "--count" -> countOnly = true;
+                    default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: CaptureQuery [--dir <dir>] [--class <name>] [--source <source>] [--category <category>]"
+                    + " [--frame <prefix>] [--since <duration>] [--until <duration>] [--limit <n>] [--count]");
+            System.exit(2);
+            return;
+        }
+
+        try {
+            long start = System.nanoTime();
+            // Reading the index builds every postings list, which is most of the cost
+            CaptureIndex.Reader reader = CaptureIndex.read(directory);
+            long read = System.nanoTime();
+            if (countOnly) {
+                System.out.println(reader.count(query));
+            } else {
+                SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+                List<CaptureIndex.Hit> hits = reader.query(query, limit);
+                for (CaptureIndex.Hit hit : hits) {
+                    System.out.printf("%s  %-20s %-12s %s  at %s  %s%n",
+                            format.format(new Date(hit.time())), hit.source(), hit.category(),
+                            hit.exceptionClass(), hit.topFrame(), hit.path());
+                }
+                System.err.printf("%d of %d captures shown (index read in %.1f ms, queried in %.1f ms)%n",
+                        hits.size(), reader.count(query), (read - start) / 1_000_000.0, (System.nanoTime() - read) / 1_000_000.0);
+            }
+        } catch (Exception e) {
+            System.err.println("Failed to query the exception index: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @param value A duration such as 30m, 12h or 3d
+     * @return The duration in milliseconds
+     */
+    static long parseDuration(String value) {
+        long amount = Long.parseLong(value.substring(0, value.length() - 1));
+        return switch (Character.toLowerCase(value.charAt(value.length() - 1))) {
+            case 's' -> amount * 1000L;
+            case 'm' -> amount * 60_000L;
+            case 'h' -> amount * 3_600_000L;
+            case 'd' -> amount * 86_400_000L;
+            default -> throw new IllegalArgumentException("Invalid duration: " + value);
+        };
+    }
+}
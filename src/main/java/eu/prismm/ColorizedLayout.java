@@ -0,0 +1,355 @@
+package eu.prismm;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.layout.AbstractLayout;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+import org.apache.logging.log4j.core.util.StringBuilderWriter;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.util.StringBuilderFormattable;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Console layout driven by colorize.json.
+ *
+ * The color scheme is parsed once: the § codes are translated to ANSI escape sequences and
+ * loggerFormat is compiled into one segment program per level, in which all constant text and
+ * color codes are merged into pre-encoded byte arrays. Formatting an event then only copies
+ * those arrays, the timestamp and the encoded logger name and message into a per-thread
+ * buffer that is reused for every event.
+ */
+public class ColorizedLayout extends AbstractLayout<String> {
+    private static final String RESOURCE_PATH = "colorize.json";
+    private static final String CONFIG_PATH = "config/NoConsoleSpam/colorize.json";
+    private static final String DEFAULT_FORMAT = "%prefix% %timestamp% %loggerName% - %text%";
+    private static final String DEFAULT_TIMESTAMP = "[%date%]";
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    // Indexes into the program table
+    private static final int ERROR = 0;
+    private static final int WARNING = 1;
+    private static final int INFO = 2;
+    private static final int DEBUG = 3;
+    private static final String[] SECTIONS = {"error", "warning", "info", "debug"};
+
+    // Segment operations; constant bytes are stored as the segment itself
+    private static final Object DATE = new Object();
+    private static final Object LOGGER_NAME = new Object();
+    private static final Object TEXT = new Object();
+
+    private static final Map<Character, String> ANSI_CODES = new HashMap<>();
+
+    static {
+        ANSI_CODES.put('0', "30");
+        ANSI_CODES.put('1', "34");
+        ANSI_CODES.put('2', "32");
+        ANSI_CODES.put('3', "36");
+        ANSI_CODES.put('4', "31");
+        ANSI_CODES.put('5', "35");
+        ANSI_CODES.put('6', "33");
+        ANSI_CODES.put('7', "37");
+        ANSI_CODES.put('8', "90");
+        ANSI_CODES.put('9', "94");
+        ANSI_CODES.put('a', "92");
+        ANSI_CODES.put('b', "96");
+        ANSI_CODES.put('c', "91");
+        ANSI_CODES.put('d', "95");
+        ANSI_CODES.put('e', "93");
+        ANSI_CODES.put('f', "97");
+        ANSI_CODES.put('l', "1");
+        ANSI_CODES.put('o', "3");
+        ANSI_CODES.put('n', "4");
+        ANSI_CODES.put('m', "9");
+        ANSI_CODES.put('r', "0");
+    }
+
+    private final Object[][] programs;
+    private final ThreadLocal<State> state = ThreadLocal.withInitial(State::new);
+
+    private ColorizedLayout(Configuration configuration, Object[][] programs) {
+        super(configuration, null, null);
+        this.programs = programs;
+    }
+
+    /**
+     * Build the layout from config/NoConsoleSpam/colorize.json, or the bundled copy if there is none
+     *
+     * @param configuration The Log4j configuration the layout belongs to
+     * @return The compiled layout
+     */
+    public static ColorizedLayout load(Configuration configuration) throws Exception {
+        JsonObject scheme;
+        File configFile = new File(CONFIG_PATH);
+        if (configFile.exists()) {
+            try (Reader reader = new FileReader(configFile, StandardCharsets.UTF_8)) {
+                scheme = new Gson().fromJson(reader, JsonObject.class);
+            }
+        } else {
+            InputStream stream = ColorizedLayout.class.getClassLoader().getResourceAsStream(RESOURCE_PATH);
+            if (stream == null) {
+                throw new IllegalStateException("Could not find " + RESOURCE_PATH);
+            }
+            try (Reader reader = new InputStreamReader(stream, StandardCharsets.UTF_8)) {
+                scheme = new Gson().fromJson(reader, JsonObject.class);
+            }
+        }
+        return new ColorizedLayout(configuration, compile(scheme));
+    }
+
+    private static Object[][] compile(JsonObject scheme) {
+        JsonObject console = scheme.has("console") ? scheme.getAsJsonObject("console") : new JsonObject();
+        JsonObject formats = scheme.has("formats") ? scheme.getAsJsonObject("formats") : new JsonObject();
+        String format = getString(formats, "loggerFormat", DEFAULT_FORMAT);
+        String timestamp = getString(formats, "timestamp", DEFAULT_TIMESTAMP);
+
+        Object[][] compiled = new Object[SECTIONS.length][];
+        for (int level = 0; level < SECTIONS.length; level++) {
+            JsonObject colors = console.has(SECTIONS[level]) ? console.getAsJsonObject(SECTIONS[level]) : new JsonObject();
+            String expanded = format
+                    .replace("%timestamp%", timestamp)
+                    .replace("%prefix%", getString(colors, "prefix", "[" + SECTIONS[level].toUpperCase() + "]"))
+                    .replace("%loggerName%", getString(colors, "loggerName", "") + "%loggerName%" + "§r")
+                    .replace("%text%", getString(colors, "text", "") + "%text%" + "§r");
+
+            List<Object> program = new ArrayList<>();
+            StringBuilder literal = new StringBuilder();
+            int position = 0;
+            while (position < expanded.length()) {
+                Object operation = null;
+                int length = 0;
+                if (expanded.startsWith("%date%", position)) {
+                    operation = DATE;
+                    length = 6;
+                } else if (expanded.startsWith("%loggerName%", position)) {
+                    operation = LOGGER_NAME;
+                    length = 12;
+                } else if (expanded.startsWith("%text%", position)) {
+                    operation = TEXT;
+                    length = 6;
+                }
+
+                if (operation != null) {
+                    if (literal.length() > 0) {
+                        program.add(toAnsi(literal.toString()).getBytes(StandardCharsets.UTF_8));
+                        literal.setLength(0);
+                    }
+                    program.add(operation);
+                    position += length;
+                } else {
+                    literal.append(expanded.charAt(position++));
+                }
+            }
+            // Never leave a color active past the end of the line
+            if (!expanded.endsWith("§r")) {
+                literal.append("§r");
+            }
+            if (literal.length() > 0) {
+                program.add(toAnsi(literal.toString()).getBytes(StandardCharsets.UTF_8));
+            }
+            compiled[level] = program.toArray();
+        }
+        return compiled;
+    }
+
+    private static String getString(JsonObject object, String key, String fallback) {
+        return object.has(key) ? object.get(key).getAsString() : fallback;
+    }
+
+    /**
+     * Translate Minecraft § formatting codes into ANSI escape sequences
+     */
+    static String toAnsi(String text) {
+        StringBuilder result = new StringBuilder(text.length() + 16);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '§' && i + 1 < text.length()) {
+                String code = ANSI_CODES.get(Character.toLowerCase(text.charAt(i + 1)));
+                if (code != null) {
+                    result.append("\u001B[").append(code).append('m');
+                }
+                i++;
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    private static int programIndex(Level level) {
+        int intLevel = level != null ? level.intLevel() : Level.INFO.intLevel();
+        if (intLevel <= Level.ERROR.intLevel()) {
+            return ERROR;
+        } else if (intLevel <= Level.WARN.intLevel()) {
+            return WARNING;
+        } else if (intLevel <= Level.INFO.intLevel()) {
+            return INFO;
+        }
+        return DEBUG;
+    }
+
+    @Override
+    public void encode(LogEvent event, ByteBufferDestination destination) {
+        State current = state.get();
+        format(event, current);
+        destination.writeBytes(current.bytes.array(), 0, current.bytes.position());
+        current.release();
+    }
+
+    @Override
+    public byte[] toByteArray(LogEvent event) {
+        State current = state.get();
+        format(event, current);
+        byte[] result = Arrays.copyOf(current.bytes.array(), current.bytes.position());
+        current.release();
+        return result;
+    }
+
+    @Override
+    public String toSerializable(LogEvent event) {
+        return new String(toByteArray(event), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String getContentType() {
+        return "text/plain; charset=UTF-8";
+    }
+
+    private void format(LogEvent event, State current) {
+        current.bytes.clear();
+        for (Object segment : programs[programIndex(event.getLevel())]) {
+            if (segment instanceof byte[] bytes) {
+                current.put(bytes);
+            } else if (segment == DATE) {
+                current.put(current.time(event.getTimeMillis()));
+            } else if (segment == LOGGER_NAME) {
+                current.text.setLength(0);
+                current.text.append(event.getLoggerName());
+                current.encodeText();
+            } else if (segment == TEXT) {
+                current.text.setLength(0);
+                Message message = event.getMessage();
+                if (message instanceof StringBuilderFormattable formattable) {
+                    formattable.formatTo(current.text);
+                } else if (message != null) {
+                    current.text.append(message.getFormattedMessage());
+                }
+                current.encodeText();
+            }
+        }
+        current.put(LINE_SEPARATOR);
+
+        Throwable thrown = event.getThrown();
+        if (thrown != null) {
+            // Exceptions are rare enough that the extra allocations don't matter
+            current.text.setLength(0);
+            thrown.printStackTrace(new PrintWriter(new StringBuilderWriter(current.text)));
+            current.encodeText();
+        }
+    }
+
+    /**
+     * Buffers reused by one thread for every event it formats
+     */
+    private static class State {
+        private static final int MAX_RETAINED_CHARS = 64 * 1024;
+
+        final StringBuilder text = new StringBuilder(256);
+        final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer bytes = ByteBuffer.allocate(1024);
+        char[] chars = new char[256];
+        CharBuffer charBuffer = CharBuffer.wrap(chars);
+        long timeSecond = Long.MIN_VALUE;
+        byte[] timeBytes;
+
+        byte[] time(long millis) {
+            long second = Math.floorDiv(millis, 1000L);
+            if (second != timeSecond) {
+                timeBytes = TIME_FORMAT.format(Instant.ofEpochMilli(millis)).getBytes(StandardCharsets.UTF_8);
+                timeSecond = second;
+            }
+            return timeBytes;
+        }
+
+        void put(byte[] data) {
+            if (bytes.remaining() < data.length) {
+                grow(data.length);
+            }
+            bytes.put(data);
+        }
+
+        void encodeText() {
+            int length = text.length();
+            if (chars.length < length) {
+                chars = new char[Math.max(length, chars.length * 2)];
+                charBuffer = CharBuffer.wrap(chars);
+            }
+            text.getChars(0, length, chars, 0);
+            charBuffer.clear().limit(length);
+
+            encoder.reset();
+            while (true) {
+                CoderResult result = encoder.encode(charBuffer, bytes, true);
+                if (result.isOverflow()) {
+                    grow(Math.max(charBuffer.remaining() * 3, 64));
+                    continue;
+                }
+                if (encoder.flush(bytes).isOverflow()) {
+                    grow(16);
+                    continue;
+                }
+                break;
+            }
+        }
+
+        /**
+         * Drop buffers a huge message grew, once the event is written, so a single dump
+         * doesn't pin them to this thread forever
+         */
+        void release() {
+            if (text.capacity() > MAX_RETAINED_CHARS) {
+                text.setLength(0);
+                text.trimToSize();
+            }
+            if (chars.length > MAX_RETAINED_CHARS) {
+                chars = new char[256];
+                charBuffer = CharBuffer.wrap(chars);
+            }
+            if (bytes.capacity() > MAX_RETAINED_CHARS) {
+                bytes = ByteBuffer.allocate(1024);
+            }
+        }
+
+        private void grow(int extra) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(bytes.capacity() * 2, bytes.position() + extra));
+            bytes.flip();
+            larger.put(bytes);
+            bytes = larger;
+        }
+    }
+}
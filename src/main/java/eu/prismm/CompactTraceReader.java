@@ -0,0 +1,241 @@
+package eu.prismm;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Renders ".ctrace" files written by CompactTraceWriter back into the same text layout as
+ * the individual capture files.
+ *
+ * Usage: java -cp noconsolespam.jar eu.prismm.CompactTraceReader &lt;file.ctrace&gt;...
+ */
+public class CompactTraceReader {
+    private final ByteBuffer data;
+    private final List<String> frames = new ArrayList<>();
+
+    public CompactTraceReader(ByteBuffer data) {
+        this.data = data;
+    }
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println("Usage: CompactTraceReader <file.ctrace>...");
+            System.exit(2);
+        }
+        PrintWriter out = new PrintWriter(System.out);
+        for (String arg : args) {
+            try {
+                new CompactTraceReader(ByteBuffer.wrap(Files.readAllBytes(Path.of(arg)))).render(out);
+            } catch (IOException | RuntimeException e) {
+                out.flush();
+                System.err.println("Failed to read " + arg + ": " + e.getMessage());
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Render every capture in the file
+     *
+     * @param out Where to write the text
+     * @return The number of captures rendered
+     */
+    public int render(PrintWriter out) throws IOException {
+        byte[] magic = new byte[CompactTraceWriter.MAGIC.length];
+        data.get(magic);
+        if (!Arrays.equals(magic, CompactTraceWriter.MAGIC)) {
+            throw new IOException("Not a compact trace file");
+        }
+        int version = readVarInt();
+        if (version != CompactTraceWriter.FORMAT_VERSION) {
+            throw new IOException("Unsupported compact trace version " + version);
+        }
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        int captures = 0;
+        while (data.hasRemaining()) {
+            int type = readVarInt();
+            if (type == CompactTraceWriter.RECORD_FRAME) {
+                frames.add(readString());
+            } else if (type == CompactTraceWriter.RECORD_CAPTURE) {
+                if (captures > 0) {
+                    out.println();
+                    out.println("----------------------------------------");
+                    out.println();
+                }
+                renderCapture(out, dateFormat);
+                captures++;
+            } else {
+                throw new IOException("Corrupt compact trace record at offset " + data.position());
+            }
+        }
+        return captures;
+    }
+
+    private void renderCapture(PrintWriter out, SimpleDateFormat dateFormat) {
+        long time = readVarLong();
+        String exceptionClass = readString();
+        String category = readString();
+        String source = readString();
+        String message = readString();
+        Node exception = readThrowable(null);
+
+        out.println("Date: " + dateFormat.format(new Date(time)));
+        out.println("Exception Type: " + exceptionClass);
+        out.println("Category: " + (category != null ? category : "Uncategorized"));
+        out.println("Source: " + source);
+        out.println("Message: " + message);
+        out.println("Exception Message: " + exception.message());
+        if (exception.cause != null) {
+            Node cause = exception.cause;
+            out.println("Caused by: " + (cause.message() != null ? cause.description : cause.description + ": null"));
+        }
+        out.println("\nStackTrace:");
+        print(out, exception, "", "");
+
+        if (!exception.suppressed.isEmpty()) {
+            out.println("\nSuppressed Exceptions:");
+            for (Node suppressed : exception.suppressed) {
+                out.println("  Suppressed: " + suppressed.description);
+                printStandalone(out, suppressed);
+            }
+        }
+    }
+
+    /**
+     * Mirrors the layout of Throwable.printStackTrace
+     */
+    private void print(PrintWriter out, Node node, String caption, String prefix) {
+        if (node.circular) {
+            out.println(prefix + caption + "[CIRCULAR REFERENCE: " + node.description + "]");
+            return;
+        }
+        out.println(prefix + caption + node.description);
+        for (int frame : node.frames) {
+            out.println(prefix + "\tat " + frames.get(frame));
+        }
+        if (node.framesInCommon != 0) {
+            out.println(prefix + "\t... " + node.framesInCommon + " more");
+        }
+        for (Node suppressed : node.suppressed) {
+            print(out, suppressed, "Suppressed: ", prefix + "\t");
+        }
+        if (node.cause != null) {
+            print(out, node.cause, "Caused by: ", prefix);
+        }
+    }
+
+    /**
+     * Print a nested throwable the way its own printStackTrace would, with all frames it
+     * shares with its enclosing trace written out again
+     */
+    private void printStandalone(PrintWriter out, Node node) {
+        if (node.circular) {
+            print(out, node, "", "");
+            return;
+        }
+        out.println(node.description);
+        for (int frame : node.fullFrames()) {
+            out.println("\tat " + frames.get(frame));
+        }
+        for (Node suppressed : node.suppressed) {
+            print(out, suppressed, "Suppressed: ", "\t");
+        }
+        if (node.cause != null) {
+            print(out, node.cause, "Caused by: ", "");
+        }
+    }
+
+    private Node readThrowable(Node enclosing) {
+        Node node = new Node();
+        node.enclosing = enclosing;
+        node.circular = readVarInt() == 0;
+        node.description = readString();
+        if (node.circular) {
+            return node;
+        }
+        int unique = readVarInt();
+        node.frames = new int[unique];
+        for (int i = 0; i < unique; i++) {
+            node.frames[i] = readVarInt();
+        }
+        node.framesInCommon = readVarInt();
+        int suppressed = readVarInt();
+        for (int i = 0; i < suppressed; i++) {
+            node.suppressed.add(readThrowable(node));
+        }
+        if (readVarInt() != 0) {
+            node.cause = readThrowable(node);
+        }
+        return node;
+    }
+
+    private String readString() {
+        int length = readVarInt();
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length - 1];
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int readVarInt() {
+        return (int) readVarLong();
+    }
+
+    private long readVarLong() {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * A decoded throwable
+     */
+    private static class Node {
+        boolean circular;
+        String description;
+        int[] frames = new int[0];
+        int framesInCommon;
+        final List<Node> suppressed = new ArrayList<>();
+        Node cause;
+        Node enclosing;
+
+        /**
+         * @return The frame ids including the frames folded into the enclosing trace
+         */
+        int[] fullFrames() {
+            if (framesInCommon == 0 || enclosing == null) {
+                return frames;
+            }
+            int[] outer = enclosing.fullFrames();
+            int[] full = Arrays.copyOf(frames, frames.length + framesInCommon);
+            System.arraycopy(outer, outer.length - framesInCommon, full, frames.length, framesInCommon);
+            return full;
+        }
+
+        /**
+         * @return The message part of "class: message", or null if there is none
+         */
+        String message() {
+            int separator = description.indexOf(": ");
+            return separator >= 0 ? description.substring(separator + 2) : null;
+        }
+    }
+}
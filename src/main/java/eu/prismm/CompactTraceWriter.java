@@ -0,0 +1,176 @@
+package eu.prismm;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Encodes captures into the compact ".ctrace" format.
+ *
+ * Every distinct stack frame is written once per file as a dictionary entry and traces are
+ * stored as varint frame ids. Like Throwable.printStackTrace, frames a cause shares with its
+ * enclosing trace are folded into a "... n more" count. Dictionary entries are written in
+ * front of the capture that first uses them, so a file can be read front to back with no
+ * other state. CompactTraceReader renders the text again.
+ *
+ * One writer belongs to one file and is only used from the writer thread that owns the file.
+ */
+public class CompactTraceWriter {
+    static final byte[] MAGIC = {'N', 'C', 'S', 'T'};
+    static final int FORMAT_VERSION = 1;
+    public static final String EXTENSION = ".ctrace";
+
+    static final int RECORD_FRAME = 'F';
+    static final int RECORD_CAPTURE = 'C';
+    // Limits how deep nested causes and suppressed exceptions are followed
+    static final int MAX_NESTING = 64;
+
+    private final Path file;
+    private final Map<StackTraceElement, Integer> frameIds = new HashMap<>();
+    private byte[] buffer = new byte[8192];
+    private int length;
+    private long bytesWritten;
+
+    public CompactTraceWriter(Path file) {
+        this.file = file;
+        // The header goes out with the first capture
+        writeBytes(MAGIC);
+        writeVarInt(FORMAT_VERSION);
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return The number of bytes encoded into this file so far
+     */
+    public long getBytesWritten() {
+        return bytesWritten + length;
+    }
+
+    /**
+     * Encode one capture, including any new dictionary entries it needs
+     *
+     * @return A buffer with the bytes to append to the file. It is only valid until the next call.
+     */
+    public ByteBuffer encode(long time, String exceptionClass, String category, String source,
+                             String message, Throwable exception) {
+        // Frames are defined up front, so the capture record itself only holds ids
+        defineFrames(exception, Collections.newSetFromMap(new IdentityHashMap<>()), 0);
+
+        writeVarInt(RECORD_CAPTURE);
+        writeVarLong(time);
+        writeString(exceptionClass);
+        writeString(category);
+        writeString(source);
+        writeString(message);
+        writeThrowable(exception, null, Collections.newSetFromMap(new IdentityHashMap<>()), 0);
+
+        ByteBuffer encoded = ByteBuffer.wrap(buffer, 0, length);
+        bytesWritten += length;
+        length = 0;
+        return encoded;
+    }
+
+    private void defineFrames(Throwable throwable, Set<Throwable> seen, int depth) {
+        if (throwable == null || depth > MAX_NESTING || !seen.add(throwable)) {
+            return;
+        }
+        for (StackTraceElement element : throwable.getStackTrace()) {
+            if (!frameIds.containsKey(element)) {
+                frameIds.put(element, frameIds.size());
+                writeVarInt(RECORD_FRAME);
+                writeString(element.toString());
+            }
+        }
+        for (Throwable suppressed : throwable.getSuppressed()) {
+            defineFrames(suppressed, seen, depth + 1);
+        }
+        defineFrames(throwable.getCause(), seen, depth + 1);
+    }
+
+    /**
+     * Throwable layout: description, unique frame count, frame ids, frames in common with the
+     * enclosing trace, suppressed throwables, then a flag and the cause. A throwable that was
+     * already written is stored as a circular reference marker, as printStackTrace does.
+     */
+    private void writeThrowable(Throwable throwable, StackTraceElement[] enclosing, Set<Throwable> seen, int depth) {
+        if (!seen.add(throwable) || depth > MAX_NESTING) {
+            writeVarInt(0);
+            writeString(throwable.toString());
+            return;
+        }
+        writeVarInt(1);
+        writeString(throwable.toString());
+
+        StackTraceElement[] trace = throwable.getStackTrace();
+        int unique = trace.length;
+        if (enclosing != null) {
+            int n = enclosing.length - 1;
+            while (unique > 0 && n >= 0 && trace[unique - 1].equals(enclosing[n])) {
+                unique--;
+                n--;
+            }
+        }
+        writeVarInt(unique);
+        for (int i = 0; i < unique; i++) {
+            writeVarInt(frameIds.get(trace[i]));
+        }
+        writeVarInt(trace.length - unique);
+
+        Throwable[] suppressed = throwable.getSuppressed();
+        writeVarInt(suppressed.length);
+        for (Throwable s : suppressed) {
+            writeThrowable(s, trace, seen, depth + 1);
+        }
+
+        Throwable cause = throwable.getCause();
+        writeVarInt(cause != null ? 1 : 0);
+        if (cause != null) {
+            writeThrowable(cause, trace, seen, depth + 1);
+        }
+    }
+
+    private void writeString(String value) {
+        if (value == null) {
+            writeVarInt(0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        // 0 is reserved for null
+        writeVarInt(bytes.length + 1);
+        writeBytes(bytes);
+    }
+
+    private void writeBytes(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void writeVarInt(int value) {
+        writeVarLong(value & 0xFFFFFFFFL);
+    }
+
+    private void writeVarLong(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[length++] = (byte) value;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package eu.prismm;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes VirtualMachineErrors such as OutOfMemoryError and StackOverflowError without
+ * allocating on the heap.
+ *
+ * The direct buffer, the file channel and the header lines are all set up when the capture
+ * is created. Writing a capture only copies characters into the buffer one by one and
+ * writes the buffer to the channel, synchronously on the calling thread, so it neither waits
+ * behind queued captures nor depends on a writer thread that may itself be out of memory.
+ * The only allocation left is Throwable.getStackTrace(); if even that fails, the capture
+ * is written without frames. Every capture is forced to disk and writes are serialized, so
+ * this lane is only for errors after which the JVM may not get much further.
+ */
+public final class EmergencyCapture {
+    public static final String FILENAME = "emergency.log";
+    private static final int BUFFER_SIZE = 256 * 1024;
+    // Room kept for the truncation note
+    private static final int RESERVE = 128;
+    private static final int MAX_CAUSES = 8;
+
+    private static final byte[] HEADER = bytes("==== EMERGENCY CAPTURE ");
+    private static final byte[] HEADER_END = bytes(" ====\n");
+    private static final byte[] LOGGER_LINE = bytes("Logger: ");
+    private static final byte[] THREAD_LINE = bytes("Thread: ");
+    private static final byte[] FRAME = bytes("\tat ");
+    private static final byte[] CAUSED_BY = bytes("Caused by: ");
+    private static final byte[] NO_FRAMES = bytes("\t(stack trace unavailable)\n");
+    private static final byte[] TRUNCATED = bytes("\t... truncated\n");
+    private static final byte[] UNKNOWN = bytes("Unknown Source");
+    private static final byte[] NATIVE = bytes("Native Method");
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final Path file;
+    private FileChannel channel;
+    private final long maxLogSize;
+    private boolean full;
+    private final Throwable[] causes = new Throwable[MAX_CAUSES];
+    // The last Error written, so the same Error reported twice is written once; weak, so it
+    // doesn't keep the Error and its causes alive
+    private volatile WeakReference<Throwable> lastCaptured = new WeakReference<>(null);
+
+    /**
+     * @param file The file emergency captures are appended to
+     * @param maxLogSize Size at which the file is started over
+     */
+    public EmergencyCapture(Path file, long maxLogSize) throws IOException {
+        this.file = file;
+        this.channel = open(file);
+        this.maxLogSize = maxLogSize;
+    }
+
+    private static FileChannel open(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param throwable A throwable
+     * @return true if the throwable was the last one written by this lane
+     */
+    public boolean isCaptured(Throwable throwable) {
+        return throwable == lastCaptured.get();
+    }
+
+    /**
+     * Write an Error synchronously
+     *
+     * @param loggerName The logger the Error was logged with, may be null
+     * @param threadName The thread it was logged on, may be null
+     * @param error The Error
+     * @return true if it was written
+     */
+    public boolean capture(String loggerName, String threadName, Throwable error) {
+        if (error == lastCaptured.get()) {
+            return true;
+        }
+        synchronized (buffer) {
+            try {
+                buffer.clear();
+                full = false;
+                put(HEADER);
+                putTimestamp(System.currentTimeMillis());
+                put(HEADER_END);
+                if (loggerName != null) {
+                    put(LOGGER_LINE);
+                    put(loggerName);
+                    put('\n');
+                }
+                if (threadName != null) {
+                    put(THREAD_LINE);
+                    put(threadName);
+                    put('\n');
+                }
+
+                int depth = 0;
+                for (Throwable current = error; current != null && depth < MAX_CAUSES; current = current.getCause()) {
+                    if (seen(current, depth)) {
+                        break;
+                    }
+                    causes[depth++] = current;
+                    if (current != error) {
+                        put(CAUSED_BY);
+                    }
+                    putThrowable(current);
+                }
+                for (int i = 0; i < depth; i++) {
+                    causes[i] = null;
+                }
+
+                buffer.flip();
+                if (!channel.isOpen()) {
+                    // An interrupted writer closes the channel; reopening is the one step that allocates
+                    channel = open(file);
+                }
+                if (channel.size() >= maxLogSize) {
+                    channel.truncate(0);
+                }
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                // The JVM may not survive long enough for the OS to flush on its own
+                channel.force(false);
+                // Written already; if even this small allocation fails, only the deduplication is lost
+                lastCaptured = new WeakReference<>(error);
+                return true;
+            } catch (IOException | RuntimeException | VirtualMachineError e) {
+                return false;
+            }
+        }
+    }
+
+    private boolean seen(Throwable throwable, int depth) {
+        for (int i = 0; i < depth; i++) {
+            if (causes[i] == throwable) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void putThrowable(Throwable throwable) {
+        put(throwable.getClass().getName());
+        String message = throwable.getMessage();
+        if (message != null) {
+            put(':');
+            put(' ');
+            put(message);
+        }
+        put('\n');
+
+        StackTraceElement[] trace;
+        try {
+            trace = throwable.getStackTrace();
+        } catch (OutOfMemoryError e) {
+            put(NO_FRAMES);
+            return;
+        }
+        for (StackTraceElement frame : trace) {
+            if (full) {
+                break;
+            }
+            put(FRAME);
+            put(frame.getClassName());
+            put('.');
+            put(frame.getMethodName());
+            put('(');
+            if (frame.isNativeMethod()) {
+                put(NATIVE);
+            } else if (frame.getFileName() == null) {
+                put(UNKNOWN);
+            } else {
+                put(frame.getFileName());
+                if (frame.getLineNumber() >= 0) {
+                    put(':');
+                    putNumber(frame.getLineNumber(), 1);
+                }
+            }
+            put(')');
+            put('\n');
+        }
+    }
+
+    /**
+     * Write an ISO-8601 UTC timestamp, computing the calendar date without java.time
+     */
+    private void putTimestamp(long millis) {
+        long days = Math.floorDiv(millis, 86_400_000L);
+        long millisOfDay = Math.floorMod(millis, 86_400_000L);
+
+        // Days since 1970-01-01 to year, month and day in the proleptic Gregorian calendar
+        long z = days + 719_468;
+        long era = Math.floorDiv(z, 146_097);
+        long dayOfEra = z - era * 146_097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36_524 - dayOfEra / 146_096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        long day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        long month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        putNumber(year, 4);
+        put('-');
+        putNumber(month, 2);
+        put('-');
+        putNumber(day, 2);
+        put('T');
+        putNumber(millisOfDay / 3_600_000, 2);
+        put(':');
+        putNumber(millisOfDay / 60_000 % 60, 2);
+        put(':');
+        putNumber(millisOfDay / 1000 % 60, 2);
+        put('.');
+        putNumber(millisOfDay % 1000, 3);
+        put('Z');
+    }
+
+    private void putNumber(long value, int minDigits) {
+        if (value < 0) {
+            put('-');
+            value = -value;
+        }
+        long divisor = 1;
+        int digits = 1;
+        while (divisor <= value / 10) {
+            divisor *= 10;
+            digits++;
+        }
+        for (int i = digits; i < minDigits; i++) {
+            put('0');
+        }
+        for (; divisor > 0; divisor /= 10) {
+            put((char) ('0' + value / divisor % 10));
+        }
+    }
+
+    /**
+     * @return true if the bytes fit; otherwise the truncation note is written once and
+     *         everything after it is skipped
+     */
+    private boolean ensure(int bytes) {
+        if (full) {
+            return false;
+        }
+        if (buffer.remaining() - RESERVE < bytes) {
+            buffer.put(TRUNCATED);
+            full = true;
+            return false;
+        }
+        return true;
+    }
+
+    private void put(byte[] bytes) {
+        if (ensure(bytes.length)) {
+            buffer.put(bytes);
+        }
+    }
+
+    /**
+     * Encode a string as UTF-8 straight into the buffer, cutting it off if the buffer is full
+     */
+    private void put(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (!ensure(4)) {
+                return;
+            }
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private void put(char c) {
+        if (ensure(1)) {
+            buffer.put((byte) c);
+        }
+    }
+
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing left to do while shutting down
+        }
+    }
+}
@@ -4,10 +4,12 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Arrays;
@@ -15,12 +17,32 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 public class ExceptionLogger {
     private static final Logger LOGGER = LogManager.getLogger(NoConsoleSpam.MOD_ID);
     private static final String ERROR_DIRECTORY = "Console Errors";
     private final FilterConfig.ExceptionSettings settings;
-    private boolean isInitialized = false;
+    // Only started when exceptions are captured
+    private final ExceptionWriterPool writers;
+    private FingerprintIndex fingerprints;
+    private CaptureIndex captureIndex;
+    private CaptureExporter exporter;
+    private EmergencyCapture emergency;
+    // Compact trace writer per source directory, only used by the writer thread owning that directory
+    private final Map<Path, CompactTraceWriter> compactWriters = new ConcurrentHashMap<>();
+    // JSON lines writer per source directory, with the same ownership as the compact writers
+    private final Map<Path, JsonLinesCaptureWriter> jsonLinesWriters = new ConcurrentHashMap<>();
+    // Source per fingerprint, so the stack trace is only searched for a mod package once per call site
+    private final BoundedCache<Long, String> sourceCache = CacheBudget.global().newCache("exceptionSources", 20,
+            (fingerprint, source) -> 16 + CacheBudget.stringBytes(source));
+    // Category per exception class; NO_CATEGORY stands in for null
+    private final BoundedCache<Class<?>, String> categoryCache = CacheBudget.global().newCache("exceptionCategories", 5,
+            (type, category) -> 16);
+    private static final String NO_CATEGORY = "";
+    private volatile FilterStatistics statistics;
+    private volatile boolean isInitialized = false;
     
     // Pattern to match common mod/plugin package patterns
     private static final Pattern MOD_PACKAGE_PATTERN = Pattern.compile(
@@ -63,10 +85,21 @@ public class ExceptionLogger {
     
     public ExceptionLogger(FilterConfig.ExceptionSettings settings) {
         this.settings = settings;
+        this.writers = settings.isCaptureExceptions() ? new ExceptionWriterPool(settings.getWriterThreads()) : null;
         if (settings.isCaptureExceptions()) {
             try {
-                ensureErrorDirectoryExists();
+                // Set first so a failed directory creation can switch it back off
                 isInitialized = true;
+                ensureErrorDirectoryExists();
+                openEmergencyCapture();
+                if (settings.isDeduplicateAcrossRestarts()) {
+                    openFingerprintIndex();
+                }
+                if (settings.isIndexCaptures()) {
+                    openCaptureIndex();
+                }
+                startExporter();
+                ShutdownSequence.register(ShutdownSequence.CAPTURES, "exception writers", this::shutdown);
                 LOGGER.info("Exception logger initialized with directory: {}", new File(ERROR_DIRECTORY).getAbsolutePath());
             } catch (Exception e) {
                 LOGGER.error("Failed to initialize exception logger", e);
@@ -86,26 +119,66 @@ public class ExceptionLogger {
         }
     }
     
+    private void openEmergencyCapture() {
+        if (!isInitialized || !settings.isCaptureErrors()) {
+            return;
+        }
+        try {
+            // Opened now, because once the heap is exhausted there may be no memory to open it
+            emergency = new EmergencyCapture(Path.of(ERROR_DIRECTORY, EmergencyCapture.FILENAME), settings.getMaxLogSize());
+        } catch (Exception e) {
+            LOGGER.error("Failed to open the emergency capture file", e);
+            emergency = null;
+        }
+    }
+    
+    private void openFingerprintIndex() {
+        try {
+            fingerprints = FingerprintIndex.open(Path.of(ERROR_DIRECTORY));
+            LOGGER.debug("Loaded exception fingerprint index with {} known exceptions", fingerprints.size());
+        } catch (Exception e) {
+            // Without the index every exception is simply written in full
+            LOGGER.error("Failed to open exception fingerprint index", e);
+            fingerprints = null;
+        }
+    }
+    
+    private void openCaptureIndex() {
+        try {
+            captureIndex = CaptureIndex.open(Path.of(ERROR_DIRECTORY));
+        } catch (Exception e) {
+            LOGGER.error("Failed to open exception capture index", e);
+            captureIndex = null;
+        }
+    }
+    
+    private void startExporter() {
+        try {
+            exporter = CaptureExporter.fromSettings(settings, this::categorizeException);
+        } catch (Exception e) {
+            LOGGER.error("Failed to start exception capture exporter", e);
+            exporter = null;
+        }
+    }
+    
     /**
-     * Create a directory for a specific exception source if it doesn't exist
+     * Create a directory for a specific exception source if it doesn't exist.
+     * Directory creation is memoized by the writer pool, so this only touches the
+     * filesystem the first time a source is seen.
      * 
      * @param source The source identifier (mod/plugin name or class)
-     * @return The directory File object
+     * @return The directory to write into
      */
-    private File ensureSourceDirectoryExists(String source) {
+    private Path ensureSourceDirectoryExists(String source) {
+        Path errorDir = Path.of(ERROR_DIRECTORY);
         if (!settings.isOrganizeBySource()) {
-            return new File(ERROR_DIRECTORY);
+            return errorDir;
         }
         
-        File sourceDir = new File(ERROR_DIRECTORY, source);
-        if (!sourceDir.exists()) {
-            if (sourceDir.mkdirs()) {
-                LOGGER.debug("Created source-specific error directory: {}", sourceDir.getAbsolutePath());
-            } else {
-                LOGGER.error("Failed to create source-specific error directory: {}", sourceDir.getAbsolutePath());
-                // Fall back to main error directory
-                return new File(ERROR_DIRECTORY);
-            }
+        Path sourceDir = errorDir.resolve(source);
+        if (!writers.ensureDirectory(sourceDir)) {
+            // Fall back to main error directory
+            return errorDir;
         }
         return sourceDir;
     }
@@ -154,6 +227,35 @@ public class ExceptionLogger {
         return source.replaceAll("[^a-zA-Z0-9.-]", "_");
     }
     
+    /**
+     * Count captures per source in the filter statistics
+     *
+     * @param statistics The statistics, or null to stop counting
+     */
+    public void setStatistics(FilterStatistics statistics) {
+        this.statistics = statistics;
+    }
+    
+    private void recordCapture(String source) {
+        FilterStatistics current = statistics;
+        if (current != null) {
+            current.recordCapture(source);
+        }
+    }
+    
+    /**
+     * @param throwable The exception to analyze
+     * @param fingerprint Its fingerprint, or 0 if it hasn't been computed
+     * @return The source of the exception, cached per fingerprint
+     */
+    private String sourceOf(Throwable throwable, long fingerprint) {
+        if (throwable == null) {
+            return extractExceptionSource(null);
+        }
+        long key = fingerprint != 0 ? fingerprint : ThrowableFingerprint.of(throwable);
+        return sourceCache.get(key, k -> extractExceptionSource(throwable));
+    }
+    
     /**
      * Categorize the exception based on its class hierarchy
      * 
@@ -165,6 +267,15 @@ public class ExceptionLogger {
             return null;
         }
         
+        // The category only depends on the class
+        String category = categoryCache.get(throwable.getClass(), type -> {
+            String found = categorizeByClass(throwable);
+            return found != null ? found : NO_CATEGORY;
+        });
+        return category.isEmpty() ? null : category;
+    }
+    
+    private String categorizeByClass(Throwable throwable) {
         String className = throwable.getClass().getName();
         
         // Check against each category pattern
@@ -265,84 +376,276 @@ public class ExceptionLogger {
     }
     
     /**
-     * Log an exception to a file
+     * Log an exception to a file. The file is written asynchronously by the writer
+     * thread that owns the exception's source.
      * 
      * @param message The log message associated with the exception
      * @param exception The exception to log
      */
     public void logException(String message, Throwable exception) {
+        logException(null, null, null, message, exception);
+    }
+    
+    /**
+     * Log an exception together with the event it was logged with
+     * 
+     * @param loggerName The name of the logger, may be null
+     * @param level The level of the event, may be null
+     * @param threadName The thread that logged the event, may be null
+     * @param message The formatted log message
+     * @param exception The exception to log
+     */
+    public void logException(String loggerName, String level, String threadName, String message, Throwable exception) {
+        // VirtualMachineErrors are written synchronously, ahead of anything queued for the writers
+        if (exception instanceof VirtualMachineError && captureEmergency(loggerName, threadName, exception)) {
+            // Everything below allocates, which is exactly what fails after an OutOfMemoryError
+            return;
+        }
         if (!isInitialized || !settings.isCaptureExceptions() || !shouldCaptureException(exception)) {
             return;
         }
         
+        // Skip the full trace of exceptions already written for this modpack version
+        long fingerprint = 0;
+        boolean writeTrace = true;
+        if (fingerprints != null) {
+            fingerprint = ThrowableFingerprint.of(exception);
+            writeTrace = fingerprints.record(fingerprint, System.currentTimeMillis(), ModpackVersion.current());
+            if (!writeTrace && captureIndex == null && exporter == null) {
+                recordCapture(sourceOf(exception, fingerprint));
+                return;
+            }
+        }
+        
         // Extract the source from the exception
-        String source = extractExceptionSource(exception);
+        String source = sourceOf(exception, fingerprint);
+        recordCapture(source);
+        String contextualMessage = contextualMessage(loggerName, level, threadName, message);
+        Date capturedAt = new Date();
+        long capturedFingerprint = fingerprint;
+        // Other Errors go ahead of the exceptions already queued for their writer
+        boolean urgent = exception instanceof Error;
+        
+        if (exporter != null) {
+            exporter.offer(new CaptureExporter.Capture(capturedAt.getTime(), source, contextualMessage, exception,
+                    fingerprint, !writeTrace));
+        }
+        if (!writeTrace && captureIndex == null) {
+            return;
+        }
+        
+        // All captures for a source go through the same writer, so they stay in order.
+        // Without per-source directories everything shares one directory and one writer.
+        String shardKey = settings.isOrganizeBySource() ? source : ERROR_DIRECTORY;
+        if (writeTrace && settings.isJsonLinesFormat()) {
+            submitWrite(shardKey, source, urgent, shard -> writeJsonLinesCapture(shard, new JsonLinesCaptureWriter.Capture(
+                    capturedAt.getTime(), source, categorizeException(exception), capturedFingerprint,
+                    loggerName, threadName, level, message, exception)));
+        } else if (writeTrace) {
+            submitWrite(shardKey, source, urgent, shard -> writeCapture(shard, source, contextualMessage, exception, capturedAt, capturedFingerprint));
+        } else {
+            // Still index the occurrence, pointing at the capture that holds the full trace
+            writers.submit(shardKey, shard -> indexCapture(source, exception, capturedAt,
+                    fingerprints.getRepresentativeFile(capturedFingerprint)), urgent);
+        }
+    }
+    
+    /**
+     * Write a VirtualMachineError such as OutOfMemoryError through the heap-free emergency lane.
+     * Called before the message of the event is even formatted. Other Errors, such as the
+     * LinkageErrors modded servers log over and over, take the normal path, where the capture
+     * settings and fingerprint deduplication apply, ahead of the exceptions already queued.
+     * 
+     * @param loggerName The name of the logger, may be null
+     * @param threadName The thread that logged the event, may be null
+     * @param exception The throwable of the event
+     * @return true if the throwable is a VirtualMachineError that was written
+     */
+    public boolean captureEmergency(String loggerName, String threadName, Throwable exception) {
+        EmergencyCapture lane = emergency;
+        if (!(exception instanceof VirtualMachineError) || lane == null || !isInitialized || !settings.isCaptureExceptions()) {
+            return false;
+        }
+        return lane.capture(loggerName, threadName, exception);
+    }
+    
+    /**
+     * Queue a write on the shard that owns the directory it ends up in. A source whose directory
+     * can't be created falls back to the shared error directory; its writes are handed over to
+     * the error directory's shard, so only one thread ever writes, rolls or prunes files there.
+     */
+    private void submitWrite(String shardKey, String source, boolean urgent, Consumer<ExceptionWriterPool.Shard> task) {
+        writers.submit(shardKey, shard -> {
+            if (!shard.owns(ERROR_DIRECTORY) && ensureSourceDirectoryExists(source).equals(Path.of(ERROR_DIRECTORY))) {
+                writers.handOver(ERROR_DIRECTORY, task);
+            } else {
+                task.accept(shard);
+            }
+        }, urgent);
+    }
+    
+    /**
+     * @return The number of captures dropped because a writer queue was full
+     */
+    public long getDroppedCaptures() {
+        return writers != null ? writers.getDroppedCaptures() : 0;
+    }
+    
+    /**
+     * Prefix a message with the logger, level and thread it was logged with, for the text formats
+     */
+    private static String contextualMessage(String loggerName, String level, String threadName, String message) {
+        if (loggerName == null && level == null && threadName == null) {
+            return message;
+        }
+        String loggerContext = loggerName != null ? "[Logger: " + loggerName + "] " : "";
+        String levelContext = "[Level: " + level + "] ";
+        String threadContext = "[Thread: " + threadName + "] ";
+        return loggerContext + levelContext + threadContext + message;
+    }
+    
+    private void indexCapture(String source, Throwable exception, Date capturedAt, String capturePath) {
+        if (captureIndex == null) {
+            return;
+        }
+        StackTraceElement[] stackTrace = exception.getStackTrace();
+        String topFrame = stackTrace.length > 0
+                ? stackTrace[0].getClassName() + "." + stackTrace[0].getMethodName()
+                : null;
+        captureIndex.add(capturedAt.getTime(), exception.getClass().getName(), source,
+                categorizeException(exception), topFrame, capturePath);
+    }
+    
+    private void writeCapture(ExceptionWriterPool.Shard shard, String source, String message,
+                              Throwable exception, Date capturedAt, long fingerprint) {
+        if (settings.isCompactFormat()) {
+            writeCompactCapture(shard, source, message, exception, capturedAt, fingerprint);
+            return;
+        }
         
         // Generate a unique filename based on timestamp and exception type
-        String timestamp = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss-SSS").format(new Date());
+        String timestamp = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss-SSS").format(capturedAt);
         String exceptionType = exception.getClass().getSimpleName();
         String filename = String.format("%s_%s.log", timestamp, exceptionType);
         
         // Create the source-specific directory and file
-        File sourceDir = ensureSourceDirectoryExists(source);
-        File logFile = new File(sourceDir, filename);
+        Path sourceDir = ensureSourceDirectoryExists(source);
         
-        try (FileWriter fw = new FileWriter(logFile);
-             PrintWriter pw = new PrintWriter(fw)) {
-            
-            // Write header information
-            pw.println("Date: " + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date()));
-            pw.println("Exception Type: " + exception.getClass().getName());
-            pw.println("Category: " + (categorizeException(exception) != null ? categorizeException(exception) : "Uncategorized"));
-            pw.println("Source: " + source);
-            pw.println("Message: " + message);
-            pw.println("Exception Message: " + exception.getMessage());
-            
-            // Add information about cause if present
-            Throwable cause = exception.getCause();
-            if (cause != null) {
-                pw.println("Caused by: " + cause.getClass().getName() + ": " + cause.getMessage());
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        
+        // Write header information
+        String category = categorizeException(exception);
+        pw.println("Date: " + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(capturedAt));
+        pw.println("Exception Type: " + exception.getClass().getName());
+        pw.println("Category: " + (category != null ? category : "Uncategorized"));
+        pw.println("Source: " + source);
+        pw.println("Message: " + message);
+        pw.println("Exception Message: " + exception.getMessage());
+        
+        // Add information about cause if present
+        Throwable cause = exception.getCause();
+        if (cause != null) {
+            pw.println("Caused by: " + cause.getClass().getName() + ": " + cause.getMessage());
+        }
+        
+        pw.println("\nStackTrace:");
+        
+        // Write the stack trace
+        exception.printStackTrace(pw);
+        
+        // Add any suppressed exceptions
+        Throwable[] suppressed = exception.getSuppressed();
+        if (suppressed != null && suppressed.length > 0) {
+            pw.println("\nSuppressed Exceptions:");
+            for (Throwable t : suppressed) {
+                pw.println("  Suppressed: " + t.getClass().getName() + ": " + t.getMessage());
+                t.printStackTrace(pw);
             }
-            
-            pw.println("\nStackTrace:");
-            
-            // Write the stack trace
-            exception.printStackTrace(pw);
-            
-            // Add any suppressed exceptions
-            Throwable[] suppressed = exception.getSuppressed();
-            if (suppressed != null && suppressed.length > 0) {
-                pw.println("\nSuppressed Exceptions:");
-                for (Throwable t : suppressed) {
-                    pw.println("  Suppressed: " + t.getClass().getName() + ": " + t.getMessage());
-                    t.printStackTrace(pw);
-                }
+        }
+        pw.flush();
+        
+        try {
+            Path logFile = shard.writeNewFile(sourceDir.resolve(filename),
+                    ByteBuffer.wrap(sw.toString().getBytes(StandardCharsets.UTF_8)));
+            LOGGER.debug("Logged exception to file: {}", logFile.toAbsolutePath());
+            String capturePath = Path.of(ERROR_DIRECTORY).relativize(logFile).toString();
+            if (fingerprint != 0 && fingerprints != null) {
+                fingerprints.setRepresentativeFile(fingerprint, capturePath);
             }
+            indexCapture(source, exception, capturedAt, capturePath);
             
-            LOGGER.debug("Logged exception to file: {}", logFile.getAbsolutePath());
-            
-            // Enforce max file count if needed
-            enforceMaxFileCount();
+            // Enforce max file count if needed. Only this writer touches this directory.
+            enforceMaxFileCountInDir(sourceDir.toFile());
         } catch (IOException e) {
             LOGGER.error("Failed to write exception to log file", e);
         }
     }
     
-    private void enforceMaxFileCount() {
-        File dir = new File(ERROR_DIRECTORY);
-        enforceMaxFileCountInDir(dir);
+    /**
+     * Append a capture to the compact trace file of its source directory. Each directory
+     * gets a new file per session, or when the current file grows past maxLogSize.
+     */
+    private void writeCompactCapture(ExceptionWriterPool.Shard shard, String source, String message,
+                                     Throwable exception, Date capturedAt, long fingerprint) {
+        Path sourceDir = ensureSourceDirectoryExists(source);
+        CompactTraceWriter writer = compactWriters.get(sourceDir);
+        if (writer == null || writer.getBytesWritten() >= settings.getMaxLogSize()) {
+            if (writer != null) {
+                shard.close(writer.getFile());
+            }
+            String timestamp = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss-SSS").format(capturedAt);
+            writer = new CompactTraceWriter(sourceDir.resolve("session_" + timestamp + CompactTraceWriter.EXTENSION));
+            compactWriters.put(sourceDir, writer);
+        }
         
-        // Check subdirectories too
-        File[] subdirs = dir.listFiles(File::isDirectory);
-        if (subdirs != null) {
-            for (File subdir : subdirs) {
-                enforceMaxFileCountInDir(subdir);
+        try {
+            shard.append(writer.getFile(), writer.encode(capturedAt.getTime(), exception.getClass().getName(),
+                    categorizeException(exception), source, message, exception));
+            
+            String capturePath = Path.of(ERROR_DIRECTORY).relativize(writer.getFile()).toString();
+            if (fingerprint != 0 && fingerprints != null) {
+                fingerprints.setRepresentativeFile(fingerprint, capturePath);
+            }
+            indexCapture(source, exception, capturedAt, capturePath);
+            
+            enforceMaxFileCountInDir(sourceDir.toFile(), CompactTraceWriter.EXTENSION, writer.getFile().toFile());
+        } catch (IOException e) {
+            // The file may now miss dictionary entries the writer thinks it has, start a new one
+            compactWriters.remove(sourceDir);
+            shard.close(writer.getFile());
+            LOGGER.error("Failed to write exception to compact trace file", e);
+        }
+    }
+    
+    /**
+     * Append a capture as one JSON line to the rolling captures.jsonl of its source directory
+     */
+    private void writeJsonLinesCapture(ExceptionWriterPool.Shard shard, JsonLinesCaptureWriter.Capture capture) {
+        Path sourceDir = ensureSourceDirectoryExists(capture.source());
+        JsonLinesCaptureWriter writer = jsonLinesWriters.computeIfAbsent(sourceDir,
+                directory -> new JsonLinesCaptureWriter(directory, this::captureFileMoved));
+        try {
+            writer.write(shard, capture, settings.getMaxLogSize(), settings.getMaxBackupIndex());
+            
+            String capturePath = Path.of(ERROR_DIRECTORY).relativize(writer.getFile()).toString();
+            if (capture.fingerprint() != 0 && fingerprints != null) {
+                fingerprints.setRepresentativeFile(capture.fingerprint(), capturePath);
             }
+            indexCapture(capture.source(), capture.exception(), new Date(capture.time()), capturePath);
+        } catch (IOException e) {
+            LOGGER.error("Failed to write exception to JSON lines capture file", e);
         }
     }
     
     private void enforceMaxFileCountInDir(File dir) {
-        File[] files = dir.listFiles(File::isFile);
+        enforceMaxFileCountInDir(dir, ".log", null);
+    }
+    
+    private void enforceMaxFileCountInDir(File dir, String extension, File activeFile) {
+        // Only count capture files of one format, never the indexes or the emergency file kept next to them
+        File[] files = dir.listFiles(file -> file.isFile() && file.getName().endsWith(extension) && !file.equals(activeFile)
+                && !file.getName().equals(EmergencyCapture.FILENAME));
         
         if (files != null && files.length > settings.getMaxBackupIndex()) {
             // Sort files by last modified time (oldest first)
@@ -351,6 +654,7 @@ public class ExceptionLogger {
             // Delete oldest files until we're under the limit
             for (int i = 0; i < files.length - settings.getMaxBackupIndex(); i++) {
                 if (files[i].delete()) {
+                    captureFileMoved(files[i].toPath(), null);
                     LOGGER.debug("Deleted old log file: {}", files[i].getName());
                 } else {
                     LOGGER.warn("Failed to delete old log file: {}", files[i].getName());
@@ -359,7 +663,49 @@ public class ExceptionLogger {
         }
     }
     
+    /**
+     * Keep the representative captures of the fingerprint index pointing at files that exist.
+     * A fingerprint whose trace was deleted is written in full again on its next occurrence.
+     *
+     * @param file The capture file that was renamed or deleted
+     * @param target Its new path, or null if it was deleted
+     */
+    private void captureFileMoved(Path file, Path target) {
+        if (fingerprints == null) {
+            return;
+        }
+        Path errorDir = Path.of(ERROR_DIRECTORY);
+        int moved = fingerprints.moveRepresentativeFile(errorDir.relativize(file).toString(),
+                target != null ? errorDir.relativize(target).toString() : null);
+        if (moved > 0 && target == null) {
+            LOGGER.debug("Deleted the full trace of {} known exception(s) in {}, they will be written again", moved, file);
+        }
+    }
+    
     public boolean isInitialized() {
         return isInitialized;
     }
+    
+    /**
+     * Flush queued captures and close open files. Called from the ShutdownSequence.
+     */
+    public void shutdown() {
+        isInitialized = false;
+        if (writers != null) {
+            // Sources without a directory of their own hand their captures to this shard while draining
+            writers.shutdown(ERROR_DIRECTORY);
+        }
+        if (emergency != null) {
+            emergency.close();
+        }
+        if (exporter != null) {
+            exporter.shutdown();
+        }
+        if (fingerprints != null) {
+            fingerprints.close();
+        }
+        if (captureIndex != null) {
+            captureIndex.close();
+        }
+    }
 } 
\ No newline at end of file
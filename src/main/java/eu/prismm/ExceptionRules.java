@@ -0,0 +1,134 @@
+package eu.prismm;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Console rules that match on the exception of an event instead of its message, for
+ * known-harmless exceptions whose message is empty but whose stack trace floods the console.
+ *
+ * A rule matches on the throwable's type, the type of any of its causes and the package of
+ * its top stack frame. A type matches its subclasses too.
+ *
+ * Rules are checked directly on every throw. A check is a few class name comparisons, which
+ * is cheaper than the fingerprint a cached verdict would have to be looked up by, and the
+ * stack trace is only copied when a rule looks at the top frame.
+ */
+public final class ExceptionRules {
+    public static final ExceptionRules NONE = new ExceptionRules(List.of());
+    public static final int NO_MATCH = -1;
+    // The same cause depth ThrowableFingerprint hashes
+    private static final int MAX_CAUSES = 8;
+
+    private final Rule[] rules;
+    // Whether any rule needs the top stack frame, which getStackTrace() copies on every call
+    private final boolean needsTopFrame;
+
+    /**
+     * One rule; every condition that is set has to match, null conditions are ignored
+     *
+     * @param type Class name of the throwable or one of its superclasses
+     * @param causeType Class name of any cause or one of its superclasses
+     * @param topFramePackage Package the class of the top stack frame is in, subpackages included
+     */
+    public record Rule(String type, String causeType, String topFramePackage) {
+        public boolean isEmpty() {
+            return type == null && causeType == null && topFramePackage == null;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder description = new StringBuilder();
+            if (type != null) {
+                description.append("type=").append(type);
+            }
+            if (causeType != null) {
+                description.append(description.length() > 0 ? ", " : "").append("causeType=").append(causeType);
+            }
+            if (topFramePackage != null) {
+                description.append(description.length() > 0 ? ", " : "").append("topFramePackage=").append(topFramePackage);
+            }
+            return description.toString();
+        }
+    }
+
+    /**
+     * @param rules The rules, in order; empty rules are skipped
+     */
+    public ExceptionRules(List<Rule> rules) {
+        this.rules = rules.stream().filter(rule -> !rule.isEmpty()).toArray(Rule[]::new);
+        this.needsTopFrame = Arrays.stream(this.rules).anyMatch(rule -> rule.topFramePackage() != null);
+    }
+
+    public boolean isEmpty() {
+        return rules.length == 0;
+    }
+
+    public int size() {
+        return rules.length;
+    }
+
+    /**
+     * @param index A rule index returned by match
+     * @return The rule
+     */
+    public Rule get(int index) {
+        return rules[index];
+    }
+
+    /**
+     * Find the first rule that matches a throwable
+     *
+     * @param throwable The throwable of an event, may be null
+     * @return The index of the rule, or NO_MATCH
+     */
+    public int match(Throwable throwable) {
+        if (throwable == null || rules.length == 0) {
+            return NO_MATCH;
+        }
+        String topFrameClass = null;
+        if (needsTopFrame) {
+            StackTraceElement[] stackTrace = throwable.getStackTrace();
+            topFrameClass = stackTrace.length > 0 ? stackTrace[0].getClassName() : null;
+        }
+        for (int i = 0; i < rules.length; i++) {
+            Rule rule = rules[i];
+            if (rule.type() != null && !isInstance(throwable, rule.type())) {
+                continue;
+            }
+            if (rule.causeType() != null && !hasCause(throwable, rule.causeType())) {
+                continue;
+            }
+            if (rule.topFramePackage() != null && !inPackage(topFrameClass, rule.topFramePackage())) {
+                continue;
+            }
+            return i;
+        }
+        return NO_MATCH;
+    }
+
+    private static boolean isInstance(Throwable throwable, String className) {
+        for (Class<?> type = throwable.getClass(); type != null; type = type.getSuperclass()) {
+            if (type.getName().equals(className)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasCause(Throwable throwable, String className) {
+        Throwable cause = throwable.getCause();
+        for (int i = 0; cause != null && cause != throwable && i < MAX_CAUSES; i++) {
+            if (isInstance(cause, className)) {
+                return true;
+            }
+            cause = cause.getCause();
+        }
+        return false;
+    }
+
+    private static boolean inPackage(String className, String packageName) {
+        return className != null && className.startsWith(packageName)
+                && className.length() > packageName.length() && className.charAt(packageName.length()) == '.';
+    }
+}
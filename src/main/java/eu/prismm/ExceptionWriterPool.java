@@ -0,0 +1,314 @@
+package eu.prismm;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * A small pool of writer threads that performs the file I/O for ExceptionLogger.
+ * Captures are sharded by source, so everything written for one source happens on the
+ * same thread and in the order it was submitted. Each shard keeps its own LRU cache of
+ * open append channels, so no locking is needed around the files it owns.
+ */
+public class ExceptionWriterPool {
+    private static final Logger LOGGER = LogManager.getLogger(NoConsoleSpam.MOD_ID);
+    private static final int QUEUE_CAPACITY = 4096;
+    private static final int MAX_OPEN_CHANNELS = 16;
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 5000;
+    // Queued behind all pending captures to stop a writer. Interrupting the writer
+    // instead would close the channel it is writing to.
+    private static final Consumer<Shard> STOP = shard -> { };
+
+    private final Shard[] shards;
+    private final BoundedCache<Path, Path> createdDirectories =
+            CacheBudget.global().newCache("sourceDirectories", 5, (directory, same) -> CacheBudget.pathBytes(directory));
+    private final AtomicLong droppedCaptures = new AtomicLong();
+    private volatile boolean running = true;
+
+    /**
+     * @param threads The number of writer threads, 0 picks a size based on the available processors
+     */
+    public ExceptionWriterPool(int threads) {
+        if (threads <= 0) {
+            threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+        }
+        shards = new Shard[threads];
+        for (int i = 0; i < threads; i++) {
+            shards[i] = new Shard(i);
+            shards[i].thread.start();
+        }
+    }
+
+    /**
+     * Queue a write task on the shard that owns a source. Never blocks; if the shard is
+     * backed up the capture is dropped and counted instead.
+     *
+     * @param shardKey The key that decides the shard, usually the exception source
+     * @param task The work to run on the writer thread
+     * @return true if the task was queued
+     */
+    public boolean submit(String shardKey, Consumer<Shard> task) {
+        return submit(shardKey, task, false);
+    }
+
+    /**
+     * Queue a write task on the shard that owns a source. Never blocks; if the shard is
+     * backed up the capture is dropped and counted instead.
+     *
+     * @param shardKey The key that decides the shard, usually the exception source
+     * @param task The work to run on the writer thread
+     * @param urgent Run the task ahead of the tasks already queued, for captures of Errors
+     * @return true if the task was queued
+     */
+    public boolean submit(String shardKey, Consumer<Shard> task, boolean urgent) {
+        if (!running) {
+            return false;
+        }
+        Shard shard = shardFor(shardKey);
+        if (!(urgent ? shard.queue.offerFirst(task) : shard.queue.offer(task))) {
+            droppedCaptures.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Queue a task from a task running on another shard. Unlike submit this still works while
+     * the pool shuts down, as long as the receiving shard is the one passed to shutdown as last.
+     *
+     * @param shardKey The key that decides the shard
+     * @param task The work to run on that shard's writer thread
+     * @return true if the task was queued
+     */
+    public boolean handOver(String shardKey, Consumer<Shard> task) {
+        if (!shardFor(shardKey).queue.offer(task)) {
+            droppedCaptures.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private Shard shardFor(String shardKey) {
+        return shards[Math.floorMod(shardKey != null ? shardKey.hashCode() : 0, shards.length)];
+    }
+
+    /**
+     * Create a directory once. Later calls for the same directory are a cache lookup.
+     *
+     * @param directory The directory to create
+     * @return true if the directory exists
+     */
+    public boolean ensureDirectory(Path directory) {
+        if (createdDirectories.get(directory) != null) {
+            return true;
+        }
+        try {
+            // Also runs again for a directory whose entry was evicted, which is harmless
+            Files.createDirectories(directory);
+            createdDirectories.put(directory, directory);
+            LOGGER.debug("Created source-specific error directory: {}", directory.toAbsolutePath());
+            return true;
+        } catch (IOException e) {
+            LOGGER.error("Failed to create source-specific error directory: {}", directory.toAbsolutePath(), e);
+            return false;
+        }
+    }
+
+    public long getDroppedCaptures() {
+        return droppedCaptures.get();
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Stop accepting captures, write everything already queued and close all cached channels
+     */
+    public void shutdown() {
+        shutdown(null);
+    }
+
+    /**
+     * Stop accepting captures, write everything already queued and close all cached channels
+     *
+     * @param lastShardKey The key of a shard that receives hand-overs; it is only stopped once
+     *                     all other shards have finished, or null
+     */
+    public void shutdown(String lastShardKey) {
+        running = false;
+        Shard last = lastShardKey != null ? shardFor(lastShardKey) : null;
+        try {
+            for (Shard shard : shards) {
+                if (shard != last) {
+                    shard.queue.put(STOP);
+                }
+            }
+            for (Shard shard : shards) {
+                if (shard != last) {
+                    shard.thread.join(SHUTDOWN_TIMEOUT_MILLIS);
+                }
+            }
+            if (last != null) {
+                last.queue.put(STOP);
+                last.thread.join(SHUTDOWN_TIMEOUT_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (droppedCaptures.get() > 0) {
+            LOGGER.warn("Dropped {} exception captures because the writer queues were full", droppedCaptures.get());
+        }
+    }
+
+    /**
+     * One writer thread with its queue and its cache of open channels.
+     * All methods must only be called from tasks running on this shard.
+     */
+    public class Shard {
+        // A deque, so urgent tasks can jump the line
+        private final BlockingDeque<Consumer<Shard>> queue = new LinkedBlockingDeque<>(QUEUE_CAPACITY);
+        private final Thread thread;
+        // Access ordered, so the eldest entry is the least recently used channel
+        private final LinkedHashMap<Path, FileChannel> channels = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, FileChannel> eldest) {
+                if (size() > MAX_OPEN_CHANNELS) {
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        Shard(int index) {
+            thread = new Thread(this::run, "NoConsoleSpam-ExceptionWriter-" + index);
+            thread.setDaemon(true);
+        }
+
+        private void run() {
+            try {
+                while (true) {
+                    Consumer<Shard> task = queue.take();
+                    if (task == STOP) {
+                        break;
+                    }
+                    execute(task);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                closeAll();
+            }
+        }
+
+        private void execute(Consumer<Shard> task) {
+            try {
+                task.accept(this);
+            } catch (Exception e) {
+                System.err.println("Failed to write exception capture: " + e.getMessage());
+            }
+        }
+
+        /**
+         * @param shardKey A key as passed to submit
+         * @return true if tasks submitted with that key run on this shard
+         */
+        public boolean owns(String shardKey) {
+            return shardFor(shardKey) == this;
+        }
+
+        /**
+         * Write a new file. If the name is already taken a numeric suffix is added, so
+         * captures landing in the same millisecond never overwrite each other.
+         *
+         * @param file The file to create
+         * @param data The complete file contents
+         * @return The file that was written
+         */
+        public Path writeNewFile(Path file, ByteBuffer data) throws IOException {
+            Path target = file;
+            for (int attempt = 1; ; attempt++) {
+                try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                    writeFully(channel, data);
+                    return target;
+                } catch (FileAlreadyExistsException e) {
+                    String name = file.getFileName().toString();
+                    int dot = name.lastIndexOf('.');
+                    String suffixed = dot > 0
+                            ? name.substring(0, dot) + "_" + attempt + name.substring(dot)
+                            : name + "_" + attempt;
+                    target = file.resolveSibling(suffixed);
+                }
+            }
+        }
+
+        /**
+         * Append to a file through the cached channel for that file
+         *
+         * @param file The file to append to, created if missing
+         * @param data The bytes to append
+         */
+        public void append(Path file, ByteBuffer data) throws IOException {
+            FileChannel channel = channels.get(file);
+            if (channel == null || !channel.isOpen()) {
+                channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                channels.put(file, channel);
+            }
+            try {
+                writeFully(channel, data);
+            } catch (IOException e) {
+                // Drop the channel so the next append reopens the file
+                channels.remove(file);
+                closeQuietly(channel);
+                throw e;
+            }
+        }
+
+        /**
+         * Close the cached channel of a file, for example before it is rolled or deleted
+         *
+         * @param file The file whose channel should be closed
+         */
+        public void close(Path file) {
+            FileChannel channel = channels.remove(file);
+            if (channel != null) {
+                closeQuietly(channel);
+            }
+        }
+
+        private void closeAll() {
+            for (FileChannel channel : channels.values()) {
+                closeQuietly(channel);
+            }
+            channels.clear();
+        }
+
+        private void writeFully(FileChannel channel, ByteBuffer data) throws IOException {
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        }
+
+        private void closeQuietly(FileChannel channel) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.debug("Failed to close exception log channel", e);
+            }
+        }
+    }
+}
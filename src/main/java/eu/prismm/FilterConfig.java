@@ -4,13 +4,19 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonArray;
+import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
@@ -21,16 +27,77 @@ public class FilterConfig {
     private static final String CONFIG_DIRECTORY = "config/NoConsoleSpam";
     private static final String RESOURCE_CONFIG_PATH = "spamfilters.json";
     
-    private Set<Pattern> spamPatterns = new HashSet<>();
-    private Set<String> ignoredLoggers = new HashSet<>();
+    // Insertion ordered so rule indexes follow the order of the config file
+    private Set<Pattern> spamPatterns = new LinkedHashSet<>();
+    // The sources of the valid spam patterns. After a snapshot load the Patterns are only compiled on demand.
+    private List<String> patternSources = new ArrayList<>();
+    // The level and marker scope of each pattern source, Scope.ALL for patterns written as plain strings
+    private List<FilterRules.Scope> patternScopes = new ArrayList<>();
+    private Set<String> ignoredLoggers = new LinkedHashSet<>();
+    private Set<String> spamTemplates = new LinkedHashSet<>();
+    // Logger name prefix to the least severe level still shown
+    private Map<String, Level> loggerLevels = new LinkedHashMap<>();
+    private List<ExceptionRules.Rule> exceptionRules = new ArrayList<>();
     private ExceptionSettings exceptionSettings = new ExceptionSettings();
+    private ConsoleSettings consoleSettings = new ConsoleSettings();
+    private QuotaSettings quotaSettings = new QuotaSettings();
+    private HeavyHitterSettings heavyHitterSettings = new HeavyHitterSettings();
+    private TemplateMinerSettings templateMinerSettings = new TemplateMinerSettings();
+    private RewriteSettings rewriteSettings = new RewriteSettings();
+    private CacheSettings cacheSettings = new CacheSettings();
+    private StatisticsSettings statisticsSettings = new StatisticsSettings();
     private File configFile;
+    private boolean useSnapshotCache = false;
+    private boolean loadedFromSnapshot = false;
     
     public FilterConfig() {
         ensureConfigDirectoryExists();
+        // Only the server's own config is cached; the offline tools read arbitrary files
+        useSnapshotCache = true;
         loadConfig();
     }
     
+    /**
+     * Load the configuration from a specific file without touching the config directory.
+     * Used by the offline tools, which run outside of a server.
+     * 
+     * @param configFile The spamfilters.json file to read
+     */
+    public FilterConfig(File configFile) {
+        this.configFile = configFile;
+        loadConfig();
+    }
+    
+    private FilterConfig(File configFile, JsonObject config) {
+        this.configFile = configFile;
+        loadPatternsFromJson(config);
+        loadLoggersFromJson(config);
+        loadSettingsFromJson(config);
+    }
+    
+    /**
+     * Load the configuration from a specific file, failing instead of falling back to the
+     * bundled configuration. Used by the offline tools, where checking the rules of a file
+     * that couldn't be read against the bundled ones would give a misleading answer.
+     * 
+     * @param configFile The spamfilters.json file to read
+     * @return The configuration
+     * @throws IOException If the file is missing, can't be read or isn't a JSON object
+     */
+    public static FilterConfig loadStrict(File configFile) throws IOException {
+        String json = Files.readString(configFile.toPath(), StandardCharsets.UTF_8);
+        JsonObject config;
+        try {
+            config = new Gson().fromJson(json, JsonObject.class);
+        } catch (RuntimeException e) {
+            throw new IOException("Not valid JSON: " + e.getMessage(), e);
+        }
+        if (config == null) {
+            throw new IOException("The file is empty");
+        }
+        return new FilterConfig(configFile, config);
+    }
+    
     private void ensureConfigDirectoryExists() {
         File configDir = new File(CONFIG_DIRECTORY);
         if (!configDir.exists()) {
@@ -87,6 +154,10 @@ public class FilterConfig {
         ignoredLoggersArray.add("net.minecraft.class_5460");
         config.add("ignoredLoggers", ignoredLoggersArray);
         
+        config.add("spamTemplates", new JsonArray());
+        config.add("loggerLevels", new JsonObject());
+        config.add("exceptionRules", new JsonArray());
+        
         JsonObject exceptionSettingsObj = new JsonObject();
         exceptionSettingsObj.addProperty("captureExceptions", true);
         exceptionSettingsObj.addProperty("logFile", "logs/exceptions.log");
@@ -105,9 +176,85 @@ public class FilterConfig {
         exceptionSettingsObj.addProperty("captureDataExceptions", true);
         exceptionSettingsObj.addProperty("captureErrors", true);
         exceptionSettingsObj.addProperty("captureConcurrentExceptions", true);
+        exceptionSettingsObj.addProperty("writerThreads", 0);
+        exceptionSettingsObj.addProperty("deduplicateAcrossRestarts", true);
+        exceptionSettingsObj.addProperty("indexCaptures", true);
+        exceptionSettingsObj.addProperty("captureFormat", "text");
+        exceptionSettingsObj.addProperty("exportTarget", "");
+        exceptionSettingsObj.addProperty("exportFraming", "ndjson");
+        exceptionSettingsObj.addProperty("exportLingerMillis", 200);
+        exceptionSettingsObj.addProperty("exportBufferSize", 4096);
         
         config.add("exceptionSettings", exceptionSettingsObj);
         
+        JsonObject consoleSettingsObj = new JsonObject();
+        consoleSettingsObj.addProperty("colorize", false);
+        consoleSettingsObj.addProperty("filterSystemStreams", false);
+        consoleSettingsObj.addProperty("filterPlacement", "auto");
+        
+        config.add("consoleSettings", consoleSettingsObj);
+        
+        JsonObject quotaSettingsObj = new JsonObject();
+        quotaSettingsObj.addProperty("enabled", false);
+        quotaSettingsObj.addProperty("linesPerSecond", 200);
+        quotaSettingsObj.addProperty("bytesPerSecond", 65536);
+        quotaSettingsObj.addProperty("action", "sample");
+        quotaSettingsObj.addProperty("sampleRate", 100);
+        quotaSettingsObj.addProperty("demoteFile", "logs/demoted.log");
+        
+        // Minecraft itself is never limited
+        JsonObject minecraftQuota = new JsonObject();
+        minecraftQuota.addProperty("linesPerSecond", 0);
+        minecraftQuota.addProperty("bytesPerSecond", 0);
+        JsonObject modsObj = new JsonObject();
+        modsObj.add("minecraft", minecraftQuota);
+        quotaSettingsObj.add("mods", modsObj);
+        
+        config.add("quotaSettings", quotaSettingsObj);
+        
+        JsonObject heavyHitterSettingsObj = new JsonObject();
+        heavyHitterSettingsObj.addProperty("enabled", false);
+        heavyHitterSettingsObj.addProperty("topK", 10);
+        heavyHitterSettingsObj.addProperty("capacity", 32);
+        heavyHitterSettingsObj.addProperty("reportFile", "logs/heavy-hitters.txt");
+        heavyHitterSettingsObj.addProperty("reportIntervalSeconds", 60);
+        heavyHitterSettingsObj.addProperty("registerMBean", true);
+        
+        config.add("heavyHitterSettings", heavyHitterSettingsObj);
+        
+        JsonObject templateMinerSettingsObj = new JsonObject();
+        templateMinerSettingsObj.addProperty("enabled", false);
+        templateMinerSettingsObj.addProperty("sampleRate", 16);
+        templateMinerSettingsObj.addProperty("depth", 4);
+        templateMinerSettingsObj.addProperty("similarityThreshold", 0.5);
+        templateMinerSettingsObj.addProperty("maxTemplates", 1000);
+        templateMinerSettingsObj.addProperty("minRatePerMinute", 60);
+        templateMinerSettingsObj.addProperty("writeIntervalSeconds", 300);
+        
+        config.add("templateMinerSettings", templateMinerSettingsObj);
+        
+        JsonObject rewriteSettingsObj = new JsonObject();
+        rewriteSettingsObj.addProperty("enabled", false);
+        rewriteSettingsObj.addProperty("maxLength", 8192);
+        rewriteSettingsObj.addProperty("collapseRuns", true);
+        rewriteSettingsObj.add("loggers", new JsonObject());
+        rewriteSettingsObj.add("patterns", new JsonObject());
+        
+        config.add("rewriteSettings", rewriteSettingsObj);
+        
+        JsonObject cacheSettingsObj = new JsonObject();
+        cacheSettingsObj.addProperty("maxBytes", CacheBudget.DEFAULT_MAX_BYTES);
+        cacheSettingsObj.addProperty("registerMBean", true);
+        
+        config.add("cacheSettings", cacheSettingsObj);
+        
+        JsonObject statisticsSettingsObj = new JsonObject();
+        statisticsSettingsObj.addProperty("enabled", false);
+        statisticsSettingsObj.addProperty("file", "logs/noconsolespam-stats.rrd");
+        statisticsSettingsObj.addProperty("maxSeries", 128);
+        
+        config.add("statisticsSettings", statisticsSettingsObj);
+        
         return config;
     }
     
@@ -115,11 +262,22 @@ public class FilterConfig {
         try {
             // First try to load from the config directory
             if (configFile.exists()) {
-                try (Reader reader = new FileReader(configFile)) {
-                    JsonObject config = new Gson().fromJson(reader, JsonObject.class);
+                try {
+                    byte[] bytes = Files.readAllBytes(configFile.toPath());
+                    byte[] hash = useSnapshotCache ? RuleSnapshotCache.hash(bytes) : null;
+                    if (hash != null && loadSnapshot(hash)) {
+                        LOGGER.info("Loaded config from: {} (cached rules)", configFile.getAbsolutePath());
+                        return;
+                    }
+                    
+                    JsonObject config = new Gson().fromJson(new String(bytes, StandardCharsets.UTF_8), JsonObject.class);
                     loadPatternsFromJson(config);
                     loadLoggersFromJson(config);
-                    loadExceptionSettingsFromJson(config);
+                    loadSettingsFromJson(config);
+                    if (hash != null) {
+                        RuleSnapshotCache.write(getSnapshotFile().toPath(), hash, patternSources, scopesToJson(),
+                                ignoredLoggers, config);
+                    }
                     LOGGER.info("Loaded config from: {}", configFile.getAbsolutePath());
                     return;
                 } catch (Exception e) {
@@ -140,10 +298,10 @@ public class FilterConfig {
                 
                 loadPatternsFromJson(config);
                 loadLoggersFromJson(config);
-                loadExceptionSettingsFromJson(config);
+                loadSettingsFromJson(config);
                 
                 LOGGER.info("Loaded {} spam patterns and {} ignored loggers from bundled configuration", 
-                        spamPatterns.size(), ignoredLoggers.size());
+                        patternSources.size(), ignoredLoggers.size());
             }
         } catch (IOException e) {
             LOGGER.error("Error loading spam filter configuration", e);
@@ -151,14 +309,121 @@ public class FilterConfig {
         }
     }
     
+    private File getSnapshotFile() {
+        return new File(configFile.getAbsoluteFile().getParentFile(), RuleSnapshotCache.FILENAME);
+    }
+    
+    /**
+     * Load everything from the rule snapshot cache if it matches the current config file
+     * 
+     * @param configHash The hash of the current config file
+     * @return true if the snapshot was used
+     */
+    private boolean loadSnapshot(byte[] configHash) {
+        RuleSnapshotCache.Snapshot snapshot = RuleSnapshotCache.read(getSnapshotFile().toPath(), configHash);
+        if (snapshot == null) {
+            return false;
+        }
+        List<FilterRules.Scope> scopes = new ArrayList<>();
+        snapshot.patternScopes().forEach(element -> scopes.add(parseScope(element.getAsJsonObject())));
+        if (scopes.size() != snapshot.spamPatterns().size() || scopes.contains(null)) {
+            // A level the snapshot refers to is no longer known, let the JSON report it
+            return false;
+        }
+        spamPatterns.clear();
+        patternSources = new ArrayList<>(snapshot.spamPatterns());
+        patternScopes = scopes;
+        ignoredLoggers.clear();
+        ignoredLoggers.addAll(snapshot.ignoredLoggers());
+        loadSettingsFromJson(snapshot.settings());
+        loadedFromSnapshot = true;
+        return true;
+    }
+    
+    private void loadSettingsFromJson(JsonObject config) {
+        loadTemplatesFromJson(config);
+        loadExceptionSettingsFromJson(config);
+        loadConsoleSettingsFromJson(config);
+        loadQuotaSettingsFromJson(config);
+        loadHeavyHitterSettingsFromJson(config);
+        loadTemplateMinerSettingsFromJson(config);
+        loadRewriteSettingsFromJson(config);
+        loadCacheSettingsFromJson(config);
+        loadStatisticsSettingsFromJson(config);
+    }
+    
+    private void loadTemplatesFromJson(JsonObject config) {
+        spamTemplates.clear();
+        if (config.has("spamTemplates")) {
+            config.getAsJsonArray("spamTemplates").forEach(element -> spamTemplates.add(element.getAsString()));
+        }
+        
+        loggerLevels.clear();
+        if (config.has("loggerLevels")) {
+            config.getAsJsonObject("loggerLevels").entrySet().forEach(entry -> {
+                Level level = Level.toLevel(entry.getValue().getAsString(), null);
+                if (level != null) {
+                    loggerLevels.put(entry.getKey(), level);
+                } else {
+                    LOGGER.error("Invalid level {} for logger {}", entry.getValue().getAsString(), entry.getKey());
+                }
+            });
+        }
+        
+        exceptionRules.clear();
+        if (config.has("exceptionRules")) {
+            config.getAsJsonArray("exceptionRules").forEach(element -> {
+                ExceptionRules.Rule rule = null;
+                if (element.isJsonObject()) {
+                    JsonObject ruleObj = element.getAsJsonObject();
+                    rule = new ExceptionRules.Rule(
+                            ruleObj.has("type") ? ruleObj.get("type").getAsString() : null,
+                            ruleObj.has("causeType") ? ruleObj.get("causeType").getAsString() : null,
+                            ruleObj.has("topFramePackage") ? ruleObj.get("topFramePackage").getAsString() : null);
+                }
+                if (rule != null && !rule.isEmpty()) {
+                    exceptionRules.add(rule);
+                } else {
+                    LOGGER.error("Invalid exception rule, expected type, causeType or topFramePackage: {}", element);
+                }
+            });
+        }
+    }
+    
     private void loadPatternsFromJson(JsonObject config) {
         spamPatterns.clear();
+        patternSources.clear();
+        patternScopes.clear();
+        Set<String> markers = new LinkedHashSet<>();
         if (config.has("spamPatterns")) {
             JsonArray patternsArray = config.getAsJsonArray("spamPatterns");
             patternsArray.forEach(element -> {
-                String pattern = element.getAsString();
+                // Either a plain pattern or {"pattern": ..., "levels": [...], "markers": [...]}
+                String pattern;
+                FilterRules.Scope scope = FilterRules.Scope.ALL;
+                if (element.isJsonObject() && element.getAsJsonObject().has("pattern")) {
+                    pattern = element.getAsJsonObject().get("pattern").getAsString();
+                    scope = parseScope(element.getAsJsonObject());
+                    if (scope == null) {
+                        return;
+                    }
+                    Set<String> combined = new LinkedHashSet<>(markers);
+                    combined.addAll(scope.markers());
+                    if (combined.size() > Long.SIZE) {
+                        LOGGER.error("Spam patterns can be scoped to at most {} different markers, skipping {}", Long.SIZE, pattern);
+                        return;
+                    }
+                } else if (element.isJsonPrimitive()) {
+                    pattern = element.getAsString();
+                } else {
+                    LOGGER.error("Invalid spam pattern, expected a string or an object with a pattern: {}", element);
+                    return;
+                }
                 try {
                     spamPatterns.add(Pattern.compile(pattern));
+                    patternSources.add(pattern);
+                    patternScopes.add(scope);
+                    markers.addAll(scope.markers());
                     LOGGER.debug("Added spam pattern: {}", pattern);
                 } catch (PatternSyntaxException e) {
                     LOGGER.error("Invalid pattern syntax: {}", pattern, e);
@@ -167,6 +432,54 @@ public class FilterConfig {
         }
     }
     
+    /**
+     * @param ruleObj A spam pattern in object form, or a scope stored in the rule snapshot
+     * @return The levels and markers it is scoped to, or null if it names an unknown level
+     */
+    private static FilterRules.Scope parseScope(JsonObject ruleObj) {
+        List<Level> levels = new ArrayList<>();
+        List<String> markers = new ArrayList<>();
+        List<String> levelNames = new ArrayList<>();
+        if (ruleObj.has("levels")) {
+            ruleObj.getAsJsonArray("levels").forEach(element -> levelNames.add(element.getAsString()));
+        }
+        if (ruleObj.has("markers")) {
+            ruleObj.getAsJsonArray("markers").forEach(element -> markers.add(element.getAsString()));
+        }
+        for (String name : levelNames) {
+            Level level = Level.getLevel(name.toUpperCase(Locale.ROOT));
+            if (level == null) {
+                LOGGER.error("Unknown level {} in the scope of spam pattern {}", name, ruleObj.get("pattern"));
+                return null;
+            }
+            levels.add(level);
+        }
+        FilterRules.Scope scope = new FilterRules.Scope(levels, markers);
+        return scope.isAll() ? FilterRules.Scope.ALL : scope;
+    }
+    
+    /**
+     * @return The pattern scopes as stored in the rule snapshot, one object per pattern source
+     */
+    private JsonArray scopesToJson() {
+        JsonArray scopes = new JsonArray();
+        for (FilterRules.Scope scope : patternScopes) {
+            JsonObject scopeObj = new JsonObject();
+            if (!scope.levels().isEmpty()) {
+                JsonArray levels = new JsonArray();
+                scope.levels().forEach(level -> levels.add(level.name()));
+                scopeObj.add("levels", levels);
+            }
+            if (!scope.markers().isEmpty()) {
+                JsonArray markers = new JsonArray();
+                scope.markers().forEach(markers::add);
+                scopeObj.add("markers", markers);
+            }
+            scopes.add(scopeObj);
+        }
+        return scopes;
+    }
+    
     private void loadLoggersFromJson(JsonObject config) {
         ignoredLoggers.clear();
         if (config.has("ignoredLoggers")) {
@@ -244,19 +557,250 @@ public class FilterConfig {
             if (settingsObj.has("captureConcurrentExceptions")) {
                 exceptionSettings.setCaptureConcurrentExceptions(settingsObj.get("captureConcurrentExceptions").getAsBoolean());
             }
+            
+            if (settingsObj.has("writerThreads")) {
+                exceptionSettings.setWriterThreads(settingsObj.get("writerThreads").getAsInt());
+            }
+            
+            if (settingsObj.has("deduplicateAcrossRestarts")) {
+                exceptionSettings.setDeduplicateAcrossRestarts(settingsObj.get("deduplicateAcrossRestarts").getAsBoolean());
+            }
+            
+            if (settingsObj.has("indexCaptures")) {
+                exceptionSettings.setIndexCaptures(settingsObj.get("indexCaptures").getAsBoolean());
+            }
+            
+            if (settingsObj.has("captureFormat")) {
+                exceptionSettings.setCaptureFormat(settingsObj.get("captureFormat").getAsString());
+            }
+            
+            if (settingsObj.has("exportTarget")) {
+                exceptionSettings.setExportTarget(settingsObj.get("exportTarget").getAsString());
+            }
+            
+            if (settingsObj.has("exportFraming")) {
+                exceptionSettings.setExportFraming(settingsObj.get("exportFraming").getAsString());
+            }
+            
+            if (settingsObj.has("exportLingerMillis")) {
+                exceptionSettings.setExportLingerMillis(settingsObj.get("exportLingerMillis").getAsLong());
+            }
+            
+            if (settingsObj.has("exportBufferSize")) {
+                exceptionSettings.setExportBufferSize(settingsObj.get("exportBufferSize").getAsInt());
+            }
+        }
+    }
+    
+    private void loadConsoleSettingsFromJson(JsonObject config) {
+        if (config.has("consoleSettings")) {
+            JsonObject settingsObj = config.getAsJsonObject("consoleSettings");
+            
+            if (settingsObj.has("colorize")) {
+                consoleSettings.setColorize(settingsObj.get("colorize").getAsBoolean());
+            }
+            
+            if (settingsObj.has("filterSystemStreams")) {
+                consoleSettings.setFilterSystemStreams(settingsObj.get("filterSystemStreams").getAsBoolean());
+            }
+            
+            if (settingsObj.has("filterPlacement")) {
+                consoleSettings.setFilterPlacement(settingsObj.get("filterPlacement").getAsString());
+            }
+        }
+    }
+    
+    private void loadQuotaSettingsFromJson(JsonObject config) {
+        if (config.has("quotaSettings")) {
+            JsonObject settingsObj = config.getAsJsonObject("quotaSettings");
+            
+            if (settingsObj.has("enabled")) {
+                quotaSettings.setEnabled(settingsObj.get("enabled").getAsBoolean());
+            }
+            
+            if (settingsObj.has("linesPerSecond")) {
+                quotaSettings.setLinesPerSecond(settingsObj.get("linesPerSecond").getAsLong());
+            }
+            
+            if (settingsObj.has("bytesPerSecond")) {
+                quotaSettings.setBytesPerSecond(settingsObj.get("bytesPerSecond").getAsLong());
+            }
+            
+            if (settingsObj.has("action")) {
+                quotaSettings.setAction(settingsObj.get("action").getAsString());
+            }
+            
+            if (settingsObj.has("sampleRate")) {
+                quotaSettings.setSampleRate(settingsObj.get("sampleRate").getAsInt());
+            }
+            
+            if (settingsObj.has("demoteFile")) {
+                quotaSettings.setDemoteFile(settingsObj.get("demoteFile").getAsString());
+            }
+            
+            if (settingsObj.has("mods")) {
+                quotaSettings.getMods().clear();
+                settingsObj.getAsJsonObject("mods").entrySet().forEach(entry -> {
+                    JsonObject modObj = entry.getValue().getAsJsonObject();
+                    quotaSettings.getMods().put(entry.getKey(), new QuotaSettings.ModQuota(
+                            modObj.has("linesPerSecond") ? modObj.get("linesPerSecond").getAsLong() : null,
+                            modObj.has("bytesPerSecond") ? modObj.get("bytesPerSecond").getAsLong() : null,
+                            modObj.has("action") ? modObj.get("action").getAsString() : null));
+                });
+            }
+        }
+    }
+    
+    private void loadHeavyHitterSettingsFromJson(JsonObject config) {
+        if (config.has("heavyHitterSettings")) {
+            JsonObject settingsObj = config.getAsJsonObject("heavyHitterSettings");
+            
+            if (settingsObj.has("enabled")) {
+                heavyHitterSettings.setEnabled(settingsObj.get("enabled").getAsBoolean());
+            }
+            
+            if (settingsObj.has("topK")) {
+                heavyHitterSettings.setTopK(settingsObj.get("topK").getAsInt());
+            }
+            
+            if (settingsObj.has("capacity")) {
+                heavyHitterSettings.setCapacity(settingsObj.get("capacity").getAsInt());
+            }
+            
+            if (settingsObj.has("reportFile")) {
+                heavyHitterSettings.setReportFile(settingsObj.get("reportFile").getAsString());
+            }
+            
+            if (settingsObj.has("reportIntervalSeconds")) {
+                heavyHitterSettings.setReportIntervalSeconds(settingsObj.get("reportIntervalSeconds").getAsInt());
+            }
+            
+            if (settingsObj.has("registerMBean")) {
+                heavyHitterSettings.setRegisterMBean(settingsObj.get("registerMBean").getAsBoolean());
+            }
+        }
+    }
+    
+    private void loadTemplateMinerSettingsFromJson(JsonObject config) {
+        if (config.has("templateMinerSettings")) {
+            JsonObject settingsObj = config.getAsJsonObject("templateMinerSettings");
+            
+            if (settingsObj.has("enabled")) {
+                templateMinerSettings.setEnabled(settingsObj.get("enabled").getAsBoolean());
+            }
+            
+            if (settingsObj.has("sampleRate")) {
+                templateMinerSettings.setSampleRate(settingsObj.get("sampleRate").getAsInt());
+            }
+            
+            if (settingsObj.has("depth")) {
+                templateMinerSettings.setDepth(settingsObj.get("depth").getAsInt());
+            }
+            
+            if (settingsObj.has("similarityThreshold")) {
+                templateMinerSettings.setSimilarityThreshold(settingsObj.get("similarityThreshold").getAsDouble());
+            }
+            
+            if (settingsObj.has("maxTemplates")) {
+                templateMinerSettings.setMaxTemplates(settingsObj.get("maxTemplates").getAsInt());
+            }
+            
+            if (settingsObj.has("minRatePerMinute")) {
+                templateMinerSettings.setMinRatePerMinute(settingsObj.get("minRatePerMinute").getAsDouble());
+            }
+            
+            if (settingsObj.has("writeIntervalSeconds")) {
+                templateMinerSettings.setWriteIntervalSeconds(settingsObj.get("writeIntervalSeconds").getAsInt());
+            }
+        }
+    }
+    
+    private void loadRewriteSettingsFromJson(JsonObject config) {
+        if (config.has("rewriteSettings")) {
+            JsonObject settingsObj = config.getAsJsonObject("rewriteSettings");
+            
+            if (settingsObj.has("enabled")) {
+                rewriteSettings.setEnabled(settingsObj.get("enabled").getAsBoolean());
+            }
+            
+            if (settingsObj.has("maxLength")) {
+                rewriteSettings.setMaxLength(settingsObj.get("maxLength").getAsInt());
+            }
+            
+            if (settingsObj.has("collapseRuns")) {
+                rewriteSettings.setCollapseRuns(settingsObj.get("collapseRuns").getAsBoolean());
+            }
+            
+            rewriteSettings.getLoggers().clear();
+            if (settingsObj.has("loggers")) {
+                settingsObj.getAsJsonObject("loggers").entrySet().forEach(entry ->
+                        rewriteSettings.getLoggers().put(entry.getKey(), entry.getValue().getAsInt()));
+            }
+            
+            rewriteSettings.getPatterns().clear();
+            if (settingsObj.has("patterns")) {
+                settingsObj.getAsJsonObject("patterns").entrySet().forEach(entry -> {
+                    try {
+                        Pattern.compile(entry.getKey());
+                        rewriteSettings.getPatterns().put(entry.getKey(), entry.getValue().getAsInt());
+                    } catch (PatternSyntaxException e) {
+                        LOGGER.error("Invalid rewrite pattern: {}", entry.getKey(), e);
+                    }
+                });
+            }
+        }
+    }
+    
+    private void loadCacheSettingsFromJson(JsonObject config) {
+        if (config.has("cacheSettings")) {
+            JsonObject settingsObj = config.getAsJsonObject("cacheSettings");
+            
+            if (settingsObj.has("maxBytes")) {
+                cacheSettings.setMaxBytes(settingsObj.get("maxBytes").getAsLong());
+            }
+            
+            if (settingsObj.has("registerMBean")) {
+                cacheSettings.setRegisterMBean(settingsObj.get("registerMBean").getAsBoolean());
+            }
+        }
+    }
+    
+    private void loadStatisticsSettingsFromJson(JsonObject config) {
+        if (config.has("statisticsSettings")) {
+            JsonObject settingsObj = config.getAsJsonObject("statisticsSettings");
+            
+            if (settingsObj.has("enabled")) {
+                statisticsSettings.setEnabled(settingsObj.get("enabled").getAsBoolean());
+            }
+            
+            if (settingsObj.has("file")) {
+                statisticsSettings.setFile(settingsObj.get("file").getAsString());
+            }
+            
+            if (settingsObj.has("maxSeries")) {
+                statisticsSettings.setMaxSeries(settingsObj.get("maxSeries").getAsInt());
+            }
         }
     }
     
     private void loadDefaultPatterns() {
         spamPatterns.clear();
+        patternSources.clear();
+        patternScopes.clear();
         ignoredLoggers.clear();
+        spamTemplates.clear();
+        loggerLevels.clear();
+        exceptionRules.clear();
         
         // Default spam patterns
-        spamPatterns.add(Pattern.compile(".*Lithium.*"));
-        spamPatterns.add(Pattern.compile(".*mismatch.*"));
-        spamPatterns.add(Pattern.compile(".*overloading.*"));
-        spamPatterns.add(Pattern.compile(".*moving.*wrongly.*"));
-        spamPatterns.add(Pattern.compile(".*Class Analysis Error.*"));
+        patternSources.add(".*Lithium.*");
+        patternSources.add(".*mismatch.*");
+        patternSources.add(".*overloading.*");
+        patternSources.add(".*moving.*wrongly.*");
+        patternSources.add(".*Class Analysis Error.*");
+        for (String pattern : patternSources) {
+            spamPatterns.add(Pattern.compile(pattern));
+        }
         
         // Default ignored loggers
         ignoredLoggers.add("net.minecraft.class_5458");
@@ -267,17 +811,113 @@ public class FilterConfig {
     }
     
     public Set<Pattern> getSpamPatterns() {
+        // Patterns loaded from the snapshot cache are only compiled when someone asks for them
+        if (spamPatterns.size() != patternSources.size()) {
+            spamPatterns.clear();
+            for (String pattern : patternSources) {
+                spamPatterns.add(Pattern.compile(pattern));
+            }
+        }
         return spamPatterns;
     }
     
+    /**
+     * @return The sources of the valid spam patterns, in rule order
+     */
+    public List<String> getPatternSources() {
+        return patternSources;
+    }
+    
+    /**
+     * @return The level and marker scope of each pattern source, in rule order
+     */
+    public List<FilterRules.Scope> getPatternScopes() {
+        return patternScopes;
+    }
+    
     public Set<String> getIgnoredLoggers() {
         return ignoredLoggers;
     }
     
+    public Set<String> getSpamTemplates() {
+        return spamTemplates;
+    }
+    
+    public Map<String, Level> getLoggerLevels() {
+        return loggerLevels;
+    }
+    
+    public List<ExceptionRules.Rule> getExceptionRules() {
+        return exceptionRules;
+    }
+    
     public ExceptionSettings getExceptionSettings() {
         return exceptionSettings;
     }
     
+    public ConsoleSettings getConsoleSettings() {
+        return consoleSettings;
+    }
+    
+    public QuotaSettings getQuotaSettings() {
+        return quotaSettings;
+    }
+    
+    public HeavyHitterSettings getHeavyHitterSettings() {
+        return heavyHitterSettings;
+    }
+    
+    public TemplateMinerSettings getTemplateMinerSettings() {
+        return templateMinerSettings;
+    }
+    
+    public RewriteSettings getRewriteSettings() {
+        return rewriteSettings;
+    }
+    
+    public CacheSettings getCacheSettings() {
+        return cacheSettings;
+    }
+    
+    public StatisticsSettings getStatisticsSettings() {
+        return statisticsSettings;
+    }
+    
+    /**
+     * @return The spamfilters.json this configuration was loaded from
+     */
+    public File getConfigFile() {
+        return configFile;
+    }
+    
+    /**
+     * Compile the loaded patterns and ignored loggers into the rule engine used by SpamFilter
+     * 
+     * @return An immutable FilterRules snapshot of the current configuration
+     */
+    public FilterRules compileRules() {
+        // Reuse the Patterns compiled while validating the JSON, otherwise compile lazily
+        FilterRules rules = spamPatterns.size() == patternSources.size()
+                ? new FilterRules(spamPatterns, ignoredLoggers)
+                : FilterRules.fromSources(patternSources, ignoredLoggers);
+        
+        // Precompute which patterns apply to each level, unless every pattern applies everywhere
+        if (patternScopes.stream().anyMatch(scope -> !scope.isAll())) {
+            rules = rules.withPatternScopes(patternScopes);
+        }
+        
+        Map<String, Integer> levels = new LinkedHashMap<>();
+        loggerLevels.forEach((logger, level) -> levels.put(logger, level.intLevel()));
+        return rules.withPreEnqueueRules(spamTemplates, levels).withExceptionRules(new ExceptionRules(exceptionRules));
+    }
+    
+    /**
+     * @return true if the last load came from the rule snapshot cache instead of the JSON
+     */
+    public boolean isLoadedFromSnapshot() {
+        return loadedFromSnapshot;
+    }
+    
     public static class ExceptionSettings {
         private boolean captureExceptions = true;
         private String logFile = "logs/exceptions.log";
@@ -296,6 +936,14 @@ public class FilterConfig {
         private boolean captureDataExceptions = true;
         private boolean captureErrors = true;
         private boolean captureConcurrentExceptions = true;
+        private int writerThreads = 0; // 0 = based on available processors
+        private boolean deduplicateAcrossRestarts = true;
+        private boolean indexCaptures = true;
+        private String captureFormat = "text"; // "text", "compact" or "jsonl"
+        private String exportTarget = ""; // "tcp://host:port" or "unix:/path", empty = disabled
+        private String exportFraming = "ndjson"; // "ndjson" or "length"
+        private long exportLingerMillis = 200;
+        private int exportBufferSize = 4096;
         
         public boolean isCaptureExceptions() {
             return captureExceptions;
@@ -416,5 +1064,400 @@ public class FilterConfig {
         public void setCaptureConcurrentExceptions(boolean captureConcurrentExceptions) {
             this.captureConcurrentExceptions = captureConcurrentExceptions;
         }
+        
+        public int getWriterThreads() {
+            return writerThreads;
+        }
+        
+        public void setWriterThreads(int writerThreads) {
+            this.writerThreads = writerThreads;
+        }
+        
+        public boolean isDeduplicateAcrossRestarts() {
+            return deduplicateAcrossRestarts;
+        }
+        
+        public void setDeduplicateAcrossRestarts(boolean deduplicateAcrossRestarts) {
+            this.deduplicateAcrossRestarts = deduplicateAcrossRestarts;
+        }
+        
+        public boolean isIndexCaptures() {
+            return indexCaptures;
+        }
+        
+        public void setIndexCaptures(boolean indexCaptures) {
+            this.indexCaptures = indexCaptures;
+        }
+        
+        public String getCaptureFormat() {
+            return captureFormat;
+        }
+        
+        public void setCaptureFormat(String captureFormat) {
+            this.captureFormat = captureFormat;
+        }
+        
+        public boolean isCompactFormat() {
+            return "compact".equalsIgnoreCase(captureFormat);
+        }
+        
+        public boolean isJsonLinesFormat() {
+            return "jsonl".equalsIgnoreCase(captureFormat);
+        }
+        
+        public String getExportTarget() {
+            return exportTarget;
+        }
+        
+        public void setExportTarget(String exportTarget) {
+            this.exportTarget = exportTarget;
+        }
+        
+        public String getExportFraming() {
+            return exportFraming;
+        }
+        
+        public void setExportFraming(String exportFraming) {
+            this.exportFraming = exportFraming;
+        }
+        
+        public long getExportLingerMillis() {
+            return exportLingerMillis;
+        }
+        
+        public void setExportLingerMillis(long exportLingerMillis) {
+            this.exportLingerMillis = exportLingerMillis;
+        }
+        
+        public int getExportBufferSize() {
+            return exportBufferSize;
+        }
+        
+        public void setExportBufferSize(int exportBufferSize) {
+            this.exportBufferSize = exportBufferSize;
+        }
+    }
+    
+    public static class ConsoleSettings {
+        private boolean colorize = false;
+        private boolean filterSystemStreams = false;
+        private String filterPlacement = "auto"; // "auto", "logger" or "split"
+        
+        public boolean isColorize() {
+            return colorize;
+        }
+        
+        public void setColorize(boolean colorize) {
+            this.colorize = colorize;
+        }
+        
+        public boolean isFilterSystemStreams() {
+            return filterSystemStreams;
+        }
+        
+        public void setFilterSystemStreams(boolean filterSystemStreams) {
+            this.filterSystemStreams = filterSystemStreams;
+        }
+        
+        public String getFilterPlacement() {
+            return filterPlacement;
+        }
+        
+        public void setFilterPlacement(String filterPlacement) {
+            this.filterPlacement = filterPlacement;
+        }
+    }
+    
+    public static class QuotaSettings {
+        private boolean enabled = false;
+        private long linesPerSecond = 200; // 0 means unlimited
+        private long bytesPerSecond = 64 * 1024; // 0 means unlimited
+        private String action = "sample"; // "drop", "sample" or "demote"
+        private int sampleRate = 100; // Keep one in this many lines over the quota
+        private String demoteFile = "logs/demoted.log";
+        private Map<String, ModQuota> mods = new LinkedHashMap<>();
+        
+        /**
+         * Overrides for one mod; null values fall back to the global settings
+         */
+        public record ModQuota(Long linesPerSecond, Long bytesPerSecond, String action) {
+        }
+        
+        public boolean isEnabled() {
+            return enabled;
+        }
+        
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+        
+        public long getLinesPerSecond() {
+            return linesPerSecond;
+        }
+        
+        public void setLinesPerSecond(long linesPerSecond) {
+            this.linesPerSecond = linesPerSecond;
+        }
+        
+        public long getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+        
+        public void setBytesPerSecond(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+        
+        public String getAction() {
+            return action;
+        }
+        
+        public void setAction(String action) {
+            this.action = action;
+        }
+        
+        public int getSampleRate() {
+            return sampleRate;
+        }
+        
+        public void setSampleRate(int sampleRate) {
+            this.sampleRate = sampleRate;
+        }
+        
+        public String getDemoteFile() {
+            return demoteFile;
+        }
+        
+        public void setDemoteFile(String demoteFile) {
+            this.demoteFile = demoteFile;
+        }
+        
+        public Map<String, ModQuota> getMods() {
+            return mods;
+        }
+        
+        /**
+         * @return true if any mod may be demoted, so the demote file is needed
+         */
+        public boolean usesDemote() {
+            if ("demote".equalsIgnoreCase(action)) {
+                return true;
+            }
+            return mods.values().stream().anyMatch(quota -> "demote".equalsIgnoreCase(quota.action()));
+        }
+    }
+    
+    public static class HeavyHitterSettings {
+        private boolean enabled = false;
+        private int topK = 10;
+        private int capacity = 32; // Keys tracked per 10 second bucket
+        private String reportFile = "logs/heavy-hitters.txt"; // Empty for no report
+        private int reportIntervalSeconds = 60;
+        private boolean registerMBean = true;
+        
+        public boolean isEnabled() {
+            return enabled;
+        }
+        
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+        
+        public int getTopK() {
+            return topK;
+        }
+        
+        public void setTopK(int topK) {
+            this.topK = topK;
+        }
+        
+        public int getCapacity() {
+            return capacity;
+        }
+        
+        public void setCapacity(int capacity) {
+            this.capacity = capacity;
+        }
+        
+        public String getReportFile() {
+            return reportFile;
+        }
+        
+        public void setReportFile(String reportFile) {
+            this.reportFile = reportFile;
+        }
+        
+        public int getReportIntervalSeconds() {
+            return reportIntervalSeconds;
+        }
+        
+        public void setReportIntervalSeconds(int reportIntervalSeconds) {
+            this.reportIntervalSeconds = reportIntervalSeconds;
+        }
+        
+        public boolean isRegisterMBean() {
+            return registerMBean;
+        }
+        
+        public void setRegisterMBean(boolean registerMBean) {
+            this.registerMBean = registerMBean;
+        }
+    }
+    
+    public static class TemplateMinerSettings {
+        private boolean enabled = false;
+        private int sampleRate = 16; // Mine one in this many messages
+        private int depth = 4; // Depth of the parse tree, including the root and the token count level
+        private double similarityThreshold = 0.5;
+        private int maxTemplates = 1000;
+        private double minRatePerMinute = 60;
+        private int writeIntervalSeconds = 300;
+        
+        public boolean isEnabled() {
+            return enabled;
+        }
+        
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+        
+        public int getSampleRate() {
+            return sampleRate;
+        }
+        
+        public void setSampleRate(int sampleRate) {
+            this.sampleRate = sampleRate;
+        }
+        
+        public int getDepth() {
+            return depth;
+        }
+        
+        public void setDepth(int depth) {
+            this.depth = depth;
+        }
+        
+        public double getSimilarityThreshold() {
+            return similarityThreshold;
+        }
+        
+        public void setSimilarityThreshold(double similarityThreshold) {
+            this.similarityThreshold = similarityThreshold;
+        }
+        
+        public int getMaxTemplates() {
+            return maxTemplates;
+        }
+        
+        public void setMaxTemplates(int maxTemplates) {
+            this.maxTemplates = maxTemplates;
+        }
+        
+        public double getMinRatePerMinute() {
+            return minRatePerMinute;
+        }
+        
+        public void setMinRatePerMinute(double minRatePerMinute) {
+            this.minRatePerMinute = minRatePerMinute;
+        }
+        
+        public int getWriteIntervalSeconds() {
+            return writeIntervalSeconds;
+        }
+        
+        public void setWriteIntervalSeconds(int writeIntervalSeconds) {
+            this.writeIntervalSeconds = writeIntervalSeconds;
+        }
+    }
+    
+    public static class RewriteSettings {
+        private boolean enabled = false;
+        private int maxLength = 8192; // Characters; 0 means unlimited
+        private boolean collapseRuns = true;
+        private Map<String, Integer> loggers = new LinkedHashMap<>(); // Logger name prefix to its own limit
+        private Map<String, Integer> patterns = new LinkedHashMap<>(); // Message pattern to its own limit
+        
+        public boolean isEnabled() {
+            return enabled;
+        }
+        
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+        
+        public int getMaxLength() {
+            return maxLength;
+        }
+        
+        public void setMaxLength(int maxLength) {
+            this.maxLength = maxLength;
+        }
+        
+        public boolean isCollapseRuns() {
+            return collapseRuns;
+        }
+        
+        public void setCollapseRuns(boolean collapseRuns) {
+            this.collapseRuns = collapseRuns;
+        }
+        
+        public Map<String, Integer> getLoggers() {
+            return loggers;
+        }
+        
+        public Map<String, Integer> getPatterns() {
+            return patterns;
+        }
+    }
+    
+    public static class CacheSettings {
+        private long maxBytes = CacheBudget.DEFAULT_MAX_BYTES; // Shared by all caches; 0 turns caching off
+        private boolean registerMBean = true;
+        
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+        
+        public void setMaxBytes(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+        
+        public boolean isRegisterMBean() {
+            return registerMBean;
+        }
+        
+        public void setRegisterMBean(boolean registerMBean) {
+            this.registerMBean = registerMBean;
+        }
+    }
+    
+    public static class StatisticsSettings {
+        private boolean enabled = false;
+        private String file = "logs/noconsolespam-stats.rrd";
+        private int maxSeries = 128; // Fixes the file size; changing it starts a new file
+        
+        public boolean isEnabled() {
+            return enabled;
+        }
+        
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+        
+        public String getFile() {
+            return file;
+        }
+        
+        public void setFile(String file) {
+            this.file = file;
+        }
+        
+        public int getMaxSeries() {
+            return maxSeries;
+        }
+        
+        public void setMaxSeries(int maxSeries) {
+            // Room for the fixed series, and slots have to fit the 16 bits FilterStatistics packs them in
+            this.maxSeries = Math.max(16, Math.min(4096, maxSeries));
+        }
     }
-} 
\ No newline at end of file
+}
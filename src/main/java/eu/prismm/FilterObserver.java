@@ -0,0 +1,24 @@
+package eu.prismm;
+
+import org.apache.logging.log4j.core.LogEvent;
+
+/**
+ * Sees every event after SpamFilter has decided on it, passed or suppressed.
+ * Observers run on the logging thread, so they must be cheap and must never throw.
+ */
+public interface FilterObserver {
+    /**
+     * @param event The event; only valid for the duration of the call
+     * @param suppressed true if the event was denied
+     */
+    void observe(LogEvent event, boolean suppressed);
+
+    /**
+     * @param event The event; only valid for the duration of the call
+     * @param suppressed true if the event was denied
+     * @param rule The rule that denied the event as described by FilterRules, or null
+     */
+    default void observe(LogEvent event, boolean suppressed, String rule) {
+        observe(event, suppressed);
+    }
+}
@@ -0,0 +1,582 @@
+package eu.prismm;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Marker;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * The compiled rule engine shared by SpamFilter and the offline tools.
+ * Instances are immutable, so one snapshot can be matched from any number of threads.
+ *
+ * Patterns of the form ".*literal.*" are matched with String.contains, and all other
+ * patterns are only compiled the first time a message reaches them.
+ *
+ * Besides the message patterns there are cheap rules that don't need the formatted message:
+ * ignored loggers, unformatted message templates and minimum levels per logger prefix.
+ * PreEnqueueFilter evaluates only those, before an event is even created.
+ *
+ * Exception rules match on the throwable of an event rather than its message.
+ *
+ * Patterns can be scoped to levels and markers. The patterns that apply to each standard
+ * level are worked out once per rule set, so an event only walks the patterns of its level,
+ * and the message isn't needed at all for levels without any.
+ */
+public final class FilterRules {
+    // Result codes returned by match()
+    public static final int NO_MATCH = -1;
+    public static final int IGNORED_LOGGER = -2;
+    public static final int SPAM_TEMPLATE = -3;
+    public static final int LOGGER_LEVEL = -4;
+    public static final int EXCEPTION_RULE = -5;
+
+    // Passed as level when the level is unknown; not 0, which is the intLevel of Level.OFF
+    public static final int ANY_LEVEL = -1;
+    // Returned for loggers without a minimum level; every intLevel is at most this
+    private static final int NO_LIMIT = Integer.MAX_VALUE;
+
+    // Stands in for a pattern that failed to compile
+    private static final Pattern NEVER = Pattern.compile("(?!)");
+    private static final String REGEX_METACHARACTERS = "\\^$.|?*+()[]{}";
+
+    private final String[] sources;
+    // The text between ".*" and ".*" for literal rules, null for everything else
+    private final String[] literals;
+    private final AtomicReferenceArray<Pattern> compiled;
+    private final Set<String> ignoredLoggers;
+    private final Set<String> spamTemplates;
+    // Logger prefixes with a minimum level, longest prefix first
+    private final String[] levelPrefixes;
+    private final int[] levelLimits;
+    // Logger name to minimum level, only created when there are logger levels
+    private final BoundedCache<String, Integer> levelLimitCache;
+    private final ExceptionRules exceptionRules;
+    private final Partitions partitions;
+
+    /**
+     * The levels and markers a spam pattern applies to
+     *
+     * @param levels The levels, or an empty list for all levels
+     * @param markers Marker names, or an empty list for all events; an event matches if its
+     *                marker or one of the marker's parents has one of these names
+     */
+    public record Scope(List<Level> levels, List<String> markers) {
+        public static final Scope ALL = new Scope(List.of(), List.of());
+
+        public boolean isAll() {
+            return levels.isEmpty() && markers.isEmpty();
+        }
+    }
+
+    public FilterRules(Collection<Pattern> spamPatterns, Collection<String> ignoredLoggers) {
+        Pattern[] patterns = spamPatterns != null ? spamPatterns.toArray(new Pattern[0]) : new Pattern[0];
+        this.sources = new String[patterns.length];
+        this.literals = new String[patterns.length];
+        this.compiled = new AtomicReferenceArray<>(patterns);
+        for (int i = 0; i < patterns.length; i++) {
+            sources[i] = patterns[i].pattern();
+            // Flags like CASE_INSENSITIVE or DOTALL change what the pattern means
+            literals[i] = patterns[i].flags() == 0 ? literalOf(sources[i]) : null;
+        }
+        this.ignoredLoggers = ignoredLoggers != null ? new HashSet<>(ignoredLoggers) : new HashSet<>();
+        this.spamTemplates = Set.of();
+        this.levelPrefixes = new String[0];
+        this.levelLimits = new int[0];
+        this.levelLimitCache = null;
+        this.exceptionRules = ExceptionRules.NONE;
+        this.partitions = new Partitions(sources.length, null);
+    }
+
+    private FilterRules(List<String> patternSources, Collection<String> ignoredLoggers) {
+        this.sources = patternSources.toArray(new String[0]);
+        this.literals = new String[sources.length];
+        this.compiled = new AtomicReferenceArray<>(sources.length);
+        for (int i = 0; i < sources.length; i++) {
+            literals[i] = literalOf(sources[i]);
+        }
+        this.ignoredLoggers = ignoredLoggers != null ? new HashSet<>(ignoredLoggers) : new HashSet<>();
+        this.spamTemplates = Set.of();
+        this.levelPrefixes = new String[0];
+        this.levelLimits = new int[0];
+        this.levelLimitCache = null;
+        this.exceptionRules = ExceptionRules.NONE;
+        this.partitions = new Partitions(sources.length, null);
+    }
+
+    private FilterRules(FilterRules base, List<Scope> scopes) {
+        this.sources = base.sources;
+        this.literals = base.literals;
+        this.compiled = base.compiled;
+        this.ignoredLoggers = base.ignoredLoggers;
+        this.spamTemplates = base.spamTemplates;
+        this.levelPrefixes = base.levelPrefixes;
+        this.levelLimits = base.levelLimits;
+        this.levelLimitCache = base.levelLimitCache;
+        this.exceptionRules = base.exceptionRules;
+        this.partitions = new Partitions(sources.length, scopes);
+    }
+
+    private FilterRules(FilterRules base, Collection<String> spamTemplates, Map<String, Integer> loggerLevels) {
+        this(base, spamTemplates, loggerLevels, base.exceptionRules);
+    }
+
+    private FilterRules(FilterRules base, Collection<String> spamTemplates, Map<String, Integer> loggerLevels,
+                        ExceptionRules exceptionRules) {
+        this.sources = base.sources;
+        this.literals = base.literals;
+        this.compiled = base.compiled;
+        this.ignoredLoggers = base.ignoredLoggers;
+        this.spamTemplates = spamTemplates != null ? new HashSet<>(spamTemplates) : Set.of();
+
+        List<Map.Entry<String, Integer>> levels = new ArrayList<>(loggerLevels != null ? loggerLevels.entrySet() : Set.of());
+        levels.sort(Comparator.comparingInt((Map.Entry<String, Integer> entry) -> entry.getKey().length()).reversed());
+        this.levelPrefixes = new String[levels.size()];
+        this.levelLimits = new int[levels.size()];
+        for (int i = 0; i < levels.size(); i++) {
+            levelPrefixes[i] = levels.get(i).getKey();
+            levelLimits[i] = levels.get(i).getValue();
+        }
+        this.levelLimitCache = levelPrefixes.length > 0
+                ? CacheBudget.global().newCache("loggerLevels", 15, (name, limit) -> CacheBudget.stringBytes(name))
+                : null;
+        this.exceptionRules = exceptionRules != null ? exceptionRules : ExceptionRules.NONE;
+        this.partitions = base.partitions;
+    }
+
+    /**
+     * Scope the patterns to levels and markers
+     *
+     * @param scopes The scope of each pattern, in rule order; missing or null entries apply everywhere
+     * @return New rules sharing everything else with these
+     */
+    public FilterRules withPatternScopes(List<Scope> scopes) {
+        return new FilterRules(this, scopes);
+    }
+
+    /**
+     * Add the template and logger level rules
+     *
+     * @param spamTemplates Unformatted message templates to suppress, such as "Mismatch in destroy block pos: {}"
+     * @param loggerLevels Logger name prefixes mapped to the least severe Log4j intLevel that is still shown
+     * @return New rules sharing the patterns of these
+     */
+    public FilterRules withPreEnqueueRules(Collection<String> spamTemplates, Map<String, Integer> loggerLevels) {
+        return new FilterRules(this, spamTemplates, loggerLevels);
+    }
+
+    /**
+     * Add the rules that match on the throwable of an event
+     *
+     * @param exceptionRules The exception rules
+     * @return New rules sharing everything else with these
+     */
+    public FilterRules withExceptionRules(ExceptionRules exceptionRules) {
+        Map<String, Integer> levels = new HashMap<>();
+        for (int i = 0; i < levelPrefixes.length; i++) {
+            levels.put(levelPrefixes[i], levelLimits[i]);
+        }
+        return new FilterRules(this, spamTemplates, levels, exceptionRules);
+    }
+
+    /**
+     * Build rules from pattern sources without compiling any of them up front
+     *
+     * @param patternSources The regular expressions, in rule order
+     * @param ignoredLoggers The logger names to suppress entirely
+     * @return The rule engine
+     */
+    public static FilterRules fromSources(List<String> patternSources, Collection<String> ignoredLoggers) {
+        return new FilterRules(patternSources != null ? patternSources : new ArrayList<>(), ignoredLoggers);
+    }
+
+    /**
+     * @return The literal text of a ".*literal.*" pattern, or null if the pattern needs a regex
+     */
+    static String literalOf(String source) {
+        if (source.length() <= 4 || !source.startsWith(".*") || !source.endsWith(".*")) {
+            return null;
+        }
+        String literal = source.substring(2, source.length() - 2);
+        for (int i = 0; i < literal.length(); i++) {
+            if (REGEX_METACHARACTERS.indexOf(literal.charAt(i)) >= 0) {
+                return null;
+            }
+        }
+        return literal;
+    }
+
+    /**
+     * Find the first rule that suppresses a message of unknown level without a marker
+     *
+     * @param loggerName The name of the logger that produced the message, may be null
+     * @param message The formatted message, may be null
+     * @return The index of the matching spam pattern, IGNORED_LOGGER or NO_MATCH
+     */
+    public int match(String loggerName, String message) {
+        return match(loggerName, ANY_LEVEL, null, message);
+    }
+
+    /**
+     * Find the first rule that suppresses a message, checking only the patterns scoped to its level and marker
+     *
+     * @param loggerName The name of the logger that produced the message, may be null
+     * @param intLevel The Log4j intLevel of the message, or ANY_LEVEL to ignore level scopes
+     * @param marker The marker of the message, may be null
+     * @param message The formatted message, may be null
+     * @return The index of the matching spam pattern, IGNORED_LOGGER or NO_MATCH
+     */
+    public int match(String loggerName, int intLevel, Marker marker, String message) {
+        if (loggerName != null && ignoredLoggers.contains(loggerName)) {
+            return IGNORED_LOGGER;
+        }
+
+        if (message != null && !message.isEmpty()) {
+            int[] candidates = partitions.candidates(intLevel, marker != null);
+            long markerBits = marker != null && candidates.length > 0 ? partitions.markerBits(marker) : 0;
+            // 0 = not checked yet, 1 = single line, 2 = contains a line terminator
+            int lines = 0;
+            for (int i : candidates) {
+                long patternMarkers = partitions.markers[i];
+                if (patternMarkers != 0 && (patternMarkers & markerBits) == 0) {
+                    continue;
+                }
+                String literal = literals[i];
+                if (literal != null) {
+                    if (!message.contains(literal)) {
+                        continue;
+                    }
+                    if (lines == 0) {
+                        lines = hasLineTerminator(message) ? 2 : 1;
+                    }
+                    if (lines == 1) {
+                        return i;
+                    }
+                    // "." doesn't match line terminators, so only the regex knows the answer here
+                }
+                try {
+                    if (pattern(i).matcher(message).matches()) {
+                        return i;
+                    }
+                } catch (Exception e) {
+                    // If pattern matching fails, log this but allow the message to pass through
+                    System.err.println("Error matching pattern: " + e.getMessage());
+                }
+            }
+        }
+        return NO_MATCH;
+    }
+
+    /**
+     * Check the rules that don't need the formatted message
+     *
+     * @param loggerName The name of the logger, may be null
+     * @param intLevel The Log4j intLevel of the event, or ANY_LEVEL
+     * @param template The unformatted message template, may be null
+     * @return IGNORED_LOGGER, LOGGER_LEVEL, SPAM_TEMPLATE or NO_MATCH
+     */
+    public int matchPreEnqueue(String loggerName, int intLevel, String template) {
+        if (loggerName != null) {
+            if (ignoredLoggers.contains(loggerName)) {
+                return IGNORED_LOGGER;
+            }
+            if (levelPrefixes.length > 0 && intLevel != ANY_LEVEL && intLevel > levelLimit(loggerName)) {
+                return LOGGER_LEVEL;
+            }
+        }
+        if (template != null && !spamTemplates.isEmpty() && spamTemplates.contains(template)) {
+            return SPAM_TEMPLATE;
+        }
+        return NO_MATCH;
+    }
+
+    /**
+     * @return The least severe intLevel shown for a logger, memoized per logger name
+     */
+    private int levelLimit(String loggerName) {
+        Integer cached = levelLimitCache.get(loggerName);
+        if (cached != null) {
+            return cached;
+        }
+        int limit = NO_LIMIT;
+        for (int i = 0; i < levelPrefixes.length; i++) {
+            String prefix = levelPrefixes[i];
+            if (loggerName.startsWith(prefix)
+                    && (loggerName.length() == prefix.length() || loggerName.charAt(prefix.length()) == '.')) {
+                limit = levelLimits[i];
+                break;
+            }
+        }
+        levelLimitCache.put(loggerName, limit);
+        return limit;
+    }
+
+    /**
+     * Check the exception rules
+     *
+     * @param throwable The throwable of the event, may be null
+     * @return EXCEPTION_RULE or NO_MATCH
+     */
+    public int matchException(Throwable throwable) {
+        if (throwable == null || exceptionRules.isEmpty()) {
+            return NO_MATCH;
+        }
+        return exceptionRules.match(throwable) != ExceptionRules.NO_MATCH ? EXCEPTION_RULE : NO_MATCH;
+    }
+
+    /**
+     * @param intLevel The Log4j intLevel of an event, or ANY_LEVEL
+     * @param marker The marker of the event, may be null
+     * @return false if no pattern can match an event of this level and marker, so its message needn't be formatted
+     */
+    public boolean hasPatternsFor(int intLevel, Marker marker) {
+        return partitions.candidates(intLevel, marker != null).length > 0;
+    }
+
+    public boolean hasPreEnqueueRules() {
+        return !ignoredLoggers.isEmpty() || !spamTemplates.isEmpty() || levelPrefixes.length > 0;
+    }
+
+    private Pattern pattern(int index) {
+        Pattern pattern = compiled.get(index);
+        if (pattern == null) {
+            try {
+                pattern = Pattern.compile(sources[index]);
+            } catch (PatternSyntaxException e) {
+                System.err.println("Invalid spam pattern " + sources[index] + ": " + e.getDescription());
+                pattern = NEVER;
+            }
+            // Losing the race just means another thread compiled the same pattern
+            compiled.compareAndSet(index, null, pattern);
+        }
+        return pattern;
+    }
+
+    private static boolean hasLineTerminator(String message) {
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check whether a message would be suppressed by any rule
+     *
+     * @param loggerName The name of the logger that produced the message, may be null
+     * @param message The formatted message, may be null
+     * @return true if the message should be denied
+     */
+    public boolean matches(String loggerName, String message) {
+        return match(loggerName, message) != NO_MATCH;
+    }
+
+    public int getPatternCount() {
+        return sources.length;
+    }
+
+    /**
+     * @return The number of patterns matched with String.contains instead of a regex
+     */
+    public int getLiteralCount() {
+        int count = 0;
+        for (String literal : literals) {
+            if (literal != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of patterns scoped to levels or markers
+     */
+    public int getScopedPatternCount() {
+        int count = 0;
+        for (int i = 0; i < sources.length; i++) {
+            if (partitions.levels[i] != null || partitions.markers[i] != 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int getIgnoredLoggerCount() {
+        return ignoredLoggers.size();
+    }
+
+    /**
+     * @return The ignored logger names
+     */
+    public Set<String> getIgnoredLoggers() {
+        return Collections.unmodifiableSet(ignoredLoggers);
+    }
+
+    public int getLoggerLevelCount() {
+        return levelPrefixes.length;
+    }
+
+    public int getSpamTemplateCount() {
+        return spamTemplates.size();
+    }
+
+    public int getExceptionRuleCount() {
+        return exceptionRules.size();
+    }
+
+    /**
+     * Describe a rule for reports
+     *
+     * @param index A pattern index or IGNORED_LOGGER
+     * @return A human readable description of the rule
+     */
+    public String describe(int index) {
+        if (index == IGNORED_LOGGER) {
+            return "ignoredLoggers";
+        }
+        if (index == SPAM_TEMPLATE) {
+            return "spamTemplates";
+        }
+        if (index == LOGGER_LEVEL) {
+            return "loggerLevels";
+        }
+        if (index == EXCEPTION_RULE) {
+            return "exceptionRules";
+        }
+        if (index >= 0 && index < sources.length) {
+            return sources[index];
+        }
+        return "none";
+    }
+
+    /**
+     * Which patterns apply to which level and marker. The patterns for each standard level
+     * are listed once up front, in rule order, both with and without the marker-scoped ones,
+     * since most events carry no marker.
+     */
+    private static final class Partitions {
+        private static final int STANDARD_SLOTS = Level.TRACE.intLevel() / 100 + 1;
+
+        // Per pattern: the intLevels it applies to, null for all, and the bits of its marker names, 0 for none
+        final int[][] levels;
+        final long[] markers;
+        // Bit i of a marker mask stands for markerNames[i]
+        private final String[] markerNames;
+        // Pattern indexes in slot intLevel / 100 for OFF to TRACE
+        private final int[][] byLevel = new int[STANDARD_SLOTS][];
+        private final int[][] unmarkedByLevel = new int[STANDARD_SLOTS][];
+        // Every pattern, for ANY_LEVEL
+        private final int[] all;
+        private final int[] unmarkedAll;
+        // Custom levels, filled in the first time each is seen; there are only ever a handful
+        private final Map<Integer, int[][]> customLevels = new ConcurrentHashMap<>();
+        // Marker name to the bits of the marker names it is an instance of, only created with marker scopes
+        private final BoundedCache<String, Long> markerBitCache;
+
+        Partitions(int patternCount, List<Scope> scopes) {
+            this.levels = new int[patternCount][];
+            this.markers = new long[patternCount];
+            List<String> names = new ArrayList<>();
+            for (int i = 0; scopes != null && i < Math.min(patternCount, scopes.size()); i++) {
+                Scope scope = scopes.get(i);
+                if (scope == null || scope.isAll()) {
+                    continue;
+                }
+                if (!scope.levels().isEmpty()) {
+                    levels[i] = scope.levels().stream().mapToInt(Level::intLevel).distinct().toArray();
+                }
+                for (String name : scope.markers()) {
+                    int bit = names.indexOf(name);
+                    if (bit < 0) {
+                        if (names.size() == Long.SIZE) {
+                            throw new IllegalArgumentException("Patterns can be scoped to at most " + Long.SIZE + " markers");
+                        }
+                        bit = names.size();
+                        names.add(name);
+                    }
+                    markers[i] |= 1L << bit;
+                }
+            }
+            this.markerNames = names.toArray(new String[0]);
+            for (int slot = 0; slot < STANDARD_SLOTS; slot++) {
+                byLevel[slot] = select(slot * 100, true);
+                unmarkedByLevel[slot] = select(slot * 100, false);
+            }
+            this.all = select(ANY_LEVEL, true);
+            this.unmarkedAll = select(ANY_LEVEL, false);
+            this.markerBitCache = markerNames.length > 0
+                    ? CacheBudget.global().newCache("markerScopes", 2, (name, bits) -> CacheBudget.stringBytes(name) + 16)
+                    : null;
+        }
+
+        /**
+         * @return The indexes of the patterns that apply to a level, in rule order
+         */
+        int[] candidates(int intLevel, boolean marked) {
+            if (intLevel == ANY_LEVEL) {
+                return marked ? all : unmarkedAll;
+            }
+            if (intLevel >= 0 && intLevel % 100 == 0 && intLevel / 100 < STANDARD_SLOTS) {
+                return marked ? byLevel[intLevel / 100] : unmarkedByLevel[intLevel / 100];
+            }
+            int[][] custom = customLevels.computeIfAbsent(intLevel, level -> new int[][]{select(level, true), select(level, false)});
+            return marked ? custom[0] : custom[1];
+        }
+
+        private int[] select(int intLevel, boolean marked) {
+            List<Integer> selected = new ArrayList<>();
+            for (int i = 0; i < levels.length; i++) {
+                if ((marked || markers[i] == 0) && (intLevel == ANY_LEVEL || appliesTo(levels[i], intLevel))) {
+                    selected.add(i);
+                }
+            }
+            return selected.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        private static boolean appliesTo(int[] patternLevels, int intLevel) {
+            if (patternLevels == null) {
+                return true;
+            }
+            for (int level : patternLevels) {
+                if (level == intLevel) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return The bits of the scoped marker names the marker is an instance of, cached per marker name
+         */
+        long markerBits(Marker marker) {
+            if (markerBitCache == null) {
+                return 0;
+            }
+            Long cached = markerBitCache.get(marker.getName());
+            if (cached != null) {
+                return cached;
+            }
+            long bits = 0;
+            for (int i = 0; i < markerNames.length; i++) {
+                if (marker.isInstanceOf(markerNames[i])) {
+                    bits |= 1L << i;
+                }
+            }
+            markerBitCache.put(marker.getName(), bits);
+            return bits;
+        }
+    }
+}
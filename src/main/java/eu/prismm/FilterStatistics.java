@@ -0,0 +1,182 @@
+package eu.prismm;
+
+import org.apache.logging.log4j.core.LogEvent;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts passed and denied events per rule and logger, and captures per source, and adds
+ * the counts to a persistent TimeSeriesStore once a minute.
+ *
+ * Events are counted in striped in-memory counters: each stripe is a row of counters, one
+ * per series, and threads are spread over the stripes by thread id. The flush thread takes
+ * every counter with getAndSet(0), so no count is lost between two flushes, and writes the
+ * sum of the stripes to the store in one go.
+ *
+ * Once the store is full, further loggers, rules and sources take over the slots of series
+ * that were idle for two years, and are counted under "(other)" if there are none.
+ */
+public final class FilterStatistics implements FilterObserver {
+    public static final String OTHER = "(other)";
+
+    private final TimeSeriesStore store;
+    private final int capacity;
+    private final int stripeMask;
+    private final AtomicLongArray counters;
+    // Logger name to its passed slot in the high and its denied slot in the low 16 bits
+    private final BoundedCache<String, Integer> loggerSlots =
+            CacheBudget.global().newCache("statisticsLoggers", 5, (name, slots) -> CacheBudget.stringBytes(name));
+    // Rule descriptions and sources are few, so they are simply kept. Those that got no slot
+    // are kept as "(other)" until the next flush, so a full store is searched once a minute
+    private final Map<String, Integer> ruleSlots = new ConcurrentHashMap<>();
+    private final Map<String, Integer> sourceSlots = new ConcurrentHashMap<>();
+    private final int passed;
+    private final int denied;
+    private final int otherLoggerPassed;
+    private final int otherLoggerDenied;
+    private final int otherRule;
+    private final int otherSource;
+    private Thread flusher;
+
+    /**
+     * @param store The store to add the counts to
+     * @param capacity The number of series in the store, at most 65536
+     */
+    public FilterStatistics(TimeSeriesStore store, int capacity) {
+        this.store = store;
+        this.capacity = capacity;
+        // A power of two so a thread id can be masked onto a stripe
+        int stripeCount = Integer.highestOneBit(Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors())));
+        this.stripeMask = stripeCount - 1;
+        this.counters = new AtomicLongArray(stripeCount * capacity);
+        this.passed = store.slot("passed");
+        this.denied = store.slot("denied");
+        this.otherLoggerPassed = store.slot("passed/logger/" + OTHER);
+        this.otherLoggerDenied = store.slot("denied/logger/" + OTHER);
+        this.otherRule = store.slot("denied/rule/" + OTHER);
+        this.otherSource = store.slot("captures/source/" + OTHER);
+    }
+
+    @Override
+    public void observe(LogEvent event, boolean suppressed) {
+        observe(event, suppressed, null);
+    }
+
+    @Override
+    public void observe(LogEvent event, boolean suppressed, String rule) {
+        int base = ((int) Thread.currentThread().threadId() & stripeMask) * capacity;
+        increment(base, suppressed ? denied : passed);
+        int slots = loggerSlots(event.getLoggerName());
+        increment(base, suppressed ? slots & 0xFFFF : slots >>> 16);
+        if (suppressed && rule != null) {
+            increment(base, slotOf(ruleSlots, rule, "denied/rule/", otherRule));
+        }
+    }
+
+    /**
+     * Count one exception capture
+     *
+     * @param source The source the capture was written for
+     */
+    public void recordCapture(String source) {
+        int base = ((int) Thread.currentThread().threadId() & stripeMask) * capacity;
+        increment(base, slotOf(sourceSlots, source, "captures/source/", otherSource));
+    }
+
+    private void increment(int base, int slot) {
+        if (slot >= 0) {
+            counters.getAndIncrement(base + slot);
+        }
+    }
+
+    private int loggerSlots(String loggerName) {
+        String name = loggerName != null ? loggerName : "";
+        Integer cached = loggerSlots.get(name);
+        if (cached != null) {
+            return cached;
+        }
+        int passedSlot = store.slot("passed/logger/" + name);
+        int deniedSlot = passedSlot >= 0 ? store.slot("denied/logger/" + name) : -1;
+        if (passedSlot < 0 || deniedSlot < 0) {
+            passedSlot = otherLoggerPassed;
+            deniedSlot = otherLoggerDenied;
+        }
+        int slots = (passedSlot & 0xFFFF) << 16 | (deniedSlot & 0xFFFF);
+        loggerSlots.put(name, slots);
+        return slots;
+    }
+
+    private int slotOf(Map<String, Integer> slots, String key, String prefix, int other) {
+        Integer cached = slots.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        int slot = store.slot(prefix + key);
+        if (slot < 0) {
+            // Looking for a slot to take over scans the store, so don't on every event
+            slot = other;
+        }
+        slots.put(key, slot);
+        return slot;
+    }
+
+    /**
+     * Start adding the counts to the store at the end of every minute
+     */
+    public void start() {
+        flusher = new Thread(this::runFlusher, "NoConsoleSpam-Statistics");
+        flusher.setDaemon(true);
+        flusher.start();
+        // After the exception writers, so captures counted while they drain are stored too
+        ShutdownSequence.register(ShutdownSequence.STATISTICS, "filter statistics", () -> {
+            // The minute in progress is stored as it is
+            flush(System.currentTimeMillis() / 60_000L);
+            store.close();
+        });
+    }
+
+    private void runFlusher() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                long now = System.currentTimeMillis();
+                Thread.sleep(60_000L - now % 60_000L);
+                // Counted during the minute that just ended
+                flush(System.currentTimeMillis() / 60_000L - 1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                System.err.println("Failed to write filter statistics: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Take the counts of all stripes and add them to the store
+     *
+     * @param epochMinute The minute the counts are stored under
+     */
+    public synchronized void flush(long epochMinute) {
+        // Let rules and sources without a slot try again once a minute
+        ruleSlots.values().removeIf(slot -> slot == otherRule);
+        sourceSlots.values().removeIf(slot -> slot == otherSource);
+        long[] totals = new long[capacity];
+        boolean any = false;
+        for (int i = 0; i < counters.length(); i++) {
+            long count = counters.getAndSet(i, 0);
+            if (count != 0) {
+                totals[i % capacity] += count;
+                any = true;
+            }
+        }
+        if (any) {
+            store.add(epochMinute, totals);
+            store.force();
+        }
+    }
+
+    public TimeSeriesStore getStore() {
+        return store;
+    }
+}
@@ -0,0 +1,430 @@
+package eu.prismm;
+
+import org.apache.logging.log4j.Level;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replacement for System.out and System.err that runs every complete line through the same
+ * FilterRules as SpamFilter.
+ *
+ * Text is assembled into a buffer per thread, so printing threads never contend on the
+ * PrintStream lock. Complete lines that survive the rules are queued, and a background
+ * thread writes them to the original stream in batches. The stream name ("STDOUT" or
+ * "STDERR") is used as the logger name, so it can also be listed in ignoredLoggers. Lines
+ * are matched as INFO messages without a marker, so patterns scoped to other levels or to
+ * markers leave them alone.
+ *
+ * Lines longer than MAX_LINE_LENGTH are passed on in pieces, and every piece gets the
+ * verdict the rules gave the first one.
+ *
+ * Minecraft's bootstrap replaces both streams with its own, which hand every line to Log4j,
+ * where SpamFilter sees it as a regular message. So these streams only see what is printed
+ * before the bootstrap, during mod loading.
+ */
+public class FilteredPrintStream extends PrintStream {
+    // Lines longer than this are passed on in pieces instead of growing the buffer forever
+    private static final int MAX_LINE_LENGTH = 16 * 1024;
+    // Above this many queued lines the printing thread writes the backlog itself
+    private static final int MAX_QUEUED_LINES = 8192;
+    private static final long FLUSH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final PrintStream original;
+    // Immutable, swapped whole by setRules; each line reads it once
+    private volatile FilterRules rules;
+    private final String streamName;
+    private final Charset charset;
+    private final ThreadLocal<LineBuffer> buffers = ThreadLocal.withInitial(LineBuffer::new);
+    private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicLong suppressedLines = new AtomicLong();
+    private final Thread flusher;
+    private volatile boolean closed = false;
+
+    /**
+     * @param original The stream surviving lines are written to
+     * @param rules The compiled spam rules
+     * @param streamName The name the rules see as logger name
+     */
+    public FilteredPrintStream(PrintStream original, FilterRules rules, String streamName) {
+        super(OutputStream.nullOutputStream(), false, original.charset());
+        this.original = original;
+        this.rules = rules;
+        this.streamName = streamName;
+        this.charset = original.charset();
+        this.flusher = new Thread(this::runFlusher, "NoConsoleSpam-" + streamName);
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Replace System.out and System.err with filtered streams that follow the rules of a spam filter
+     *
+     * @param filter The spam filter whose rules, current and future, the streams use
+     */
+    public static void install(SpamFilter filter) {
+        FilteredPrintStream out = new FilteredPrintStream(System.out, filter.getRules(), "STDOUT");
+        FilteredPrintStream err = new FilteredPrintStream(System.err, filter.getRules(), "STDERR");
+        filter.addRulesListener(out::setRules);
+        filter.addRulesListener(err::setRules);
+        System.setOut(out);
+        System.setErr(err);
+        ShutdownSequence.register(ShutdownSequence.SYSTEM_STREAMS, "System stream flush", () -> {
+            out.close();
+            err.close();
+        });
+    }
+
+    /**
+     * @param rules The rules to use from now on, replacing the current ones as a whole
+     */
+    public void setRules(FilterRules rules) {
+        this.rules = rules;
+    }
+
+    public PrintStream getOriginal() {
+        return original;
+    }
+
+    /**
+     * @return The number of lines dropped by the rules
+     */
+    public long getSuppressedLines() {
+        return suppressedLines.get();
+    }
+
+    private void appendText(CharSequence text) {
+        LineBuffer buffer = buffers.get();
+        buffer.decodeBytes(charset);
+        StringBuilder line = buffer.text;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\n') {
+                completeLine(buffer, true);
+            } else {
+                line.append(c);
+                if (line.length() >= MAX_LINE_LENGTH) {
+                    completeLine(buffer, false);
+                }
+            }
+        }
+    }
+
+    private void appendNewline() {
+        LineBuffer buffer = buffers.get();
+        buffer.decodeBytes(charset);
+        completeLine(buffer, true);
+    }
+
+    /**
+     * Pass on or drop the text in a thread's buffer
+     *
+     * @param buffer The thread's buffer
+     * @param newline true if the text ends a line, false if it is a piece of a longer line
+     */
+    private void completeLine(LineBuffer buffer, boolean newline) {
+        StringBuilder line = buffer.text;
+        int length = line.length();
+        // Keep \r\n line endings intact but match on the text without the \r
+        int end = length > 0 && line.charAt(length - 1) == '\r' ? length - 1 : length;
+        String text = line.substring(0, end);
+        line.setLength(0);
+
+        // Only the first piece of a line is matched, so a pattern sees the start of the line once
+        boolean suppressed;
+        if (buffer.continued) {
+            suppressed = buffer.suppressed;
+        } else {
+            suppressed = end > 0 && rules.match(streamName, Level.INFO.intLevel(), null, text) != FilterRules.NO_MATCH;
+            if (suppressed) {
+                suppressedLines.incrementAndGet();
+            }
+        }
+        buffer.continued = !newline && (end > 0 || buffer.continued);
+        buffer.suppressed = suppressed;
+        if (suppressed) {
+            return;
+        }
+        if (length != end) {
+            text = text + '\r';
+        }
+        enqueue(newline ? text + '\n' : text);
+    }
+
+    private void enqueue(String text) {
+        if (closed) {
+            original.print(text);
+            return;
+        }
+        pending.add(text);
+        int queued = pendingCount.incrementAndGet();
+        if (queued == 1) {
+            LockSupport.unpark(flusher);
+        } else if (queued > MAX_QUEUED_LINES) {
+            // The console can't keep up; make the producers pay for it instead of using unbounded memory
+            drain();
+        }
+    }
+
+    private void runFlusher() {
+        while (!closed) {
+            if (pendingCount.get() == 0) {
+                LockSupport.parkNanos(this, FLUSH_INTERVAL_NANOS);
+            }
+            drain();
+        }
+    }
+
+    /**
+     * Write everything queued so far to the original stream as one batch
+     */
+    private void drain() {
+        synchronized (original) {
+            StringBuilder batch = null;
+            String text;
+            while ((text = pending.poll()) != null) {
+                pendingCount.decrementAndGet();
+                if (batch == null) {
+                    batch = new StringBuilder(Math.max(256, text.length()));
+                }
+                batch.append(text);
+            }
+            if (batch != null) {
+                original.print(batch);
+                original.flush();
+            }
+        }
+    }
+
+    @Override
+    public void write(int b) {
+        LineBuffer buffer = buffers.get();
+        if (b == '\n') {
+            buffer.decodeBytes(charset);
+            completeLine(buffer, true);
+        } else {
+            buffer.appendByte((byte) b);
+            if (buffer.byteCount >= MAX_LINE_LENGTH) {
+                buffer.decodeBytes(charset);
+                completeLine(buffer, false);
+            }
+        }
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            write(bytes[i]);
+        }
+    }
+
+    @Override
+    public void write(byte[] bytes) {
+        write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Pass on the current thread's partial line, for prompts and progress output printed without a newline
+     */
+    @Override
+    public void flush() {
+        LineBuffer buffer = buffers.get();
+        buffer.decodeBytes(charset);
+        if (buffer.text.length() > 0) {
+            completeLine(buffer, false);
+        }
+        drain();
+    }
+
+    @Override
+    public void close() {
+        flush();
+        closed = true;
+        LockSupport.unpark(flusher);
+        drain();
+    }
+
+    @Override
+    public boolean checkError() {
+        return original.checkError();
+    }
+
+    @Override
+    public void print(boolean b) {
+        appendText(String.valueOf(b));
+    }
+
+    @Override
+    public void print(char c) {
+        appendText(String.valueOf(c));
+    }
+
+    @Override
+    public void print(int i) {
+        appendText(String.valueOf(i));
+    }
+
+    @Override
+    public void print(long l) {
+        appendText(String.valueOf(l));
+    }
+
+    @Override
+    public void print(float f) {
+        appendText(String.valueOf(f));
+    }
+
+    @Override
+    public void print(double d) {
+        appendText(String.valueOf(d));
+    }
+
+    @Override
+    public void print(char[] s) {
+        appendText(new String(s));
+    }
+
+    @Override
+    public void print(String s) {
+        appendText(String.valueOf(s));
+    }
+
+    @Override
+    public void print(Object obj) {
+        appendText(String.valueOf(obj));
+    }
+
+    @Override
+    public void println() {
+        appendNewline();
+    }
+
+    @Override
+    public void println(boolean x) {
+        print(x);
+        appendNewline();
+    }
+
+    @Override
+    public void println(char x) {
+        print(x);
+        appendNewline();
+    }
+
+    @Override
+    public void println(int x) {
+        print(x);
+        appendNewline();
+    }
+
+    @Override
+    public void println(long x) {
+        print(x);
+        appendNewline();
+    }
+
+    @Override
+    public void println(float x) {
+        print(x);
+        appendNewline();
+    }
+
+    @Override
+    public void println(double x) {
+        print(x);
+        appendNewline();
+    }
+
+    @Override
+    public void println(char[] x) {
+        print(x);
+        appendNewline();
+    }
+
+    @Override
+    public void println(String x) {
+        print(x);
+        appendNewline();
+    }
+
+    @Override
+    public void println(Object x) {
+        print(x);
+        appendNewline();
+    }
+
+    @Override
+    public PrintStream format(String format, Object... args) {
+        appendText(String.format(format, args));
+        return this;
+    }
+
+    @Override
+    public PrintStream format(Locale locale, String format, Object... args) {
+        appendText(String.format(locale, format, args));
+        return this;
+    }
+
+    @Override
+    public PrintStream printf(String format, Object... args) {
+        return format(format, args);
+    }
+
+    @Override
+    public PrintStream printf(Locale locale, String format, Object... args) {
+        return format(locale, format, args);
+    }
+
+    @Override
+    public PrintStream append(CharSequence csq) {
+        appendText(String.valueOf(csq));
+        return this;
+    }
+
+    @Override
+    public PrintStream append(CharSequence csq, int start, int end) {
+        appendText((csq == null ? "null" : csq).subSequence(start, end));
+        return this;
+    }
+
+    @Override
+    public PrintStream append(char c) {
+        print(c);
+        return this;
+    }
+
+    /**
+     * The partial line of one thread. Raw bytes are kept separately until they can be decoded as a whole.
+     */
+    private static class LineBuffer {
+        final StringBuilder text = new StringBuilder(128);
+        byte[] bytes = new byte[128];
+        int byteCount;
+        // Set while the pieces of a line that was passed on early are still coming in
+        boolean continued;
+        boolean suppressed;
+
+        void appendByte(byte b) {
+            if (byteCount == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            bytes[byteCount++] = b;
+        }
+
+        void decodeBytes(Charset charset) {
+            if (byteCount > 0) {
+                text.append(new String(bytes, 0, byteCount, charset));
+                byteCount = 0;
+            }
+        }
+    }
+}
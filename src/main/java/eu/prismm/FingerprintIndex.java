@@ -0,0 +1,405 @@
+package eu.prismm;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent record of every exception fingerprint seen across restarts.
+ *
+ * The index is a memory-mapped open-addressing hash table with linear probing. Opening it
+ * only maps the file and checks the header, and every lookup or update touches a single
+ * slot, so its cost does not grow with the number of recorded exceptions. Which fingerprints
+ * point at a capture file is kept in a map built from the table the first time a file is
+ * renamed or deleted, so following retention doesn't scan the table either.
+ *
+ * File layout:
+ *   header (64 bytes): magic, format version, capacity, size
+ *   slots (128 bytes each): fingerprint, count, first seen, last seen, modpack version,
+ *                           representative file name length and bytes
+ */
+public class FingerprintIndex {
+    private static final Logger LOGGER = LogManager.getLogger(NoConsoleSpam.MOD_ID);
+    public static final String FILENAME = ".fingerprints.idx";
+
+    private static final int MAGIC = 0x4E435346; // "NCSF"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 128;
+    private static final int INITIAL_CAPACITY = 8192;
+    private static final int MAX_LOAD_PERCENT = 70;
+
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_CAPACITY = 8;
+    private static final int OFFSET_SIZE = 12;
+
+    private static final int SLOT_FINGERPRINT = 0;
+    private static final int SLOT_COUNT = 8;
+    private static final int SLOT_FIRST_SEEN = 16;
+    private static final int SLOT_LAST_SEEN = 24;
+    private static final int SLOT_MODPACK_VERSION = 32;
+    private static final int SLOT_FILE_LENGTH = 40;
+    private static final int SLOT_FILE = 42;
+    private static final int MAX_FILE_BYTES = SLOT_SIZE - SLOT_FILE;
+
+    private final Path file;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int size;
+    // Representative file, as stored, to the fingerprints pointing at it; null until first needed
+    private Map<String, List<Long>> fingerprintsByFile;
+
+    private FingerprintIndex(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Open the index, creating an empty one if the file is missing or unreadable
+     *
+     * @param directory The exception log directory
+     * @return The opened index
+     */
+    public static FingerprintIndex open(Path directory) throws IOException {
+        FingerprintIndex index = new FingerprintIndex(directory.resolve(FILENAME));
+        index.load();
+        return index;
+    }
+
+    private void load() throws IOException {
+        if (Files.exists(file) && Files.size(file) >= HEADER_SIZE) {
+            map(file);
+            int fileCapacity = buffer.getInt(OFFSET_CAPACITY);
+            if (buffer.getInt(OFFSET_MAGIC) == MAGIC
+                    && buffer.getInt(OFFSET_VERSION) == FORMAT_VERSION
+                    && Integer.bitCount(fileCapacity) == 1
+                    && Files.size(file) == HEADER_SIZE + (long) fileCapacity * SLOT_SIZE) {
+                capacity = fileCapacity;
+                size = buffer.getInt(OFFSET_SIZE);
+                return;
+            }
+            LOGGER.warn("Exception fingerprint index {} is invalid, starting a new one", file.toAbsolutePath());
+            close();
+        }
+        create(file, INITIAL_CAPACITY);
+        map(file);
+        capacity = INITIAL_CAPACITY;
+        size = 0;
+    }
+
+    private static void create(Path target, int capacity) throws IOException {
+        try (FileChannel created = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer header = created.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (long) capacity * SLOT_SIZE);
+            header.putInt(OFFSET_MAGIC, MAGIC);
+            header.putInt(OFFSET_VERSION, FORMAT_VERSION);
+            header.putInt(OFFSET_CAPACITY, capacity);
+            header.putInt(OFFSET_SIZE, 0);
+            header.force();
+        }
+    }
+
+    private void map(Path source) throws IOException {
+        channel = FileChannel.open(source, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+    }
+
+    /**
+     * Record an occurrence of a fingerprint
+     *
+     * @param fingerprint The fingerprint of the exception
+     * @param now The current time in epoch milliseconds
+     * @param modpackVersion The current ModpackVersion
+     * @return true if the fingerprint is new or was last recorded by another modpack version,
+     *         meaning a full trace should be written
+     */
+    public synchronized boolean record(long fingerprint, long now, long modpackVersion) {
+        if (buffer == null) {
+            return true;
+        }
+
+        int slot = findSlot(fingerprint);
+        int offset = slotOffset(slot);
+        if (buffer.getLong(offset + SLOT_FINGERPRINT) == fingerprint) {
+            buffer.putLong(offset + SLOT_COUNT, buffer.getLong(offset + SLOT_COUNT) + 1);
+            buffer.putLong(offset + SLOT_LAST_SEEN, now);
+            if (buffer.getLong(offset + SLOT_MODPACK_VERSION) == modpackVersion) {
+                return false;
+            }
+            buffer.putLong(offset + SLOT_MODPACK_VERSION, modpackVersion);
+            return true;
+        }
+
+        if ((size + 1) * 100L > (long) capacity * MAX_LOAD_PERCENT) {
+            if (grow()) {
+                return record(fingerprint, now, modpackVersion);
+            }
+            // Out of room and unable to grow; treat as new so nothing is lost
+            return true;
+        }
+
+        buffer.putLong(offset + SLOT_FINGERPRINT, fingerprint);
+        buffer.putLong(offset + SLOT_COUNT, 1);
+        buffer.putLong(offset + SLOT_FIRST_SEEN, now);
+        buffer.putLong(offset + SLOT_LAST_SEEN, now);
+        buffer.putLong(offset + SLOT_MODPACK_VERSION, modpackVersion);
+        buffer.putShort(offset + SLOT_FILE_LENGTH, (short) 0);
+        size++;
+        buffer.putInt(OFFSET_SIZE, size);
+        return true;
+    }
+
+    /**
+     * Remember which capture file holds the full trace of a fingerprint
+     *
+     * @param fingerprint The fingerprint of the exception
+     * @param fileName The capture file, relative to the exception log directory
+     */
+    public synchronized void setRepresentativeFile(long fingerprint, String fileName) {
+        if (buffer == null) {
+            return;
+        }
+        int slot = findSlot(fingerprint);
+        int offset = slotOffset(slot);
+        if (buffer.getLong(offset + SLOT_FINGERPRINT) != fingerprint) {
+            return;
+        }
+        byte[] bytes = fileName.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, MAX_FILE_BYTES);
+        if (fingerprintsByFile != null) {
+            unlinkFile(offset, fingerprint);
+            fingerprintsByFile.computeIfAbsent(fileKey(bytes, length), key -> new ArrayList<>(1)).add(fingerprint);
+        }
+        buffer.putShort(offset + SLOT_FILE_LENGTH, (short) length);
+        buffer.put(offset + SLOT_FILE, bytes, 0, length);
+    }
+
+    /**
+     * Follow a capture file that was renamed or deleted. Fingerprints whose full trace was in a
+     * deleted file forget it and are treated as new on their next occurrence, so the trace is
+     * written again instead of every later occurrence pointing at a missing file.
+     *
+     * @param fileName The capture file, relative to the exception log directory
+     * @param newName The new name of the file, or null if it was deleted
+     * @return The number of fingerprints that pointed at the file
+     */
+    public synchronized int moveRepresentativeFile(String fileName, String newName) {
+        if (buffer == null) {
+            return 0;
+        }
+        if (fingerprintsByFile == null) {
+            indexFiles();
+        }
+        byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+        List<Long> fingerprints = fingerprintsByFile.remove(fileKey(name, Math.min(name.length, MAX_FILE_BYTES)));
+        if (fingerprints == null) {
+            return 0;
+        }
+        byte[] replacement = newName != null ? newName.getBytes(StandardCharsets.UTF_8) : null;
+        int replacementLength = replacement != null ? Math.min(replacement.length, MAX_FILE_BYTES) : 0;
+        int moved = 0;
+        for (long fingerprint : fingerprints) {
+            int offset = slotOffset(findSlot(fingerprint));
+            if (buffer.getLong(offset + SLOT_FINGERPRINT) != fingerprint) {
+                continue;
+            }
+            if (replacement != null) {
+                buffer.putShort(offset + SLOT_FILE_LENGTH, (short) replacementLength);
+                buffer.put(offset + SLOT_FILE, replacement, 0, replacementLength);
+            } else {
+                buffer.putShort(offset + SLOT_FILE_LENGTH, (short) 0);
+                // No modpack version is 0, so record() sees the next occurrence as new
+                buffer.putLong(offset + SLOT_MODPACK_VERSION, 0);
+            }
+            moved++;
+        }
+        if (replacement != null) {
+            fingerprintsByFile.computeIfAbsent(fileKey(replacement, replacementLength), key -> new ArrayList<>(1))
+                    .addAll(fingerprints);
+        }
+        return moved;
+    }
+
+    /**
+     * Build the map of representative files with one pass over the table
+     */
+    private void indexFiles() {
+        fingerprintsByFile = new HashMap<>();
+        byte[] stored = new byte[MAX_FILE_BYTES];
+        for (int slot = 0; slot < capacity; slot++) {
+            int offset = slotOffset(slot);
+            long fingerprint = buffer.getLong(offset + SLOT_FINGERPRINT);
+            int length = buffer.getShort(offset + SLOT_FILE_LENGTH);
+            if (fingerprint != 0 && length > 0) {
+                buffer.get(offset + SLOT_FILE, stored, 0, length);
+                fingerprintsByFile.computeIfAbsent(fileKey(stored, length), key -> new ArrayList<>(1)).add(fingerprint);
+            }
+        }
+    }
+
+    /**
+     * Drop a fingerprint from the map entry of the file its slot points at
+     */
+    private void unlinkFile(int offset, long fingerprint) {
+        int length = buffer.getShort(offset + SLOT_FILE_LENGTH);
+        if (length <= 0) {
+            return;
+        }
+        byte[] stored = new byte[length];
+        buffer.get(offset + SLOT_FILE, stored);
+        String key = fileKey(stored, length);
+        List<Long> fingerprints = fingerprintsByFile.get(key);
+        if (fingerprints != null) {
+            fingerprints.remove(Long.valueOf(fingerprint));
+            if (fingerprints.isEmpty()) {
+                fingerprintsByFile.remove(key);
+            }
+        }
+    }
+
+    /**
+     * @return The stored bytes of a file name as a map key; Latin-1 keeps every byte, even of a name cut mid-character
+     */
+    private static String fileKey(byte[] bytes, int length) {
+        return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @param fingerprint The fingerprint to look up
+     * @return How often the fingerprint was recorded, 0 if it is unknown
+     */
+    public synchronized long getCount(long fingerprint) {
+        if (buffer == null) {
+            return 0;
+        }
+        int offset = slotOffset(findSlot(fingerprint));
+        return buffer.getLong(offset + SLOT_FINGERPRINT) == fingerprint ? buffer.getLong(offset + SLOT_COUNT) : 0;
+    }
+
+    /**
+     * @param fingerprint The fingerprint to look up
+     * @return The representative capture file, or null if the fingerprint is unknown
+     */
+    public synchronized String getRepresentativeFile(long fingerprint) {
+        if (buffer == null) {
+            return null;
+        }
+        int offset = slotOffset(findSlot(fingerprint));
+        if (buffer.getLong(offset + SLOT_FINGERPRINT) != fingerprint) {
+            return null;
+        }
+        byte[] bytes = new byte[buffer.getShort(offset + SLOT_FILE_LENGTH)];
+        buffer.get(offset + SLOT_FILE, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Linear probe for a fingerprint
+     *
+     * @return The slot holding the fingerprint, or the empty slot where it belongs
+     */
+    private int findSlot(long fingerprint) {
+        int mask = capacity - 1;
+        int slot = (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+        while (true) {
+            long existing = buffer.getLong(slotOffset(slot) + SLOT_FINGERPRINT);
+            if (existing == 0 || existing == fingerprint) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    /**
+     * Rehash into a table of twice the size. The file is extended and rehashed in place rather
+     * than replaced, since a file that is still mapped can't be replaced on Windows. The new
+     * capacity is written to the header last, so a crash halfway leaves a file whose size
+     * doesn't match its header, which is discarded on the next start instead of being read.
+     */
+    private boolean grow() {
+        int newCapacity = capacity * 2;
+        if (HEADER_SIZE + (long) newCapacity * SLOT_SIZE > Integer.MAX_VALUE) {
+            return false;
+        }
+
+        MappedByteBuffer grown;
+        try {
+            // Mapping past the end extends the file; the old mapping stays valid until then
+            grown = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) newCapacity * SLOT_SIZE);
+        } catch (IOException e) {
+            LOGGER.error("Failed to grow exception fingerprint index", e);
+            return false;
+        }
+
+        byte[] entries = new byte[size * SLOT_SIZE];
+        int count = 0;
+        for (int slot = 0; slot < capacity && count < size; slot++) {
+            int from = slotOffset(slot);
+            if (grown.getLong(from + SLOT_FINGERPRINT) != 0) {
+                grown.get(from, entries, count * SLOT_SIZE, SLOT_SIZE);
+                count++;
+            }
+        }
+        for (int offset = HEADER_SIZE; offset < slotOffset(capacity); offset += 8) {
+            grown.putLong(offset, 0);
+        }
+        ByteBuffer copied = ByteBuffer.wrap(entries);
+        int mask = newCapacity - 1;
+        for (int i = 0; i < count; i++) {
+            long fingerprint = copied.getLong(i * SLOT_SIZE + SLOT_FINGERPRINT);
+            int to = (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+            while (grown.getLong(slotOffset(to) + SLOT_FINGERPRINT) != 0) {
+                to = (to + 1) & mask;
+            }
+            grown.put(slotOffset(to), entries, i * SLOT_SIZE, SLOT_SIZE);
+        }
+        grown.force();
+        grown.putInt(OFFSET_CAPACITY, newCapacity);
+        grown.force();
+
+        buffer = grown;
+        capacity = newCapacity;
+        LOGGER.debug("Grew exception fingerprint index to {} slots", newCapacity);
+        return true;
+    }
+
+    /**
+     * Flush the mapped table to disk and release the file
+     */
+    public synchronized void close() {
+        if (buffer != null) {
+            buffer.force();
+            buffer = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.debug("Failed to close exception fingerprint index", e);
+            }
+            channel = null;
+        }
+    }
+}
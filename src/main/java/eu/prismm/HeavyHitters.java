@@ -0,0 +1,320 @@
+package eu.prismm;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.LogEvent;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tracks the loggers and message templates that log the most, in fixed memory.
+ *
+ * Each stripe keeps one Space-Saving summary per dimension and 10 second bucket, for the
+ * last 15 minutes. A summary holds at most capacity keys in a min-heap; a new key evicts
+ * the smallest one and inherits its count as error, so counts are never underestimated
+ * and every key that logged more than 1/capacity of a bucket is guaranteed to be there.
+ * Threads are spread over the stripes by thread id, so they rarely share a lock.
+ * Sliding windows are answered by merging the buckets they cover.
+ */
+public final class HeavyHitters implements FilterObserver, HeavyHittersMXBean {
+    private static final Logger LOGGER = LogManager.getLogger(NoConsoleSpam.MOD_ID);
+    private static final String OBJECT_NAME = "eu.prismm.noconsolespam:type=HeavyHitters";
+
+    private static final int BUCKET_MILLIS = 10_000;
+    private static final int BUCKETS = 90; // 15 minutes
+    private static final int MAX_KEY_LENGTH = 200;
+    private static final int LOGGERS = 0;
+    private static final int TEMPLATES = 1;
+    private static final DateTimeFormatter REPORT_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private final Summary[][][] stripes;
+    private final int topK;
+    private final Path reportFile;
+    private final long reportIntervalMillis;
+    private Thread reporter;
+
+    /**
+     * @param settings The heavy hitter settings
+     */
+    public HeavyHitters(FilterConfig.HeavyHitterSettings settings) {
+        this.topK = Math.max(1, settings.getTopK());
+        int capacity = Math.max(topK, settings.getCapacity());
+        // A power of two so a thread id can be masked onto a stripe
+        int stripeCount = Integer.highestOneBit(Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors())));
+        this.stripes = new Summary[stripeCount][2][BUCKETS];
+        for (Summary[][] stripe : stripes) {
+            for (Summary[] dimension : stripe) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    dimension[i] = new Summary(capacity);
+                }
+            }
+        }
+        this.reportFile = settings.getReportFile() == null || settings.getReportFile().isEmpty()
+                ? null : Path.of(settings.getReportFile());
+        this.reportIntervalMillis = Math.max(1, settings.getReportIntervalSeconds()) * 1000L;
+    }
+
+    @Override
+    public void observe(LogEvent event, boolean suppressed) {
+        String template = event.getMessage() != null ? event.getMessage().getFormat() : null;
+        record(event.getLoggerName(), template, suppressed);
+    }
+
+    /**
+     * Count one event
+     *
+     * @param loggerName The logger name, may be null
+     * @param template The unformatted message, may be null
+     * @param suppressed true if the event was denied
+     */
+    public void record(String loggerName, String template, boolean suppressed) {
+        long bucket = System.currentTimeMillis() / BUCKET_MILLIS;
+        int slot = (int) (bucket % BUCKETS);
+        Summary[][] stripe = stripes[(int) (Thread.currentThread().threadId() & (stripes.length - 1))];
+        synchronized (stripe) {
+            stripe[LOGGERS][slot].offer(bucket, key(loggerName), suppressed);
+            stripe[TEMPLATES][slot].offer(bucket, key(template), suppressed);
+        }
+    }
+
+    private static String key(String value) {
+        if (value == null) {
+            return "";
+        }
+        // Long unparameterized messages would otherwise make the memory depend on the log
+        return value.length() > MAX_KEY_LENGTH ? value.substring(0, MAX_KEY_LENGTH) : value;
+    }
+
+    /**
+     * @param dimension LOGGERS or TEMPLATES
+     * @param windowBuckets How many of the latest buckets to merge
+     * @return The top keys of the window, highest count first
+     */
+    private List<Hitter> top(int dimension, int windowBuckets) {
+        long current = System.currentTimeMillis() / BUCKET_MILLIS;
+        Map<String, long[]> merged = new HashMap<>();
+        for (Summary[][] stripe : stripes) {
+            synchronized (stripe) {
+                for (Summary summary : stripe[dimension]) {
+                    if (summary.bucket > current - windowBuckets && summary.bucket <= current) {
+                        summary.mergeInto(merged);
+                    }
+                }
+            }
+        }
+
+        List<Hitter> hitters = new ArrayList<>(merged.size());
+        merged.forEach((key, totals) -> hitters.add(new Hitter(key, totals[0], totals[1], totals[2])));
+        hitters.sort((a, b) -> Long.compare(b.getCount(), a.getCount()));
+        return hitters.size() > topK ? new ArrayList<>(hitters.subList(0, topK)) : hitters;
+    }
+
+    @Override
+    public List<Hitter> getTopLoggersLastMinute() {
+        return top(LOGGERS, 60_000 / BUCKET_MILLIS);
+    }
+
+    @Override
+    public List<Hitter> getTopTemplatesLastMinute() {
+        return top(TEMPLATES, 60_000 / BUCKET_MILLIS);
+    }
+
+    @Override
+    public List<Hitter> getTopLoggersLast15Minutes() {
+        return top(LOGGERS, BUCKETS);
+    }
+
+    @Override
+    public List<Hitter> getTopTemplatesLast15Minutes() {
+        return top(TEMPLATES, BUCKETS);
+    }
+
+    /**
+     * Register the MBean and start writing the periodic report
+     *
+     * @param registerMBean true to expose the tracker over JMX
+     */
+    public void start(boolean registerMBean) {
+        if (registerMBean) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+            } catch (Exception e) {
+                LOGGER.warn("Could not register the heavy hitter MBean: {}", e.getMessage());
+            }
+        }
+        if (reportFile != null) {
+            reporter = new Thread(this::runReporter, "NoConsoleSpam-HeavyHitters");
+            reporter.setDaemon(true);
+            reporter.start();
+        }
+    }
+
+    private void runReporter() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(reportIntervalMillis);
+                writeReport();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                System.err.println("Failed to write heavy hitter report: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Write the current top loggers and templates to the report file
+     */
+    public void writeReport() throws IOException {
+        StringBuilder report = new StringBuilder();
+        report.append("NoConsoleSpam heavy hitters, ").append(LocalDateTime.now().format(REPORT_TIME)).append('\n');
+        appendSection(report, "Loggers, last minute", getTopLoggersLastMinute());
+        appendSection(report, "Templates, last minute", getTopTemplatesLastMinute());
+        appendSection(report, "Loggers, last 15 minutes", getTopLoggersLast15Minutes());
+        appendSection(report, "Templates, last 15 minutes", getTopTemplatesLast15Minutes());
+
+        if (reportFile.getParent() != null) {
+            Files.createDirectories(reportFile.getParent());
+        }
+        // Replace atomically so readers never see a half written report
+        Path temp = reportFile.resolveSibling(reportFile.getFileName() + ".tmp");
+        Files.writeString(temp, report, StandardCharsets.UTF_8);
+        Files.move(temp, reportFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void appendSection(StringBuilder report, String title, List<Hitter> hitters) {
+        report.append('\n').append(title).append('\n');
+        report.append(String.format("%12s %12s  %s%n", "count", "suppressed", "name"));
+        for (Hitter hitter : hitters) {
+            String name = hitter.getName().replace('\n', ' ').replace('\r', ' ');
+            report.append(String.format("%12d %12d  %s%n", hitter.getCount(), hitter.getSuppressed(), name));
+        }
+    }
+
+    /**
+     * One Space-Saving summary: the keys with the highest counts in a min-heap by count
+     */
+    private static final class Summary {
+        private long bucket = -1;
+        private final String[] keys;
+        private final long[] counts;
+        private final long[] suppressed;
+        private final long[] errors;
+        private final Map<String, Integer> positions;
+        private int size;
+
+        Summary(int capacity) {
+            keys = new String[capacity];
+            counts = new long[capacity];
+            suppressed = new long[capacity];
+            errors = new long[capacity];
+            positions = new HashMap<>(capacity * 2);
+        }
+
+        void offer(long bucket, String key, boolean wasSuppressed) {
+            if (this.bucket != bucket) {
+                // The slot still holds a bucket that has left the window
+                Arrays.fill(keys, 0, size, null);
+                positions.clear();
+                size = 0;
+                this.bucket = bucket;
+            }
+
+            Integer position = positions.get(key);
+            if (position != null) {
+                int i = position;
+                counts[i]++;
+                if (wasSuppressed) {
+                    suppressed[i]++;
+                }
+                siftDown(i);
+            } else if (size < keys.length) {
+                int i = size++;
+                keys[i] = key;
+                counts[i] = 1;
+                suppressed[i] = wasSuppressed ? 1 : 0;
+                errors[i] = 0;
+                positions.put(key, i);
+                siftUp(i);
+            } else {
+                // Evict the smallest key; the newcomer may have been counted that often already
+                positions.remove(keys[0]);
+                keys[0] = key;
+                errors[0] = counts[0];
+                counts[0]++;
+                suppressed[0] = wasSuppressed ? 1 : 0;
+                positions.put(key, 0);
+                siftDown(0);
+            }
+        }
+
+        void mergeInto(Map<String, long[]> merged) {
+            for (int i = 0; i < size; i++) {
+                long[] totals = merged.computeIfAbsent(keys[i], k -> new long[3]);
+                totals[0] += counts[i];
+                totals[1] += suppressed[i];
+                totals[2] += errors[i];
+            }
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (counts[parent] <= counts[i]) {
+                    return;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int smallest = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+                if (left < size && counts[left] < counts[smallest]) {
+                    smallest = left;
+                }
+                if (right < size && counts[right] < counts[smallest]) {
+                    smallest = right;
+                }
+                if (smallest == i) {
+                    return;
+                }
+                swap(i, smallest);
+                i = smallest;
+            }
+        }
+
+        private void swap(int a, int b) {
+            String key = keys[a];
+            keys[a] = keys[b];
+            keys[b] = key;
+            long count = counts[a];
+            counts[a] = counts[b];
+            counts[b] = count;
+            long hidden = suppressed[a];
+            suppressed[a] = suppressed[b];
+            suppressed[b] = hidden;
+            long error = errors[a];
+            errors[a] = errors[b];
+            errors[b] = error;
+            positions.put(keys[a], a);
+            positions.put(keys[b], b);
+        }
+    }
+}
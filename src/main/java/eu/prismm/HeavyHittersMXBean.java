@@ -0,0 +1,58 @@
+package eu.prismm;
+
+import java.util.List;
+
+/**
+ * JMX view of the loggers and message templates that log the most
+ */
+public interface HeavyHittersMXBean {
+    List<Hitter> getTopLoggersLastMinute();
+
+    List<Hitter> getTopTemplatesLastMinute();
+
+    List<Hitter> getTopLoggersLast15Minutes();
+
+    List<Hitter> getTopTemplatesLast15Minutes();
+
+    /**
+     * One logger or template with its estimated volume
+     */
+    final class Hitter {
+        private final String name;
+        private final long count;
+        private final long suppressed;
+        private final long error;
+
+        public Hitter(String name, long count, long suppressed, long error) {
+            this.name = name;
+            this.count = count;
+            this.suppressed = suppressed;
+            this.error = error;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The estimated number of events, never lower than the real number
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return How many of the counted events were suppressed
+         */
+        public long getSuppressed() {
+            return suppressed;
+        }
+
+        /**
+         * @return The most the count can be overestimated by
+         */
+        public long getError() {
+            return error;
+        }
+    }
+}
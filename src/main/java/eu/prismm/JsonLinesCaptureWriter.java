@@ -0,0 +1,233 @@
+package eu.prismm;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * Writes captures as JSON lines: one complete, structured record per line, so a capture file
+ * can be read line by line without loading it whole.
+ *
+ * Records are streamed with Gson's JsonWriter into a reused buffer and appended to the rolling
+ * captures.jsonl of a source directory through the shard's cached channel. Gson escapes line
+ * breaks inside strings, so a record never spans lines. Like printStackTrace, frames that a
+ * cause or suppressed exception shares with its enclosing trace are only counted.
+ *
+ * Each instance belongs to one source directory and is only used by the writer thread that
+ * owns that directory.
+ */
+public class JsonLinesCaptureWriter {
+    public static final String FILENAME = "captures.jsonl";
+    // Guards against self-referencing cause chains that would never end
+    private static final int MAX_DEPTH = 32;
+
+    private final Path directory;
+    private final Path file;
+    private final BiConsumer<Path, Path> moved;
+    private final RecordBuffer buffer = new RecordBuffer();
+    private long bytesWritten;
+
+    /**
+     * @param directory The source directory the captures.jsonl lives in
+     */
+    public JsonLinesCaptureWriter(Path directory) {
+        this(directory, (from, to) -> { });
+    }
+
+    /**
+     * @param directory The source directory the captures.jsonl lives in
+     * @param moved Told about every file renamed by a roll, and with a null target about every file deleted
+     */
+    public JsonLinesCaptureWriter(Path directory, BiConsumer<Path, Path> moved) {
+        this.directory = directory;
+        this.moved = moved;
+        this.file = directory.resolve(FILENAME);
+        long size;
+        try {
+            size = Files.isRegularFile(file) ? Files.size(file) : 0;
+        } catch (IOException e) {
+            size = 0;
+        }
+        this.bytesWritten = size;
+    }
+
+    /**
+     * Append one capture, rolling the file first if it has grown past maxLogSize
+     *
+     * @param shard The writer shard that owns the directory
+     * @param capture The capture to write
+     * @param maxLogSize Size at which captures.jsonl is rolled
+     * @param maxBackupIndex Number of rolled files to keep
+     */
+    public void write(ExceptionWriterPool.Shard shard, Capture capture, long maxLogSize, int maxBackupIndex) throws IOException {
+        if (bytesWritten >= maxLogSize) {
+            roll(shard, maxBackupIndex);
+        }
+        ByteBuffer record = encode(capture);
+        int length = record.remaining();
+        shard.append(file, record);
+        bytesWritten += length;
+    }
+
+    /**
+     * Rename captures.jsonl to captures.1.jsonl, shifting older files up and deleting the oldest
+     */
+    private void roll(ExceptionWriterPool.Shard shard, int maxBackupIndex) throws IOException {
+        shard.close(file);
+        if (maxBackupIndex <= 0) {
+            if (Files.deleteIfExists(file)) {
+                moved.accept(file, null);
+            }
+        } else {
+            if (Files.deleteIfExists(backup(maxBackupIndex))) {
+                moved.accept(backup(maxBackupIndex), null);
+            }
+            for (int i = maxBackupIndex - 1; i >= 1; i--) {
+                if (Files.exists(backup(i))) {
+                    Files.move(backup(i), backup(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                    moved.accept(backup(i), backup(i + 1));
+                }
+            }
+            if (Files.exists(file)) {
+                Files.move(file, backup(1), StandardCopyOption.REPLACE_EXISTING);
+                moved.accept(file, backup(1));
+            }
+        }
+        bytesWritten = 0;
+    }
+
+    private Path backup(int index) {
+        return directory.resolve("captures." + index + ".jsonl");
+    }
+
+    /**
+     * Encode a capture as one line of JSON
+     *
+     * @param capture The capture
+     * @return The record including its line break, valid until the next call
+     */
+    ByteBuffer encode(Capture capture) throws IOException {
+        buffer.reset();
+        Writer writer = new OutputStreamWriter(buffer, StandardCharsets.UTF_8);
+        JsonWriter json = new JsonWriter(writer);
+        json.setHtmlSafe(false);
+        json.beginObject();
+        json.name("time").value(capture.time());
+        json.name("date").value(Instant.ofEpochMilli(capture.time()).toString());
+        json.name("modpack").value(Long.toHexString(ModpackVersion.current()));
+        json.name("source").value(capture.source());
+        json.name("category").value(capture.category());
+        if (capture.fingerprint() != 0) {
+            json.name("fingerprint").value(Long.toHexString(capture.fingerprint()));
+        }
+        json.name("logger").value(capture.logger());
+        json.name("thread").value(capture.thread());
+        json.name("level").value(capture.level());
+        json.name("message").value(capture.message());
+        json.name("exception");
+        writeThrowable(json, capture.exception(), null, Collections.newSetFromMap(new IdentityHashMap<>()), 0);
+        json.endObject();
+        json.flush();
+        buffer.write('\n');
+        return ByteBuffer.wrap(buffer.buffer(), 0, buffer.size());
+    }
+
+    private static void writeThrowable(JsonWriter json, Throwable throwable, StackTraceElement[] enclosingTrace,
+                                       Set<Throwable> seen, int depth) throws IOException {
+        json.beginObject();
+        json.name("type").value(throwable.getClass().getName());
+        json.name("message").value(throwable.getMessage());
+        if (!seen.add(throwable) || depth >= MAX_DEPTH) {
+            // Already written higher up, printStackTrace calls this a circular reference
+            json.name("circular").value(true);
+            json.endObject();
+            return;
+        }
+
+        StackTraceElement[] trace = throwable.getStackTrace();
+        int inCommon = enclosingTrace != null ? framesInCommon(trace, enclosingTrace) : 0;
+        json.name("frames").beginArray();
+        for (int i = 0; i < trace.length - inCommon; i++) {
+            StackTraceElement frame = trace[i];
+            json.beginObject();
+            json.name("class").value(frame.getClassName());
+            json.name("method").value(frame.getMethodName());
+            if (frame.getFileName() != null) {
+                json.name("file").value(frame.getFileName());
+            }
+            if (frame.getLineNumber() >= 0) {
+                json.name("line").value(frame.getLineNumber());
+            }
+            if (frame.getModuleName() != null) {
+                json.name("module").value(frame.getModuleName());
+            }
+            json.endObject();
+        }
+        json.endArray();
+        if (inCommon > 0) {
+            json.name("framesInCommon").value(inCommon);
+        }
+
+        Throwable[] suppressed = throwable.getSuppressed();
+        if (suppressed.length > 0) {
+            json.name("suppressed").beginArray();
+            for (Throwable t : suppressed) {
+                writeThrowable(json, t, trace, seen, depth + 1);
+            }
+            json.endArray();
+        }
+        Throwable cause = throwable.getCause();
+        if (cause != null) {
+            json.name("cause");
+            writeThrowable(json, cause, trace, seen, depth + 1);
+        }
+        json.endObject();
+    }
+
+    private static int framesInCommon(StackTraceElement[] trace, StackTraceElement[] enclosingTrace) {
+        int m = trace.length - 1;
+        int n = enclosingTrace.length - 1;
+        while (m >= 0 && n >= 0 && trace[m].equals(enclosingTrace[n])) {
+            m--;
+            n--;
+        }
+        return trace.length - 1 - m;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Everything a record holds
+     */
+    public record Capture(long time, String source, String category, long fingerprint, String logger,
+                          String thread, String level, String message, Throwable exception) {
+    }
+
+    /**
+     * Exposes its array so a record can be appended without copying it
+     */
+    private static class RecordBuffer extends ByteArrayOutputStream {
+        RecordBuffer() {
+            super(8 * 1024);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
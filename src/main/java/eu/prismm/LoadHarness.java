@@ -0,0 +1,523 @@
+package eu.prismm;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.apache.logging.log4j.core.config.builder.api.AppenderComponentBuilder;
+import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilder;
+import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilderFactory;
+import org.apache.logging.log4j.core.config.builder.impl.BuiltConfiguration;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * End-to-end load test that logs a modded server message and exception mix from many threads
+ * through a real Log4j configuration with NoConsoleSpam installed.
+ *
+ * Log output goes to an async file appender, exceptions to "Console Errors", both relative to
+ * the working directory, so run it from an empty directory. The same seed gives the same
+ * sequence of events on every thread.
+ *
+ * Usage: java -cp noconsolespam.jar:gson.jar:log4j-api.jar:log4j-core.jar eu.prismm.LoadHarness
+ *        [--threads 64] [--duration 30] [--warmup 5] [--rate 0] [--spam 0.6] [--exceptions 0.005]
+ *        [--distinct-exceptions 64] [--queue 1024] [--seed 1] [--config spamfilters.json]
+ *
+ * --rate is the number of events per second per thread, 0 logs as fast as possible.
+ */
+public class LoadHarness {
+    private static final String LOG_FILE = "harness-logs/latest.log";
+    private static final String ERROR_DIRECTORY = "Console Errors";
+
+    private static final String[] LOGGERS = {
+            "net.minecraft.server.MinecraftServer",
+            "net.minecraft.server.network.ServerGamePacketListenerImpl",
+            "net.minecraft.world.level.chunk.LevelChunk",
+            "com.simibubi.create.Create",
+            "me.jellysquid.mods.lithium.common.LithiumMod",
+            "appeng.core.AELog",
+            "net.fabricmc.loader.impl.FabricLoaderImpl",
+            "net.minecraft.class_5458"
+    };
+    private static final String[] SPAM_MESSAGES = {
+            "Lithium detected a block entity mismatch at {}",
+            "Mismatch in destroy block pos: {}",
+            "Can't keep up! Is the server overloaded? Running {}ms or {} ticks behind",
+            "{} moved wrongly!",
+            "Class Analysis Error: {} could not be resolved"
+    };
+    private static final String[] NORMAL_MESSAGES = {
+            "Preparing spawn area: {}%",
+            "{} joined the game",
+            "Saving chunks for level 'ServerLevel[world]'/minecraft:overworld {}",
+            "Loaded {} recipes",
+            "Player{} has made the advancement [Stone Age]",
+            "Reloading ResourceManager: vanilla, fabric, create, {}"
+    };
+    private static final String[] MOD_PACKAGES = {
+            "com.simibubi.create.content.kinetics",
+            "appeng.me.service",
+            "me.jellysquid.mods.lithium.mixin.block",
+            "net.fabricmc.fabric.impl.networking",
+            "dev.emi.emi.runtime"
+    };
+
+    private final int threads;
+    private final long durationNanos;
+    private final long warmupNanos;
+    private final int rate;
+    private final double spamRatio;
+    private final double exceptionRatio;
+    private final long seed;
+    private final Throwable[] exceptions;
+
+    public LoadHarness(int threads, int durationSeconds, int warmupSeconds, int rate, double spamRatio,
+                       double exceptionRatio, int distinctExceptions, long seed) {
+        this.threads = threads;
+        this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+        this.warmupNanos = TimeUnit.SECONDS.toNanos(warmupSeconds);
+        this.rate = rate;
+        this.spamRatio = spamRatio;
+        this.exceptionRatio = exceptionRatio;
+        this.seed = seed;
+        this.exceptions = createExceptions(Math.max(1, distinctExceptions), new SplittableRandom(seed));
+    }
+
+    public static void main(String[] args) {
+        int threads = 64;
+        int duration = 30;
+        int warmup = 5;
+        int rate = 0;
+        double spam = 0.6;
+        double exceptionRatio = 0.005;
+        int distinctExceptions = 64;
+        int queueSize = 1024;
+        long seed = 1;
+        File configFile = null;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--threads" -> threads = Integer.parseInt(args[++i]);
+                    case "--duration" -> duration = Integer.parseInt(args[++i]);
+                    case "--warmup" -> warmup = Integer.parseInt(args[++i]);
+                    case "--rate" -> rate = Integer.parseInt(args[++i]);
+                    case "--spam" -> spam = Double.parseDouble(args[++i]);
+                    case "--exceptions" -> exceptionRatio = Double.parseDouble(args[++i]);
+                    case "--distinct-exceptions" -> distinctExceptions = Integer.parseInt(args[++i]);
+                    case "--queue" -> queueSize = Integer.parseInt(args[++i]);
+                    case "--seed" -> seed = Long.parseLong(args[++i]);
+                    case "--config" -> configFile = new File(args[++i]);
+                    default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: LoadHarness [--threads <n>] [--duration <s>] [--warmup <s>] [--rate <events/s per thread>]"
+                    + " [--spam <ratio>] [--exceptions <ratio>] [--distinct-exceptions <n>] [--queue <n>] [--seed <n>]"
+                    + " [--config <spamfilters.json>]");
+            System.exit(2);
+            return;
+        }
+
+        // The context has to exist before anything asks LogManager for a logger
+        LoggerContext context = Configurator.initialize(createConfiguration(queueSize));
+        FilterConfig filterConfig = configFile != null ? new FilterConfig(configFile) : new FilterConfig();
+        ExceptionLogger exceptionLogger = new ExceptionLogger(filterConfig.getExceptionSettings());
+        NoConsoleSpam.install(context, filterConfig, exceptionLogger);
+
+        LoadHarness harness = new LoadHarness(threads, duration, warmup, rate, spam, exceptionRatio, distinctExceptions, seed);
+        long errorBytesBefore = directorySize(Path.of(ERROR_DIRECTORY));
+        Result result = harness.run();
+
+        // Drain the async appender and the exception writers before measuring what they wrote
+        long drainStart = System.nanoTime();
+        exceptionLogger.shutdown();
+        Configurator.shutdown(context);
+        long drainNanos = System.nanoTime() - drainStart;
+
+        result.print(threads, rate, drainNanos,
+                directorySize(Path.of(ERROR_DIRECTORY)) - errorBytesBefore,
+                fileCount(Path.of(ERROR_DIRECTORY)),
+                new File(LOG_FILE).length());
+    }
+
+    /**
+     * An async appender in front of a buffered file appender, like a dedicated server with async logging
+     */
+    private static BuiltConfiguration createConfiguration(int queueSize) {
+        ConfigurationBuilder<BuiltConfiguration> builder = ConfigurationBuilderFactory.newConfigurationBuilder();
+        builder.setConfigurationName("NoConsoleSpam-LoadHarness");
+        builder.setStatusLevel(Level.WARN);
+
+        AppenderComponentBuilder file = builder.newAppender("File", "RandomAccessFile")
+                .addAttribute("fileName", LOG_FILE)
+                .addAttribute("append", false)
+                .add(builder.newLayout("PatternLayout")
+                        .addAttribute("pattern", "[%d{HH:mm:ss}] [%t/%level] (%logger) %msg%n%throwable"));
+        builder.add(file);
+
+        AppenderComponentBuilder async = builder.newAppender("Async", "Async")
+                .addAttribute("bufferSize", queueSize)
+                .addAttribute("blocking", true)
+                .addComponent(builder.newAppenderRef("File"));
+        builder.add(async);
+
+        builder.add(builder.newRootLogger(Level.INFO).add(builder.newAppenderRef("Async")));
+        return builder.build(false);
+    }
+
+    /**
+     * Run the workers through the warmup and measurement phases
+     */
+    public Result run() {
+        List<Worker> workers = new ArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+        long begin = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long measureFrom = begin + warmupNanos;
+        long end = measureFrom + durationNanos;
+
+        for (int i = 0; i < threads; i++) {
+            Worker worker = new Worker(i, start, measureFrom, end);
+            worker.setName("Server thread " + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+
+        start.countDown();
+        LockSupport.parkNanos(measureFrom - System.nanoTime());
+        GcSnapshot gcBefore = GcSnapshot.take();
+        long measureStart = System.nanoTime();
+
+        Result result = new Result();
+        for (Worker worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            result.merge(worker);
+        }
+        result.elapsedNanos = System.nanoTime() - measureStart;
+        result.gc = GcSnapshot.take().minus(gcBefore);
+        return result;
+    }
+
+    private class Worker extends Thread {
+        private final int id;
+        private final CountDownLatch start;
+        private final long measureFrom;
+        private final long end;
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private final Logger[] loggers = new Logger[LOGGERS.length];
+        long events;
+        long spamEvents;
+        long exceptionEvents;
+        long allocatedBytes = -1;
+
+        Worker(int id, CountDownLatch start, long measureFrom, long end) {
+            this.id = id;
+            this.start = start;
+            this.measureFrom = measureFrom;
+            this.end = end;
+            for (int i = 0; i < LOGGERS.length; i++) {
+                loggers[i] = LogManager.getLogger(LOGGERS[i]);
+            }
+        }
+
+        @Override
+        public void run() {
+            SplittableRandom random = new SplittableRandom(seed + id);
+            long interval = rate > 0 ? 1_000_000_000L / rate : 0;
+            try {
+                start.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            boolean measuring = false;
+            long allocatedAtStart = 0;
+            long next = System.nanoTime();
+            while (true) {
+                long now = System.nanoTime();
+                if (now >= end) {
+                    break;
+                }
+                if (!measuring && now >= measureFrom) {
+                    measuring = true;
+                    allocatedAtStart = currentThreadAllocatedBytes();
+                }
+                if (interval > 0) {
+                    next += interval;
+                    if (next > now) {
+                        LockSupport.parkNanos(next - now);
+                    }
+                }
+
+                Logger logger = loggers[random.nextInt(loggers.length)];
+                double roll = random.nextDouble();
+                int value = random.nextInt(100_000);
+                long callStart = System.nanoTime();
+                if (roll < exceptionRatio) {
+                    Throwable exception = exceptions[random.nextInt(exceptions.length)];
+                    logger.error("Exception ticking block entity at {}", value, exception);
+                    if (measuring) {
+                        exceptionEvents++;
+                    }
+                } else if (roll < exceptionRatio + spamRatio) {
+                    logger.warn(SPAM_MESSAGES[random.nextInt(SPAM_MESSAGES.length)], value, value / 50);
+                    if (measuring) {
+                        spamEvents++;
+                    }
+                } else {
+                    logger.info(NORMAL_MESSAGES[random.nextInt(NORMAL_MESSAGES.length)], value);
+                }
+                long callEnd = System.nanoTime();
+
+                if (measuring) {
+                    histogram.record(callEnd - callStart);
+                    events++;
+                }
+            }
+            if (measuring) {
+                long allocatedAtEnd = currentThreadAllocatedBytes();
+                allocatedBytes = allocatedAtStart >= 0 && allocatedAtEnd >= 0 ? allocatedAtEnd - allocatedAtStart : -1;
+            }
+        }
+    }
+
+    /**
+     * A fixed set of distinct exceptions with deep, mod-like stack traces, some with causes
+     */
+    private static Throwable[] createExceptions(int count, SplittableRandom random) {
+        Throwable[] result = new Throwable[count];
+        for (int i = 0; i < count; i++) {
+            String modPackage = MOD_PACKAGES[i % MOD_PACKAGES.length];
+            Throwable exception = switch (i % 5) {
+                case 0 -> new NullPointerException("Cannot invoke \"Object.hashCode()\" because \"key\" is null");
+                case 1 -> new IllegalStateException("Block entity is not of the expected type");
+                case 2 -> new IOException("Connection reset by peer");
+                case 3 -> new java.util.ConcurrentModificationException();
+                default -> new ClassCastException("class_2680 cannot be cast to class_2586");
+            };
+            exception.setStackTrace(createStackTrace(modPackage, i, 40 + random.nextInt(80)));
+            if (i % 3 == 0) {
+                Throwable cause = new IllegalArgumentException("Invalid state " + i);
+                cause.setStackTrace(createStackTrace(modPackage, i + 1000, 20 + random.nextInt(40)));
+                exception.initCause(cause);
+            }
+            result[i] = exception;
+        }
+        return result;
+    }
+
+    private static StackTraceElement[] createStackTrace(String modPackage, int variant, int depth) {
+        StackTraceElement[] trace = new StackTraceElement[depth];
+        for (int i = 0; i < depth; i++) {
+            if (i < 4) {
+                trace[i] = new StackTraceElement(modPackage + ".Handler" + variant, "method" + i, "Handler" + variant + ".java", 100 + i);
+            } else {
+                int clazz = 1000 + (i * 37) % 4000;
+                trace[i] = new StackTraceElement("net.minecraft.class_" + clazz, "method_" + (i * 13), null, -1);
+            }
+        }
+        return trace;
+    }
+
+    private static long currentThreadAllocatedBytes() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threadBean
+                && threadBean.isThreadAllocatedMemorySupported()) {
+            return threadBean.getCurrentThreadAllocatedBytes();
+        }
+        return -1;
+    }
+
+    private static long directorySize(Path directory) {
+        if (!Files.isDirectory(directory)) {
+            return 0;
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static long fileCount(Path directory) {
+        if (!Files.isDirectory(directory)) {
+            return 0;
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile).count();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Merged measurements of all workers
+     */
+    public static class Result {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        long events;
+        long spamEvents;
+        long exceptionEvents;
+        long allocatedBytes;
+        long elapsedNanos;
+        GcSnapshot gc;
+
+        void merge(Worker worker) {
+            histogram.add(worker.histogram);
+            events += worker.events;
+            spamEvents += worker.spamEvents;
+            exceptionEvents += worker.exceptionEvents;
+            if (worker.allocatedBytes < 0 || allocatedBytes < 0) {
+                allocatedBytes = -1;
+            } else {
+                allocatedBytes += worker.allocatedBytes;
+            }
+        }
+
+        void print(int threads, int rate, long drainNanos, long errorBytes, long errorFiles, long logBytes) {
+            double seconds = elapsedNanos / 1e9;
+            System.out.printf("Threads: %d, measured: %.1f s, rate: %s%n", threads, seconds,
+                    rate > 0 ? rate + " events/s per thread" : "unlimited");
+            System.out.printf("Events: %,d (%,.0f/s), spam: %,d, exceptions: %,d%n",
+                    events, events / seconds, spamEvents, exceptionEvents);
+            System.out.printf("Logging call latency  p50: %s  p99: %s  p99.9: %s  max: %s%n",
+                    formatNanos(histogram.percentile(0.50)), formatNanos(histogram.percentile(0.99)),
+                    formatNanos(histogram.percentile(0.999)), formatNanos(histogram.max()));
+            System.out.printf("GC: %d collections, %d ms (%.1f%% of wall time)%n",
+                    gc.collections, gc.millis, gc.millis / 10.0 / seconds);
+            if (allocatedBytes >= 0) {
+                System.out.printf("Allocated by logging threads: %s (%s/s, %,.0f bytes per event)%n",
+                        formatBytes(allocatedBytes), formatBytes((long) (allocatedBytes / seconds)),
+                        events > 0 ? (double) allocatedBytes / events : 0.0);
+            }
+            System.out.printf("Console Errors: %s written, %,d files%n", formatBytes(errorBytes), errorFiles);
+            System.out.printf("Log file: %s, drained in %s after the run%n", formatBytes(logBytes), formatNanos(drainNanos));
+        }
+    }
+
+    private static String formatNanos(long nanos) {
+        if (nanos < 10_000) {
+            return nanos + " ns";
+        } else if (nanos < 10_000_000) {
+            return String.format("%.1f us", nanos / 1e3);
+        }
+        return String.format("%.1f ms", nanos / 1e6);
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        } else if (bytes < 1024 * 1024) {
+            return String.format("%.1f KB", bytes / 1024.0);
+        } else if (bytes < 1024L * 1024 * 1024) {
+            return String.format("%.1f MB", bytes / (1024.0 * 1024));
+        }
+        return String.format("%.2f GB", bytes / (1024.0 * 1024 * 1024));
+    }
+
+    /**
+     * GC counters summed over all collectors
+     */
+    record GcSnapshot(long collections, long millis) {
+        static GcSnapshot take() {
+            long collections = 0;
+            long millis = 0;
+            for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+                collections += Math.max(0, bean.getCollectionCount());
+                millis += Math.max(0, bean.getCollectionTime());
+            }
+            return new GcSnapshot(collections, millis);
+        }
+
+        GcSnapshot minus(GcSnapshot other) {
+            return new GcSnapshot(collections - other.collections, millis - other.millis);
+        }
+    }
+
+    /**
+     * Log-linear latency histogram with 32 sub-buckets per power of two, accurate to about 3%
+     */
+    static class LatencyHistogram {
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final long[] counts = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+        private long total;
+        private long max;
+
+        void record(long nanos) {
+            long value = Math.max(0, nanos);
+            counts[index(value)]++;
+            total++;
+            max = Math.max(max, value);
+        }
+
+        void add(LatencyHistogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            total += other.total;
+            max = Math.max(max, other.max);
+        }
+
+        long max() {
+            return max;
+        }
+
+        long percentile(double percentile) {
+            if (total == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long) Math.ceil(percentile * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target) {
+                    return Math.min(max, valueAt(i));
+                }
+            }
+            return max;
+        }
+
+        private static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int mantissa = (int) (value >>> (exponent - SUB_BUCKET_BITS));
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + (mantissa - SUB_BUCKETS);
+        }
+
+        /**
+         * @return The middle of the value range covered by a bucket
+         */
+        private static long valueAt(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long mantissa = index % SUB_BUCKETS + SUB_BUCKETS;
+            long width = 1L << (exponent - SUB_BUCKET_BITS);
+            return (mantissa << (exponent - SUB_BUCKET_BITS)) + width / 2;
+        }
+    }
+}
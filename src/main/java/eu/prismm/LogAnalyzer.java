@@ -0,0 +1,571 @@
+package eu.prismm;
+
+import org.apache.logging.log4j.Level;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Offline evaluator that runs the compiled FilterRules over existing log files and reports
+ * what a spamfilters.json would suppress.
+ *
+ * Level scopes are applied using the level in each line. Log files don't record markers,
+ * so patterns scoped to markers never match here.
+ *
+ * Minecraft's console format has no logger name at all, and Fabric's prints only its last
+ * segment, so ignoredLoggers are matched by that simple name and can't apply to lines
+ * without one. loggerLevels and spamTemplates need the full name or the unformatted
+ * message and aren't evaluated. The report says how many events this concerns.
+ *
+ * Usage: java -cp noconsolespam.jar:gson.jar:log4j-api.jar:log4j-core.jar eu.prismm.LogAnalyzer
+ *        [--config spamfilters.json] [--threads N] [--examples N] &lt;file or directory&gt;...
+ */
+public class LogAnalyzer {
+    // Plain log files are mapped and evaluated in chunks of this size
+    private static final int CHUNK_SIZE = 32 * 1024 * 1024;
+    // Compressed logs are decoded sequentially and evaluated in batches of this many lines
+    private static final int GZIP_BATCH_LINES = 16 * 1024;
+    private static final int GZIP_BUFFER_SIZE = 1024 * 1024;
+    private static final int BOUNDARY_SCAN_SIZE = 64 * 1024;
+
+    private final FilterRules rules;
+    // The last segment of each ignored logger, which is all Fabric's log format prints
+    private final Set<String> ignoredSimpleNames = new HashSet<>();
+    private final ForkJoinPool pool;
+    private final int maxExamples;
+
+    public LogAnalyzer(FilterRules rules, int parallelism, int maxExamples) {
+        this.rules = rules;
+        for (String name : rules.getIgnoredLoggers()) {
+            ignoredSimpleNames.add(name.substring(name.lastIndexOf('.') + 1));
+        }
+        this.pool = new ForkJoinPool(Math.max(1, parallelism));
+        this.maxExamples = maxExamples;
+    }
+
+    public static void main(String[] args) {
+        File configFile = new File("config/NoConsoleSpam/spamfilters.json");
+        int threads = Runtime.getRuntime().availableProcessors();
+        int examples = 3;
+        List<File> inputs = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--config" -> configFile = new File(args[++i]);
+                case "--threads" -> threads = Integer.parseInt(args[++i]);
+                case "--examples" -> examples = Integer.parseInt(args[++i]);
+                default -> inputs.add(new File(args[i]));
+            }
+        }
+
+        if (inputs.isEmpty()) {
+            System.err.println("Usage: LogAnalyzer [--config spamfilters.json] [--threads N] [--examples N] <file or directory>...");
+            System.exit(2);
+        }
+
+        FilterRules rules;
+        try {
+            rules = FilterConfig.loadStrict(configFile).compileRules();
+        } catch (IOException e) {
+            System.err.println("Could not load " + configFile + ": " + e);
+            System.exit(1);
+            return;
+        }
+        LogAnalyzer analyzer = new LogAnalyzer(rules, threads, examples);
+
+        long start = System.nanoTime();
+        Tally total = analyzer.newTally();
+        try {
+            for (File file : collectLogFiles(inputs)) {
+                total.merge(analyzer.analyze(file));
+            }
+        } finally {
+            analyzer.pool.shutdown();
+        }
+        analyzer.printReport(total, System.nanoTime() - start);
+    }
+
+    private static List<File> collectLogFiles(List<File> inputs) {
+        List<File> files = new ArrayList<>();
+        for (File input : inputs) {
+            if (input.isDirectory()) {
+                File[] children = input.listFiles((dir, name) -> name.endsWith(".log") || name.endsWith(".log.gz"));
+                if (children != null) {
+                    Arrays.sort(children);
+                    files.addAll(Arrays.asList(children));
+                }
+            } else if (input.isFile()) {
+                files.add(input);
+            } else {
+                System.err.println("Skipping missing file: " + input);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Evaluate the rules over a single log file
+     *
+     * @param file A plain or gzip compressed log file
+     * @return The tally for this file, empty if the file could not be read
+     */
+    public Tally analyze(File file) {
+        try {
+            if (file.getName().endsWith(".gz")) {
+                return analyzeCompressed(file);
+            }
+            return analyzeMapped(file);
+        } catch (IOException e) {
+            System.err.println("Failed to analyze " + file + ": " + e.getMessage());
+            return newTally();
+        }
+    }
+
+    private Tally analyzeMapped(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long[] boundaries = findChunkBoundaries(channel);
+            Tally tally = pool.invoke(new ChunkTask(channel, boundaries, 0, boundaries.length - 1));
+            tally.files++;
+            return tally;
+        }
+    }
+
+    /**
+     * Split a file into chunks that each start at the beginning of a line
+     *
+     * @param channel The open log file
+     * @return Ascending chunk offsets, starting with 0 and ending with the file size
+     */
+    private long[] findChunkBoundaries(FileChannel channel) throws IOException {
+        long size = channel.size();
+        List<Long> boundaries = new ArrayList<>();
+        boundaries.add(0L);
+        ByteBuffer scan = ByteBuffer.allocate(BOUNDARY_SCAN_SIZE);
+
+        long position = 0;
+        while (size - position > CHUNK_SIZE) {
+            long candidate = position + CHUNK_SIZE;
+            long boundary = size;
+            // Move forward to the byte after the next newline
+            while (candidate < size && boundary == size) {
+                scan.clear();
+                int read = channel.read(scan, candidate);
+                if (read <= 0) {
+                    break;
+                }
+                for (int i = 0; i < read; i++) {
+                    if (scan.get(i) == '\n') {
+                        boundary = candidate + i + 1;
+                        break;
+                    }
+                }
+                candidate += read;
+            }
+            if (boundary >= size) {
+                break;
+            }
+            boundaries.add(boundary);
+            position = boundary;
+        }
+        boundaries.add(size);
+
+        long[] result = new long[boundaries.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = boundaries.get(i);
+        }
+        return result;
+    }
+
+    private Tally analyzeCompressed(File file) throws IOException {
+        Tally tally = newTally();
+        Deque<ForkJoinTask<Tally>> inFlight = new ArrayDeque<>();
+        int maxInFlight = pool.getParallelism() * 2;
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(file), GZIP_BUFFER_SIZE),
+                StandardCharsets.UTF_8), GZIP_BUFFER_SIZE)) {
+            List<String> batch = new ArrayList<>(GZIP_BATCH_LINES);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                batch.add(line);
+                // Only cut batches in front of a new event so stack traces stay with their message
+                if (batch.size() >= GZIP_BATCH_LINES && isEventStart(line)) {
+                    batch.remove(batch.size() - 1);
+                    inFlight.add(pool.submit(new BatchTask(batch)));
+                    batch = new ArrayList<>(GZIP_BATCH_LINES);
+                    batch.add(line);
+                    // Bound the number of decoded batches held in memory
+                    while (inFlight.size() >= maxInFlight) {
+                        tally.append(inFlight.poll().join());
+                    }
+                }
+            }
+            if (!batch.isEmpty()) {
+                inFlight.add(pool.submit(new BatchTask(batch)));
+            }
+        }
+
+        while (!inFlight.isEmpty()) {
+            tally.append(inFlight.poll().join());
+        }
+        tally.files++;
+        return tally;
+    }
+
+    private static boolean isEventStart(String line) {
+        return !line.isEmpty() && line.charAt(0) == '[';
+    }
+
+    private Tally newTally() {
+        return new Tally(rules.getPatternCount() + 1, maxExamples);
+    }
+
+    private int slotFor(int result) {
+        return result == FilterRules.IGNORED_LOGGER ? rules.getPatternCount() : result;
+    }
+
+    /**
+     * Evaluate one event line and account for it in the tally
+     *
+     * @param tally The tally to update
+     * @param line The first line of the event
+     * @param byteLength The size of the line in the file, including the line terminator
+     * @return The tally slot of the matching rule, or -1 if the event passes
+     */
+    private int evaluateEvent(Tally tally, String line, int byteLength) {
+        tally.events++;
+        tally.bytes += byteLength;
+
+        String loggerName = null;
+        int intLevel = FilterRules.ANY_LEVEL;
+        String message = line;
+
+        // Log lines look like "[12:00:00] [Server thread/WARN]: message" or
+        // "[12:00:00] [main/INFO] (Logger) message"
+        int timeEnd = line.indexOf(']');
+        int threadEnd = timeEnd > 0 && line.startsWith(" [", timeEnd + 1) ? line.indexOf(']', timeEnd + 1) : -1;
+        if (line.startsWith("[") && threadEnd > 0) {
+            int levelStart = line.lastIndexOf('/', threadEnd);
+            if (levelStart > timeEnd) {
+                Level level = Level.getLevel(line.substring(levelStart + 1, threadEnd));
+                if (level != null) {
+                    intLevel = level.intLevel();
+                }
+            }
+            int rest = threadEnd + 1;
+            if (line.startsWith(": ", rest)) {
+                message = line.substring(rest + 2);
+            } else if (line.startsWith(" (", rest)) {
+                int loggerEnd = line.indexOf(") ", rest);
+                if (loggerEnd > 0) {
+                    loggerName = line.substring(rest + 2, loggerEnd);
+                    message = line.substring(loggerEnd + 2);
+                }
+            } else {
+                message = line.substring(rest).trim();
+            }
+        }
+
+        if (loggerName == null) {
+            tally.unnamedEvents++;
+        }
+        if (intLevel == FilterRules.ANY_LEVEL) {
+            tally.unknownLevelEvents++;
+        }
+
+        int result = loggerName != null && loggerName.indexOf('.') < 0 && ignoredSimpleNames.contains(loggerName)
+                ? FilterRules.IGNORED_LOGGER
+                : rules.match(loggerName, intLevel, null, message);
+        if (result == FilterRules.NO_MATCH) {
+            return -1;
+        }
+
+        int slot = slotFor(result);
+        tally.hits[slot]++;
+        tally.suppressedEvents++;
+        tally.addSuppressedBytes(slot, byteLength);
+        tally.addExample(slot, line);
+        return slot;
+    }
+
+    private void printReport(Tally tally, long elapsedNanos) {
+        double seconds = elapsedNanos / 1_000_000_000.0;
+        System.out.printf("Analyzed %d file(s), %d events, %s in %.2fs (%s/s)%n",
+                tally.files, tally.events, formatBytes(tally.bytes), seconds,
+                formatBytes((long) (tally.bytes / Math.max(seconds, 0.001))));
+        System.out.printf("Would suppress %d events (%.1f%%), %s (%.1f%%)%n",
+                tally.suppressedEvents, percent(tally.suppressedEvents, tally.events),
+                formatBytes(tally.suppressedBytes), percent(tally.suppressedBytes, tally.bytes));
+        if (tally.unnamedEvents > 0 && rules.getIgnoredLoggerCount() > 0) {
+            System.out.printf("%d events had no logger name in the line, so ignoredLoggers couldn't apply to them%n",
+                    tally.unnamedEvents);
+        }
+        if (tally.unknownLevelEvents > 0 && rules.getScopedPatternCount() > 0) {
+            System.out.printf("%d events had no recognizable level, so they were checked against every pattern%n",
+                    tally.unknownLevelEvents);
+        }
+        if (rules.getLoggerLevelCount() > 0 || rules.getSpamTemplateCount() > 0) {
+            System.out.println("loggerLevels and spamTemplates aren't evaluated offline, so the live filter suppresses more");
+        }
+        System.out.println();
+
+        for (int slot = 0; slot < tally.hits.length; slot++) {
+            int rule = slot == rules.getPatternCount() ? FilterRules.IGNORED_LOGGER : slot;
+            System.out.printf("%10d hits %12s  %s%n", tally.hits[slot],
+                    formatBytes(tally.ruleBytes[slot]), rules.describe(rule));
+            for (String example : tally.examples.get(slot)) {
+                System.out.println("                 e.g. " + abbreviate(example));
+            }
+        }
+    }
+
+    private static double percent(long part, long whole) {
+        return whole == 0 ? 0 : part * 100.0 / whole;
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        String[] units = {"KB", "MB", "GB", "TB"};
+        double value = bytes;
+        int unit = -1;
+        while (value >= 1024 && unit < units.length - 1) {
+            value /= 1024;
+            unit++;
+        }
+        return String.format("%.1f %s", value, units[unit]);
+    }
+
+    private static String abbreviate(String line) {
+        return line.length() > 160 ? line.substring(0, 157) + "..." : line;
+    }
+
+    /**
+     * Counters collected by the analysis tasks, merged after each task completes
+     */
+    public static class Tally {
+        final long[] hits;
+        final long[] ruleBytes;
+        final List<List<String>> examples;
+        final int maxExamples;
+        long files;
+        long events;
+        long bytes;
+        long suppressedEvents;
+        long suppressedBytes;
+        long unnamedEvents;
+        long unknownLevelEvents;
+        // Continuation lines in front of the first event, which belong to the event the part before ended on
+        long leadingBytes;
+        // The slot of the last event, or -1 if it passed
+        int lastSlot = -1;
+
+        Tally(int slots, int maxExamples) {
+            this.hits = new long[slots];
+            this.ruleBytes = new long[slots];
+            this.examples = new ArrayList<>(slots);
+            for (int i = 0; i < slots; i++) {
+                examples.add(new ArrayList<>());
+            }
+            this.maxExamples = maxExamples;
+        }
+
+        void addSuppressedBytes(int slot, long amount) {
+            ruleBytes[slot] += amount;
+            suppressedBytes += amount;
+        }
+
+        void addExample(int slot, String line) {
+            List<String> list = examples.get(slot);
+            if (list.size() < maxExamples) {
+                list.add(line);
+            }
+        }
+
+        void merge(Tally other) {
+            for (int i = 0; i < hits.length; i++) {
+                hits[i] += other.hits[i];
+                ruleBytes[i] += other.ruleBytes[i];
+                for (String example : other.examples.get(i)) {
+                    addExample(i, example);
+                }
+            }
+            files += other.files;
+            events += other.events;
+            bytes += other.bytes;
+            suppressedEvents += other.suppressedEvents;
+            suppressedBytes += other.suppressedBytes;
+            unnamedEvents += other.unnamedEvents;
+            unknownLevelEvents += other.unknownLevelEvents;
+        }
+
+        /**
+         * Merge the tally of the part of a file that directly follows this one, so its leading
+         * continuation lines are counted for the event this part ended on
+         */
+        void append(Tally next) {
+            if (events == 0) {
+                leadingBytes += next.leadingBytes;
+            } else if (lastSlot >= 0) {
+                addSuppressedBytes(lastSlot, next.leadingBytes);
+            }
+            merge(next);
+            if (next.events > 0) {
+                lastSlot = next.lastSlot;
+            }
+        }
+    }
+
+    /**
+     * Evaluates a range of chunks of a mapped file, splitting until a single chunk remains
+     */
+    private class ChunkTask extends RecursiveTask<Tally> {
+        private final FileChannel channel;
+        private final long[] boundaries;
+        private final int from;
+        private final int to;
+
+        ChunkTask(FileChannel channel, long[] boundaries, int from, int to) {
+            this.channel = channel;
+            this.boundaries = boundaries;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Tally compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                ChunkTask left = new ChunkTask(channel, boundaries, from, middle);
+                left.fork();
+                Tally right = new ChunkTask(channel, boundaries, middle, to).compute();
+                Tally result = left.join();
+                result.append(right);
+                return result;
+            }
+
+            Tally tally = newTally();
+            long start = boundaries[from];
+            long length = boundaries[to] - start;
+            if (length <= 0) {
+                return tally;
+            }
+
+            try {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+                scan(buffer, tally);
+            } catch (IOException e) {
+                System.err.println("Failed to map log chunk at offset " + start + ": " + e.getMessage());
+            }
+            return tally;
+        }
+
+        private void scan(MappedByteBuffer buffer, Tally tally) {
+            byte[] line = new byte[8192];
+            int limit = buffer.limit();
+            int lineStart = 0;
+            int currentSlot = -1;
+
+            while (lineStart < limit) {
+                int lineEnd = lineStart;
+                while (lineEnd < limit && buffer.get(lineEnd) != '\n') {
+                    lineEnd++;
+                }
+                int next = lineEnd + 1;
+                if (lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r') {
+                    lineEnd--;
+                }
+                int length = lineEnd - lineStart;
+
+                if (length > 0 && buffer.get(lineStart) == '[') {
+                    if (line.length < length) {
+                        line = new byte[Math.max(length, line.length * 2)];
+                    }
+                    buffer.get(lineStart, line, 0, length);
+                    currentSlot = evaluateEvent(tally, new String(line, 0, length, StandardCharsets.UTF_8), next - lineStart);
+                } else {
+                    // Continuation lines such as stack traces belong to the previous event
+                    tally.bytes += next - lineStart;
+                    if (tally.events == 0) {
+                        tally.leadingBytes += next - lineStart;
+                    } else if (currentSlot >= 0) {
+                        tally.addSuppressedBytes(currentSlot, next - lineStart);
+                    }
+                }
+                lineStart = next;
+            }
+            tally.lastSlot = currentSlot;
+        }
+    }
+
+    /**
+     * Evaluates a batch of lines decoded from a compressed log
+     */
+    private class BatchTask extends RecursiveTask<Tally> {
+        private final List<String> lines;
+
+        BatchTask(List<String> lines) {
+            this.lines = lines;
+        }
+
+        @Override
+        protected Tally compute() {
+            Tally tally = newTally();
+            int currentSlot = -1;
+            for (String line : lines) {
+                // Count the newline the reader stripped off
+                int byteLength = utf8Length(line) + 1;
+                if (isEventStart(line)) {
+                    currentSlot = evaluateEvent(tally, line, byteLength);
+                } else {
+                    tally.bytes += byteLength;
+                    if (tally.events == 0) {
+                        tally.leadingBytes += byteLength;
+                    } else if (currentSlot >= 0) {
+                        tally.addSuppressedBytes(currentSlot, byteLength);
+                    }
+                }
+            }
+            tally.lastSlot = currentSlot;
+            return tally;
+        }
+    }
+
+    private static int utf8Length(String line) {
+        int length = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
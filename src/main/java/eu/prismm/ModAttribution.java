@@ -0,0 +1,162 @@
+package eu.prismm;
+
+import net.fabricmc.loader.api.FabricLoader;
+import net.fabricmc.loader.api.ModContainer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Attributes logger names to the Fabric mod that owns them.
+ *
+ * A logger whose name equals a mod id or mod name belongs to that mod. Any other name is
+ * treated as a class or package name, and the first mod that contains that class or package
+ * owns it. The answer is memoized per logger name, so the lookup only runs for the first event.
+ *
+ * Mods are numbered densely from 1 so they can index plain arrays; UNKNOWN is 0.
+ */
+public final class ModAttribution {
+    public static final int UNKNOWN = 0;
+
+    // Index 0 is the placeholder for unattributed loggers
+    private final String[] modIds;
+    // Tests whether a mod contains a resource path, null if the mod can't be searched
+    private final List<Predicate<String>> finders;
+    private final Map<String, Integer> byName = new HashMap<>();
+    private final BoundedCache<String, Integer> cache =
+            CacheBudget.global().newCache("modAttribution", 20, (name, index) -> CacheBudget.stringBytes(name));
+
+    private ModAttribution(List<String> ids, List<String> names, List<Predicate<String>> finders) {
+        this.modIds = new String[ids.size() + 1];
+        this.modIds[UNKNOWN] = "unknown";
+        this.finders = new ArrayList<>();
+        this.finders.add(null);
+        for (int i = 0; i < ids.size(); i++) {
+            modIds[i + 1] = ids.get(i);
+            this.finders.add(finders != null ? finders.get(i) : null);
+            byName.putIfAbsent(ids.get(i).toLowerCase(Locale.ROOT), i + 1);
+        }
+        // Mod ids win over display names that happen to look the same
+        for (int i = 0; i < names.size(); i++) {
+            if (names.get(i) != null) {
+                byName.putIfAbsent(names.get(i).toLowerCase(Locale.ROOT), i + 1);
+            }
+        }
+    }
+
+    /**
+     * @return The attribution for all loaded mods, or one that knows no mods when running
+     *         outside of Fabric (for example in the offline tools)
+     */
+    public static ModAttribution fromFabric() {
+        List<String> ids = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        List<Predicate<String>> finders = new ArrayList<>();
+        try {
+            for (ModContainer mod : FabricLoader.getInstance().getAllMods()) {
+                ids.add(mod.getMetadata().getId());
+                names.add(mod.getMetadata().getName());
+                finders.add(path -> mod.findPath(path).isPresent());
+            }
+        } catch (Throwable t) {
+            // Fabric isn't available, nothing can be attributed
+            ids.clear();
+            names.clear();
+            finders.clear();
+        }
+        return new ModAttribution(ids, names, finders);
+    }
+
+    /**
+     * Attribute loggers by name only, without looking inside any mod
+     *
+     * @param modIds The mod ids, in index order
+     * @return The attribution
+     */
+    public static ModAttribution ofModIds(List<String> modIds) {
+        return new ModAttribution(modIds, List.of(), null);
+    }
+
+    /**
+     * @param loggerName The name of a logger, may be null
+     * @return The index of the owning mod, or UNKNOWN
+     */
+    public int modIndex(String loggerName) {
+        if (loggerName == null || modIds.length == 1) {
+            return UNKNOWN;
+        }
+        Integer cached = cache.get(loggerName);
+        if (cached != null) {
+            return cached;
+        }
+        int index = resolve(loggerName);
+        cache.put(loggerName, index);
+        return index;
+    }
+
+    private int resolve(String loggerName) {
+        Integer named = byName.get(loggerName.toLowerCase(Locale.ROOT));
+        if (named != null) {
+            return named;
+        }
+        if (loggerName.indexOf('.') <= 0 || loggerName.indexOf(' ') >= 0 || loggerName.indexOf('/') >= 0) {
+            return UNKNOWN;
+        }
+
+        // Most mods name their loggers after a class, some after their root package
+        String className = loggerName;
+        int inner = className.indexOf('$');
+        if (inner > 0) {
+            className = className.substring(0, inner);
+        }
+        String path = className.replace('.', '/');
+        int index = find(path + ".class");
+        return index != UNKNOWN ? index : find(path);
+    }
+
+    private int find(String path) {
+        for (int i = 1; i < modIds.length; i++) {
+            Predicate<String> finder = finders.get(i);
+            try {
+                if (finder != null && finder.test(path)) {
+                    return i;
+                }
+            } catch (Exception e) {
+                // A mod whose files can't be searched simply doesn't own the logger
+            }
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * @return The number of indexes in use, including UNKNOWN
+     */
+    public int size() {
+        return modIds.length;
+    }
+
+    /**
+     * @param index A mod index
+     * @return The mod id, or "unknown"
+     */
+    public String modId(int index) {
+        return index > 0 && index < modIds.length ? modIds[index] : modIds[UNKNOWN];
+    }
+
+    /**
+     * @param modId A mod id
+     * @return The index of the mod, or UNKNOWN if it isn't loaded
+     */
+    public int indexOf(String modId) {
+        for (int i = 1; i < modIds.length; i++) {
+            if (modIds[i].equals(modId)) {
+                return i;
+            }
+        }
+        return UNKNOWN;
+    }
+}
@@ -0,0 +1,190 @@
+package eu.prismm;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.Appender;
+import org.apache.logging.log4j.core.LogEvent;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-mod console volume quotas.
+ *
+ * Every mod owns a slot in one AtomicLongArray, indexed by its ModAttribution index. The
+ * lines and bytes a mod logged in the current second are packed into a single long, so
+ * accounting an event is one addAndGet on the mod's slot. Slots are a cache line apart so
+ * busy mods don't slow each other down.
+ *
+ * When a mod goes over either limit its events are dropped, sampled (one in sampleRate is
+ * kept) or demoted to a separate file, depending on the configured action.
+ * Message lengths are counted in characters, which equals bytes for the usual ASCII output.
+ */
+public final class ModQuotas {
+    private static final Logger LOGGER = LogManager.getLogger(NoConsoleSpam.MOD_ID);
+
+    // Result codes returned by check()
+    public static final int ALLOW = 0;
+    public static final int DENY = 1;
+    public static final int DEMOTE = 2;
+
+    private static final int ACTION_DROP = 0;
+    private static final int ACTION_SAMPLE = 1;
+    private static final int ACTION_DEMOTE = 2;
+
+    // Lines live in the top 24 bits of a counter, bytes in the lower 40
+    private static final int LINE_SHIFT = 40;
+    private static final long BYTE_MASK = (1L << LINE_SHIFT) - 1;
+    private static final long ONE_LINE = 1L << LINE_SHIFT;
+
+    // Longs per mod: counter, window second, suppressed, demoted, last notice minute, padding
+    private static final int STRIDE = 8;
+    private static final int COUNTER = 0;
+    private static final int WINDOW = 1;
+    private static final int SUPPRESSED = 2;
+    private static final int DEMOTED = 3;
+    private static final int NOTICE = 4;
+
+    private final ModAttribution attribution;
+    private final AtomicLongArray slots;
+    // Per mod index; 0 means unlimited
+    private final long[] lineLimits;
+    private final long[] byteLimits;
+    private final int[] actions;
+    private final int sampleRate;
+    private final Appender demoteAppender;
+
+    /**
+     * @param settings The quota settings
+     * @param attribution Maps logger names to mod indexes
+     * @param demoteAppender Receives demoted events, or null to drop them instead
+     */
+    public ModQuotas(FilterConfig.QuotaSettings settings, ModAttribution attribution, Appender demoteAppender) {
+        this.attribution = attribution;
+        this.slots = new AtomicLongArray(attribution.size() * STRIDE);
+        this.lineLimits = new long[attribution.size()];
+        this.byteLimits = new long[attribution.size()];
+        this.actions = new int[attribution.size()];
+        this.sampleRate = Math.max(1, settings.getSampleRate());
+        this.demoteAppender = demoteAppender;
+
+        int defaultAction = parseAction(settings.getAction());
+        // Loggers that belong to no known mod are never limited
+        for (int i = ModAttribution.UNKNOWN + 1; i < attribution.size(); i++) {
+            lineLimits[i] = Math.max(0, settings.getLinesPerSecond());
+            byteLimits[i] = Math.max(0, settings.getBytesPerSecond());
+            actions[i] = defaultAction;
+        }
+        for (Map.Entry<String, FilterConfig.QuotaSettings.ModQuota> entry : settings.getMods().entrySet()) {
+            int index = attribution.indexOf(entry.getKey());
+            if (index == ModAttribution.UNKNOWN) {
+                continue;
+            }
+            FilterConfig.QuotaSettings.ModQuota quota = entry.getValue();
+            if (quota.linesPerSecond() != null) {
+                lineLimits[index] = Math.max(0, quota.linesPerSecond());
+            }
+            if (quota.bytesPerSecond() != null) {
+                byteLimits[index] = Math.max(0, quota.bytesPerSecond());
+            }
+            if (quota.action() != null) {
+                actions[index] = parseAction(quota.action());
+            }
+        }
+    }
+
+    private static int parseAction(String action) {
+        switch (action != null ? action.toLowerCase(Locale.ROOT) : "") {
+            case "drop":
+                return ACTION_DROP;
+            case "demote":
+                return ACTION_DEMOTE;
+            case "sample":
+                return ACTION_SAMPLE;
+            default:
+                LOGGER.warn("Unknown quota action {}, using sample", action);
+                return ACTION_SAMPLE;
+        }
+    }
+
+    /**
+     * Account an event against the quota of its mod
+     *
+     * @param loggerName The name of the logger, may be null
+     * @param length The length of the formatted message
+     * @return ALLOW, DENY or DEMOTE
+     */
+    public int check(String loggerName, int length) {
+        int mod = attribution.modIndex(loggerName);
+        long lineLimit = lineLimits[mod];
+        long byteLimit = byteLimits[mod];
+        if (lineLimit == 0 && byteLimit == 0) {
+            return ALLOW;
+        }
+
+        int base = mod * STRIDE;
+        long second = System.currentTimeMillis() / 1000;
+        long window = slots.get(base + WINDOW);
+        if (window != second && slots.compareAndSet(base + WINDOW, window, second)) {
+            // Events counted by other threads between these two writes are lost, which only
+            // makes the quota slightly more lenient at the start of a second
+            slots.set(base + COUNTER, 0);
+        }
+        long counter = slots.addAndGet(base + COUNTER, ONE_LINE | Math.min(length, BYTE_MASK));
+
+        long lines = counter >>> LINE_SHIFT;
+        if ((lineLimit == 0 || lines <= lineLimit) && (byteLimit == 0 || (counter & BYTE_MASK) <= byteLimit)) {
+            return ALLOW;
+        }
+
+        int action = actions[mod];
+        if (action == ACTION_DEMOTE && demoteAppender != null) {
+            slots.incrementAndGet(base + DEMOTED);
+            notice(mod, second);
+            return DEMOTE;
+        }
+        if (action == ACTION_SAMPLE && lines % sampleRate == 0) {
+            return ALLOW;
+        }
+        slots.incrementAndGet(base + SUPPRESSED);
+        notice(mod, second);
+        return DENY;
+    }
+
+    /**
+     * Write a demoted event to the demote file
+     *
+     * @param event The event check() returned DEMOTE for
+     */
+    public void demote(LogEvent event) {
+        if (demoteAppender != null) {
+            demoteAppender.append(event);
+        }
+    }
+
+    /**
+     * Say at most once a minute per mod that the mod is over its quota
+     */
+    private void notice(int mod, long second) {
+        int slot = mod * STRIDE + NOTICE;
+        long minute = second / 60;
+        long last = slots.get(slot);
+        if (last != minute && slots.compareAndSet(slot, last, minute)) {
+            LOGGER.warn("Mod {} is over its console quota ({} lines suppressed, {} demoted so far)",
+                    attribution.modId(mod), getSuppressed(mod), getDemoted(mod));
+        }
+    }
+
+    public long getSuppressed(int mod) {
+        return slots.get(mod * STRIDE + SUPPRESSED);
+    }
+
+    public long getDemoted(int mod) {
+        return slots.get(mod * STRIDE + DEMOTED);
+    }
+
+    public ModAttribution getAttribution() {
+        return attribution;
+    }
+}
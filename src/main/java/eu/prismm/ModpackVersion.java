@@ -0,0 +1,52 @@
+package eu.prismm;
+
+import net.fabricmc.loader.api.FabricLoader;
+import net.fabricmc.loader.api.ModContainer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Identifies the installed set of mods, so data recorded by one modpack version can be
+ * told apart from the next. Adding, removing or updating any mod changes the value.
+ */
+public final class ModpackVersion {
+    private static volatile long current;
+
+    private ModpackVersion() {
+    }
+
+    /**
+     * @return A hash of all loaded mod ids and versions, or of the NoConsoleSpam version
+     *         when running outside of Fabric (for example in the offline tools)
+     */
+    public static long current() {
+        long value = current;
+        if (value == 0) {
+            value = compute();
+            current = value;
+        }
+        return value;
+    }
+
+    private static long compute() {
+        List<String> mods = new ArrayList<>();
+        try {
+            for (ModContainer mod : FabricLoader.getInstance().getAllMods()) {
+                mods.add(mod.getMetadata().getId() + "@" + mod.getMetadata().getVersion().getFriendlyString());
+            }
+        } catch (Throwable t) {
+            // Fabric isn't available, fall back to our own version
+            mods.clear();
+            mods.add(NoConsoleSpam.MOD_ID + "@" + NoConsoleSpam.VERSION);
+        }
+        Collections.sort(mods);
+
+        long hash = 0xcbf29ce484222325L;
+        for (String mod : mods) {
+            hash = ThrowableFingerprint.mix(hash, mod);
+        }
+        return hash != 0 ? hash : 1;
+    }
+}
@@ -4,14 +4,29 @@ import net.fabricmc.api.ModInitializer;
 import net.fabricmc.loader.api.entrypoint.PreLaunchEntrypoint;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.Appender;
 import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.appender.ConsoleAppender;
+import org.apache.logging.log4j.core.appender.RollingFileAppender;
+import org.apache.logging.log4j.core.appender.rolling.DefaultRolloverStrategy;
+import org.apache.logging.log4j.core.appender.rolling.SizeBasedTriggeringPolicy;
+import org.apache.logging.log4j.core.appender.rewrite.RewriteAppender;
+import org.apache.logging.log4j.core.appender.rewrite.RewritePolicy;
+import org.apache.logging.log4j.core.config.AppenderRef;
 import org.apache.logging.log4j.core.config.Configuration;
 import org.apache.logging.log4j.core.config.LoggerConfig;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 public class NoConsoleSpam implements ModInitializer, PreLaunchEntrypoint {
     public static final String MOD_ID = "noconsolespam";
     public static final String VERSION = "1.4.2"; // Updated version to reflect Minecraft 1.21.4, 1.21.5 and snapshot 24w20a compatibility
     private static final Logger LOGGER = LogManager.getLogger(MOD_ID);
+    private static final String COLORIZED_SUFFIX = "-Colorized";
     
     private FilterConfig filterConfig;
     private ExceptionLogger exceptionLogger;
@@ -20,15 +35,20 @@ public class NoConsoleSpam implements ModInitializer, PreLaunchEntrypoint {
     public void onPreLaunch() {
         LOGGER.info("Pre-initializing NoConsoleSpam v{}", VERSION);
         
+        StartupTimer timer = new StartupTimer();
         try {
-            // Load configuration from JSON
+            // Load configuration from JSON, or from the rule snapshot cache if it is unchanged
             filterConfig = new FilterConfig();
+            timer.phase(filterConfig.isLoadedFromSnapshot() ? "config (cached)" : "config");
             
             // Initialize exception logger
             exceptionLogger = new ExceptionLogger(filterConfig.getExceptionSettings());
+            timer.phase("exception logger");
             
             // Configure log4j filtering
             configureLogging();
+            timer.phase("logging");
+            LOGGER.info("Pre-initialization took {}", timer.summary());
         } catch (Exception e) {
             LOGGER.error("Failed to pre-initialize NoConsoleSpam", e);
             // Ensure we have at least default instances to prevent NPEs
@@ -91,21 +111,262 @@ public class NoConsoleSpam implements ModInitializer, PreLaunchEntrypoint {
     private void configureLogging() {
         try {
             LoggerContext context = (LoggerContext) LogManager.getContext(false);
-            Configuration config = context.getConfiguration();
-            
-            // Add custom filter to root logger
-            LoggerConfig rootLogger = config.getRootLogger();
-            rootLogger.addFilter(new SpamFilter(
-                    filterConfig.getSpamPatterns(), 
-                    filterConfig.getIgnoredLoggers(), 
-                    exceptionLogger));
-            
-            context.updateLoggers();
+            install(context, filterConfig, exceptionLogger);
             LOGGER.info("Console spam filtering activated with {} patterns and {} ignored loggers",
-                    filterConfig.getSpamPatterns().size(),
+                    filterConfig.getPatternSources().size(),
                     filterConfig.getIgnoredLoggers().size());
         } catch (Exception e) {
             LOGGER.error("Failed to configure logging", e);
         }
     }
-} 
\ No newline at end of file
+    
+    /**
+     * Install the spam filter and the optional console features into a Log4j context
+     * 
+     * @param context The logger context to install into
+     * @param filterConfig The loaded configuration
+     * @param exceptionLogger The exception logger captures are handed to, may be null
+     * @return The installed filter
+     */
+    public static SpamFilter install(LoggerContext context, FilterConfig filterConfig, ExceptionLogger exceptionLogger) {
+        Configuration config = context.getConfiguration();
+        
+        // Size every cache, including those already created, from the one budget
+        CacheBudget.global().configure(filterConfig.getCacheSettings().getMaxBytes());
+        if (filterConfig.getCacheSettings().isRegisterMBean()) {
+            CacheBudget.global().registerMBean();
+        }
+        
+        // Add custom filter to root logger
+        LoggerConfig rootLogger = config.getRootLogger();
+        FilterRules rules = filterConfig.compileRules();
+        ModQuotas quotas = filterConfig.getQuotaSettings().isEnabled() ? createQuotas(config, filterConfig.getQuotaSettings()) : null;
+        List<FilterObserver> observers = new ArrayList<>();
+        if (filterConfig.getHeavyHitterSettings().isEnabled()) {
+            HeavyHitters heavyHitters = new HeavyHitters(filterConfig.getHeavyHitterSettings());
+            heavyHitters.start(filterConfig.getHeavyHitterSettings().isRegisterMBean());
+            observers.add(heavyHitters);
+        }
+        if (filterConfig.getTemplateMinerSettings().isEnabled() && filterConfig.getConfigFile() != null) {
+            TemplateMiner miner = new TemplateMiner(filterConfig.getTemplateMinerSettings(),
+                    filterConfig.getConfigFile().getAbsoluteFile().getParentFile().toPath());
+            miner.start();
+            observers.add(miner);
+        }
+        if (filterConfig.getStatisticsSettings().isEnabled()) {
+            FilterStatistics statistics = createStatistics(filterConfig.getStatisticsSettings());
+            if (statistics != null) {
+                observers.add(statistics);
+                if (exceptionLogger != null) {
+                    exceptionLogger.setStatistics(statistics);
+                }
+            }
+        }
+        SpamFilter spamFilter = new SpamFilter(rules, exceptionLogger, quotas, observers);
+        rootLogger.addFilter(spamFilter);
+        
+        // With async loggers the root logger filter runs on the background thread, so the
+        // cheap rules are also checked on the logging thread before the event is queued
+        String placement = resolveFilterPlacement(context, rootLogger, filterConfig.getConsoleSettings().getFilterPlacement());
+        if (placement.equals("split") && rules.hasPreEnqueueRules()) {
+            PreEnqueueFilter preEnqueueFilter = new PreEnqueueFilter(rules);
+            spamFilter.addRulesListener(preEnqueueFilter::setRules);
+            config.addFilter(preEnqueueFilter);
+        }
+        LOGGER.info("Spam filter placement: {}", placement);
+        
+        if (filterConfig.getConsoleSettings().isColorize()) {
+            installColorizedConsole(config, rootLogger);
+        }
+        
+        // Shorten oversized messages on their way to the console, after the filter let them through
+        if (filterConfig.getRewriteSettings().isEnabled()) {
+            installRewrite(config, rootLogger, new TruncatingRewritePolicy(filterConfig.getRewriteSettings()));
+        }
+        
+        // Catch mods that print straight to System.out/System.err and bypass Log4j
+        if (filterConfig.getConsoleSettings().isFilterSystemStreams()) {
+            FilteredPrintStream.install(spamFilter);
+        }
+        
+        context.updateLoggers();
+        return spamFilter;
+    }
+    
+    /**
+     * Open the statistics file and start counting into it
+     * 
+     * @param settings The statistics settings
+     * @return The statistics, or null if the file could not be opened
+     */
+    private static FilterStatistics createStatistics(FilterConfig.StatisticsSettings settings) {
+        try {
+            TimeSeriesStore store = TimeSeriesStore.open(Path.of(settings.getFile()), settings.getMaxSeries());
+            FilterStatistics statistics = new FilterStatistics(store, settings.getMaxSeries());
+            statistics.start();
+            LOGGER.info("Recording filter statistics to {} ({} series)", store.getFile().toAbsolutePath(), settings.getMaxSeries());
+            return statistics;
+        } catch (Exception e) {
+            LOGGER.error("Could not open the statistics file {}, statistics are not recorded", settings.getFile(), e);
+            return null;
+        }
+    }
+    
+    /**
+     * Set up per-mod quotas, with a rolling file for demoted lines when any mod may be demoted
+     * 
+     * @param config The active Log4j configuration
+     * @param settings The quota settings
+     * @return The quotas
+     */
+    private static ModQuotas createQuotas(Configuration config, FilterConfig.QuotaSettings settings) {
+        ModAttribution attribution = ModAttribution.fromFabric();
+        Appender demoteAppender = null;
+        if (settings.usesDemote()) {
+            try {
+                demoteAppender = RollingFileAppender.newBuilder()
+                        .setName("NoConsoleSpam-Demoted")
+                        .withFileName(settings.getDemoteFile())
+                        .withFilePattern(settings.getDemoteFile() + ".%i")
+                        .withPolicy(SizeBasedTriggeringPolicy.createPolicy("10MB"))
+                        .withStrategy(DefaultRolloverStrategy.newBuilder().withMax("3").withConfig(config).build())
+                        .setLayout(PatternLayout.newBuilder()
+                                .withPattern("[%d{HH:mm:ss}] [%t/%level] (%logger) %msg%n")
+                                .withConfiguration(config)
+                                .build())
+                        .setConfiguration(config)
+                        .build();
+                demoteAppender.start();
+                config.addAppender(demoteAppender);
+            } catch (Exception e) {
+                LOGGER.error("Could not open the demote file {}, over-quota lines will be dropped", settings.getDemoteFile(), e);
+                demoteAppender = null;
+            }
+        }
+        LOGGER.info("Console quotas enabled for {} mods", attribution.size() - 1);
+        return new ModQuotas(settings, attribution, demoteAppender);
+    }
+    
+    /**
+     * Resolve the "auto" filter placement by looking at how the context was set up
+     * 
+     * @param context The logger context the filters are installed into
+     * @param rootLogger The root logger config
+     * @param placement The configured placement: "auto", "logger" or "split"
+     * @return Either "logger" or "split"
+     */
+    private static String resolveFilterPlacement(LoggerContext context, LoggerConfig rootLogger, String placement) {
+        if ("logger".equalsIgnoreCase(placement) || "split".equalsIgnoreCase(placement)) {
+            return placement.toLowerCase();
+        }
+        if (!"auto".equalsIgnoreCase(placement)) {
+            LOGGER.warn("Unknown filterPlacement {}, using auto", placement);
+        }
+        // Compare class names so the Disruptor classes aren't loaded when async logging is off
+        boolean async = context.getClass().getName().equals("org.apache.logging.log4j.core.async.AsyncLoggerContext")
+                || rootLogger.getClass().getName().contains("AsyncLoggerConfig");
+        return async ? "split" : "logger";
+    }
+    
+    /**
+     * Replace the console appenders of the root logger with copies that use the ColorizedLayout
+     * 
+     * @param config The active Log4j configuration
+     * @param rootLogger The root logger config whose console appenders should be replaced
+     */
+    private static void installColorizedConsole(Configuration config, LoggerConfig rootLogger) {
+        try {
+            ColorizedLayout layout = ColorizedLayout.load(config);
+            int replaced = 0;
+            
+            for (Map.Entry<String, Appender> entry : Map.copyOf(rootLogger.getAppenders()).entrySet()) {
+                if (!(entry.getValue() instanceof ConsoleAppender original)) {
+                    continue;
+                }
+                
+                AppenderRef ref = appenderRef(rootLogger, entry.getKey());
+                ConsoleAppender colorized = ConsoleAppender.newBuilder()
+                        .setTarget(original.getTarget())
+                        .setName(original.getName() + COLORIZED_SUFFIX)
+                        .setLayout(layout)
+                        .setFilter(original.getFilter())
+                        .setConfiguration(config)
+                        .build();
+                colorized.start();
+                
+                // The original appender is left running in case other loggers still refer to it
+                config.addAppender(colorized);
+                rootLogger.removeAppender(entry.getKey());
+                // Keep the level and filter the root logger applied to the console appender.
+                // Fabric's root logger is "all"; only the console reference limits it to info.
+                rootLogger.addAppender(colorized,
+                        ref != null ? ref.getLevel() : null,
+                        ref != null ? ref.getFilter() : null);
+                replaced++;
+            }
+            
+            LOGGER.info("Colorized {} console appender(s)", replaced);
+        } catch (Exception e) {
+            LOGGER.error("Failed to install colorized console output", e);
+        }
+    }
+    
+    /**
+     * Find the reference the root logger was configured with for an appender. The references
+     * aren't updated when appenders are swapped, so a colorized console appender is looked up
+     * under the name of the appender it replaced.
+     * 
+     * @param rootLogger The root logger config
+     * @param appenderName The name of an appender of the root logger
+     * @return The configured reference, or null if there is none
+     */
+    private static AppenderRef appenderRef(LoggerConfig rootLogger, String appenderName) {
+        String configured = appenderName.endsWith(COLORIZED_SUFFIX)
+                ? appenderName.substring(0, appenderName.length() - COLORIZED_SUFFIX.length())
+                : appenderName;
+        return rootLogger.getAppenderRefs().stream()
+                .filter(ref -> ref.getRef().equals(configured))
+                .findFirst()
+                .orElse(null);
+    }
+    
+    /**
+     * Route the console appenders of the root logger through a rewrite appender, so messages are
+     * rewritten for the console only and log files keep them whole
+     * 
+     * @param config The active Log4j configuration
+     * @param rootLogger The root logger config whose console appenders should be wrapped
+     * @param policy The policy applied to every event before it reaches the console
+     */
+    private static void installRewrite(Configuration config, LoggerConfig rootLogger, RewritePolicy policy) {
+        try {
+            int wrapped = 0;
+            
+            for (Map.Entry<String, Appender> entry : Map.copyOf(rootLogger.getAppenders()).entrySet()) {
+                if (!(entry.getValue() instanceof ConsoleAppender)) {
+                    continue;
+                }
+                
+                // Keep the level and filter the root logger applied to the console appender
+                AppenderRef original = appenderRef(rootLogger, entry.getKey());
+                AppenderRef[] refs = {AppenderRef.createAppenderRef(entry.getKey(), null, null)};
+                RewriteAppender rewrite = RewriteAppender.createAppender(entry.getKey() + "-Rewrite", "true", refs, config, policy, null);
+                if (rewrite == null) {
+                    continue;
+                }
+                rewrite.start();
+                
+                config.addAppender(rewrite);
+                rootLogger.removeAppender(entry.getKey());
+                rootLogger.addAppender(rewrite,
+                        original != null ? original.getLevel() : null,
+                        original != null ? original.getFilter() : null);
+                wrapped++;
+            }
+            
+            LOGGER.info("Rewriting oversized messages for {} console appender(s)", wrapped);
+        } catch (Exception e) {
+            LOGGER.error("Failed to install the message rewrite stage", e);
+        }
+    }
+}
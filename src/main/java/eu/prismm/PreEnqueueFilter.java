@@ -0,0 +1,143 @@
+package eu.prismm;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.Logger;
+import org.apache.logging.log4j.core.filter.AbstractFilter;
+import org.apache.logging.log4j.message.Message;
+
+/**
+ * Context-wide filter that rejects spam on the logging thread before an event is created.
+ *
+ * Log4j asks context-wide filters with the unformatted template and the raw parameters, so
+ * this filter only uses the rules that need neither formatting nor regexes: ignored loggers,
+ * minimum levels per logger and spam templates. Events that carry a throwable are always let
+ * through to SpamFilter unless their logger is ignored, so exception capture is not lost.
+ *
+ * The overloads are spelled out so no parameter array is allocated per call.
+ */
+public class PreEnqueueFilter extends AbstractFilter {
+    private volatile FilterRules rules;
+
+    public PreEnqueueFilter(FilterRules rules) {
+        super(Result.NEUTRAL, Result.NEUTRAL);
+        this.rules = rules;
+    }
+
+    /**
+     * @param rules The rules to use from now on, replacing the current ones as a whole
+     */
+    public void setRules(FilterRules rules) {
+        this.rules = rules;
+    }
+
+    private Result check(Logger logger, Level level, String template, boolean hasThrowable) {
+        try {
+            int result = rules.matchPreEnqueue(logger != null ? logger.getName() : null,
+                    level != null ? level.intLevel() : FilterRules.ANY_LEVEL,
+                    hasThrowable ? null : template);
+            if (result == FilterRules.NO_MATCH || (hasThrowable && result != FilterRules.IGNORED_LOGGER)) {
+                return Result.NEUTRAL;
+            }
+            return Result.DENY;
+        } catch (Exception e) {
+            // Never let the filter break logging
+            System.err.println("Error in PreEnqueueFilter: " + e.getMessage());
+            return Result.NEUTRAL;
+        }
+    }
+
+    @Override
+    public Result filter(LogEvent event) {
+        if (event == null) {
+            return Result.NEUTRAL;
+        }
+        try {
+            Message message = event.getMessage();
+            int result = rules.matchPreEnqueue(event.getLoggerName(),
+                    event.getLevel() != null ? event.getLevel().intLevel() : FilterRules.ANY_LEVEL,
+                    message != null && event.getThrown() == null ? message.getFormat() : null);
+            if (result == FilterRules.NO_MATCH || (event.getThrown() != null && result != FilterRules.IGNORED_LOGGER)) {
+                return Result.NEUTRAL;
+            }
+            return Result.DENY;
+        } catch (Exception e) {
+            System.err.println("Error in PreEnqueueFilter: " + e.getMessage());
+            return Result.NEUTRAL;
+        }
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, Message msg, Throwable t) {
+        return check(logger, level, msg != null ? msg.getFormat() : null, t != null);
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, Object msg, Throwable t) {
+        return check(logger, level, msg instanceof String ? (String) msg : null, t != null);
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object... params) {
+        boolean hasThrowable = params != null && params.length > 0 && params[params.length - 1] instanceof Throwable;
+        return check(logger, level, msg, hasThrowable);
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0) {
+        return check(logger, level, msg, p0 instanceof Throwable);
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1) {
+        return check(logger, level, msg, p1 instanceof Throwable);
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2) {
+        return check(logger, level, msg, p2 instanceof Throwable);
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2,
+                         Object p3) {
+        return check(logger, level, msg, p3 instanceof Throwable);
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2,
+                         Object p3, Object p4) {
+        return check(logger, level, msg, p4 instanceof Throwable);
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2,
+                         Object p3, Object p4, Object p5) {
+        return check(logger, level, msg, p5 instanceof Throwable);
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2,
+                         Object p3, Object p4, Object p5, Object p6) {
+        return check(logger, level, msg, p6 instanceof Throwable);
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2,
+                         Object p3, Object p4, Object p5, Object p6, Object p7) {
+        return check(logger, level, msg, p7 instanceof Throwable);
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2,
+                         Object p3, Object p4, Object p5, Object p6, Object p7, Object p8) {
+        return check(logger, level, msg, p8 instanceof Throwable);
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2,
+                         Object p3, Object p4, Object p5, Object p6, Object p7, Object p8, Object p9) {
+        return check(logger, level, msg, p9 instanceof Throwable);
+    }
+}
@@ -0,0 +1,268 @@
+package eu.prismm;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary snapshot of a loaded spamfilters.json, keyed by a SHA-256 hash of the file.
+ *
+ * The snapshot holds the spam patterns that compiled successfully with their level and marker
+ * scopes, the ignored loggers and the remaining configuration as a binary JSON tree. When the hash still matches, the whole
+ * configuration is read back with one mapped read, without parsing JSON text or compiling
+ * any regex to validate it. Compiled regexes themselves can't be persisted; FilterRules
+ * compiles them lazily and matches ".*literal.*" patterns without a regex at all.
+ *
+ * File layout: magic "NCSR", format version, 32-byte config hash, pattern count and
+ * patterns, the pattern scopes as a JSON array, logger count and loggers, then the JSON
+ * tree. Strings are an int byte length followed by UTF-8.
+ */
+public final class RuleSnapshotCache {
+    private static final Logger LOGGER = LogManager.getLogger(NoConsoleSpam.MOD_ID);
+    public static final String FILENAME = ".spamfilters.cache";
+    private static final byte[] MAGIC = {'N', 'C', 'S', 'R'};
+    private static final int FORMAT_VERSION = 2;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_FALSE = 1;
+    private static final byte TYPE_TRUE = 2;
+    private static final byte TYPE_NUMBER = 3;
+    private static final byte TYPE_STRING = 4;
+    private static final byte TYPE_ARRAY = 5;
+    private static final byte TYPE_OBJECT = 6;
+
+    /**
+     * A configuration read back from the cache
+     */
+    public record Snapshot(List<String> spamPatterns, JsonArray patternScopes, List<String> ignoredLoggers, JsonObject settings) {
+    }
+
+    private RuleSnapshotCache() {
+    }
+
+    /**
+     * @param configBytes The raw bytes of spamfilters.json
+     * @return The hash the snapshot is keyed by
+     */
+    public static byte[] hash(byte[] configBytes) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(configBytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Read the snapshot if it was written for the same configuration
+     *
+     * @param cacheFile The snapshot file
+     * @param configHash The hash of the current spamfilters.json
+     * @return The snapshot, or null if there is none, it is stale or it can't be read
+     */
+    public static Snapshot read(Path cacheFile, byte[] configHash) {
+        if (!Files.isRegularFile(cacheFile)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.READ)) {
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            byte[] magic = new byte[MAGIC.length];
+            data.get(magic);
+            if (!Arrays.equals(magic, MAGIC) || data.getInt() != FORMAT_VERSION) {
+                return null;
+            }
+            byte[] storedHash = new byte[configHash.length];
+            data.get(storedHash);
+            if (!MessageDigest.isEqual(storedHash, configHash)) {
+                return null;
+            }
+
+            List<String> patterns = readStrings(data);
+            JsonElement scopes = readElement(data, 0);
+            List<String> loggers = readStrings(data);
+            JsonElement settings = readElement(data, 0);
+            if (!scopes.isJsonArray() || !settings.isJsonObject()) {
+                return null;
+            }
+            return new Snapshot(patterns, scopes.getAsJsonArray(), loggers, settings.getAsJsonObject());
+        } catch (IOException | RuntimeException e) {
+            // A damaged cache is simply rebuilt from the JSON
+            LOGGER.debug("Ignoring unreadable rule snapshot {}: {}", cacheFile, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Write a snapshot of a configuration that was just loaded from JSON
+     *
+     * @param cacheFile The snapshot file
+     * @param configHash The hash of the spamfilters.json the configuration came from
+     * @param spamPatterns The patterns that compiled successfully, in rule order
+     * @param patternScopes The level and marker scope of each pattern
+     * @param ignoredLoggers The ignored loggers
+     * @param config The parsed configuration; spamPatterns and ignoredLoggers are left out of the tree
+     */
+    public static void write(Path cacheFile, byte[] configHash, Collection<String> spamPatterns, JsonArray patternScopes,
+                             Collection<String> ignoredLoggers, JsonObject config) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.write(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.write(configHash);
+            writeStrings(out, spamPatterns);
+            writeElement(out, patternScopes);
+            writeStrings(out, ignoredLoggers);
+
+            JsonObject settings = new JsonObject();
+            for (Map.Entry<String, JsonElement> entry : config.entrySet()) {
+                if (!entry.getKey().equals("spamPatterns") && !entry.getKey().equals("ignoredLoggers")) {
+                    settings.add(entry.getKey(), entry.getValue());
+                }
+            }
+            writeElement(out, settings);
+            out.flush();
+
+            // Replace atomically so a crash mid-write never leaves a half snapshot behind
+            Path temp = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+            Files.write(temp, bytes.toByteArray());
+            Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.debug("Could not write rule snapshot {}: {}", cacheFile, e.getMessage());
+        }
+    }
+
+    private static void writeStrings(DataOutputStream out, Collection<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeElement(DataOutputStream out, JsonElement element) throws IOException {
+        if (element == null || element.isJsonNull()) {
+            out.writeByte(TYPE_NULL);
+        } else if (element.isJsonObject()) {
+            out.writeByte(TYPE_OBJECT);
+            out.writeInt(element.getAsJsonObject().size());
+            for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+                writeString(out, entry.getKey());
+                writeElement(out, entry.getValue());
+            }
+        } else if (element.isJsonArray()) {
+            out.writeByte(TYPE_ARRAY);
+            out.writeInt(element.getAsJsonArray().size());
+            for (JsonElement item : element.getAsJsonArray()) {
+                writeElement(out, item);
+            }
+        } else {
+            JsonPrimitive primitive = element.getAsJsonPrimitive();
+            if (primitive.isBoolean()) {
+                out.writeByte(primitive.getAsBoolean() ? TYPE_TRUE : TYPE_FALSE);
+            } else if (primitive.isNumber()) {
+                out.writeByte(TYPE_NUMBER);
+                // Keep the number exactly as written, like Gson does
+                writeString(out, primitive.getAsString());
+            } else {
+                out.writeByte(TYPE_STRING);
+                writeString(out, primitive.getAsString());
+            }
+        }
+    }
+
+    private static List<String> readStrings(ByteBuffer data) {
+        int count = readCount(data);
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(readString(data));
+        }
+        return values;
+    }
+
+    private static String readString(ByteBuffer data) {
+        int length = readCount(data);
+        byte[] bytes = new byte[length];
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read a length or count, rejecting values a damaged file could never satisfy
+     */
+    private static int readCount(ByteBuffer data) {
+        int count = data.getInt();
+        if (count < 0 || count > data.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        return count;
+    }
+
+    private static JsonElement readElement(ByteBuffer data, int depth) {
+        if (depth > 64) {
+            throw new IllegalStateException("Snapshot nesting too deep");
+        }
+        byte type = data.get();
+        switch (type) {
+            case TYPE_NULL:
+                return JsonNull.INSTANCE;
+            case TYPE_FALSE:
+                return new JsonPrimitive(false);
+            case TYPE_TRUE:
+                return new JsonPrimitive(true);
+            case TYPE_NUMBER:
+                return new JsonPrimitive(new BigDecimal(readString(data)));
+            case TYPE_STRING:
+                return new JsonPrimitive(readString(data));
+            case TYPE_ARRAY: {
+                int size = readCount(data);
+                JsonArray array = new JsonArray(size);
+                for (int i = 0; i < size; i++) {
+                    array.add(readElement(data, depth + 1));
+                }
+                return array;
+            }
+            case TYPE_OBJECT: {
+                int size = readCount(data);
+                JsonObject object = new JsonObject();
+                for (int i = 0; i < size; i++) {
+                    String key = readString(data);
+                    object.add(key, readElement(data, depth + 1));
+                }
+                return object;
+            }
+            default:
+                throw new IllegalStateException("Unknown snapshot element type " + type);
+        }
+    }
+}
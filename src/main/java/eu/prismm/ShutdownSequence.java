@@ -0,0 +1,61 @@
+package eu.prismm;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The one JVM shutdown hook of NoConsoleSpam, which runs the shutdown tasks of all components
+ * in a fixed order instead of leaving it to the JVM, which starts separate hooks all at once.
+ *
+ * Producers are stopped before what they feed: the filtered System streams are flushed first,
+ * then the exception writers are drained, and the statistics, which count captures, are
+ * written last.
+ */
+public final class ShutdownSequence {
+    // Phases, run in ascending order; tasks within a phase run in the order they were registered
+    public static final int SYSTEM_STREAMS = 0;
+    public static final int CAPTURES = 10;
+    public static final int STATISTICS = 20;
+
+    private static final List<Task> TASKS = new ArrayList<>();
+    private static boolean hookAdded;
+
+    private record Task(int phase, String name, Runnable action) {
+    }
+
+    private ShutdownSequence() {
+    }
+
+    /**
+     * Run a task when the JVM shuts down
+     *
+     * @param phase SYSTEM_STREAMS, CAPTURES or STATISTICS
+     * @param name The name reported if the task fails
+     * @param action The task; a failure doesn't keep later tasks from running
+     */
+    public static synchronized void register(int phase, String name, Runnable action) {
+        TASKS.add(new Task(phase, name, action));
+        if (!hookAdded) {
+            Runtime.getRuntime().addShutdownHook(new Thread(ShutdownSequence::run, "NoConsoleSpam-Shutdown"));
+            hookAdded = true;
+        }
+    }
+
+    private static void run() {
+        List<Task> tasks;
+        synchronized (ShutdownSequence.class) {
+            tasks = new ArrayList<>(TASKS);
+        }
+        // A stable sort, so registration order is kept within a phase
+        tasks.sort(Comparator.comparingInt(Task::phase));
+        for (Task task : tasks) {
+            try {
+                task.action().run();
+            } catch (Throwable t) {
+                // Logging may already be shut down
+                System.err.println("NoConsoleSpam: " + task.name() + " failed during shutdown: " + t);
+            }
+        }
+    }
+}
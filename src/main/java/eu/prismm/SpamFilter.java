@@ -12,21 +12,70 @@ import org.apache.logging.log4j.core.time.MutableInstant;
 import org.apache.logging.log4j.message.Message;
 import org.apache.logging.log4j.util.ReadOnlyStringMap;
 
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
 
 public class SpamFilter extends AbstractFilter {
-    private final Set<Pattern> spamPatterns;
-    private final Set<String> ignoredLoggers;
+    // Returned by evaluate for events held back by their mod's quota; the other codes are FilterRules'
+    private static final int QUOTA = -6;
+    
+    // Immutable, swapped whole by setRules; each event reads it once so its verdict comes from one rule set
+    private volatile FilterRules rules;
     private final ExceptionLogger exceptionLogger;
+    private final ModQuotas quotas;
+    private final FilterObserver[] observers;
+    // Told about every new rule set, for the other places the rules are applied
+    private final List<Consumer<FilterRules>> rulesListeners = new CopyOnWriteArrayList<>();
     
     public SpamFilter(Set<Pattern> spamPatterns, Set<String> ignoredLoggers, ExceptionLogger exceptionLogger) {
-        // Handle potential null values to prevent NullPointerExceptions
-        this.spamPatterns = spamPatterns != null ? spamPatterns : new HashSet<>();
-        this.ignoredLoggers = ignoredLoggers != null ? ignoredLoggers : new HashSet<>();
+        // FilterRules handles null values to prevent NullPointerExceptions
+        this(new FilterRules(spamPatterns, ignoredLoggers), exceptionLogger);
+    }
+    
+    public SpamFilter(FilterRules rules, ExceptionLogger exceptionLogger) {
+        this(rules, exceptionLogger, null);
+    }
+    
+    public SpamFilter(FilterRules rules, ExceptionLogger exceptionLogger, ModQuotas quotas) {
+        this(rules, exceptionLogger, quotas, List.of());
+    }
+    
+    public SpamFilter(FilterRules rules, ExceptionLogger exceptionLogger, ModQuotas quotas, List<FilterObserver> observers) {
+        this.rules = rules != null ? rules : new FilterRules(null, null);
         this.exceptionLogger = exceptionLogger; // This can be null, we'll check before using
+        this.quotas = quotas; // null when quotas are disabled
+        this.observers = observers != null ? observers.toArray(new FilterObserver[0]) : new FilterObserver[0];
+    }
+    
+    /**
+     * Replace the rules, for example after the configuration was reloaded. Events being
+     * filtered at the same time finish with the rules they started with.
+     * 
+     * @param rules The new rules
+     */
+    public void setRules(FilterRules rules) {
+        FilterRules replacement = rules != null ? rules : new FilterRules(null, null);
+        this.rules = replacement;
+        for (Consumer<FilterRules> listener : rulesListeners) {
+            listener.accept(replacement);
+        }
+    }
+    
+    /**
+     * Apply rules set later with setRules elsewhere too, such as in a PreEnqueueFilter
+     * 
+     * @param listener Called with every new rule set
+     */
+    public void addRulesListener(Consumer<FilterRules> listener) {
+        rulesListeners.add(listener);
+    }
+    
+    public FilterRules getRules() {
+        return rules;
     }
 
     @Override
@@ -35,15 +84,47 @@ public class SpamFilter extends AbstractFilter {
             return Result.NEUTRAL;
         }
 
+        FilterRules rules = this.rules;
+        int verdict = evaluate(event, rules);
+        boolean suppressed = verdict != FilterRules.NO_MATCH;
+        if (observers.length > 0) {
+            String rule = suppressed ? (verdict == QUOTA ? "quota" : rules.describe(verdict)) : null;
+            for (FilterObserver observer : observers) {
+                try {
+                    observer.observe(event, suppressed, rule);
+                } catch (Exception e) {
+                    System.err.println("Error in filter observer: " + e.getMessage());
+                }
+            }
+        }
+        return suppressed ? Result.DENY : Result.NEUTRAL;
+    }
+
+    /**
+     * @return FilterRules.NO_MATCH to let the event through, otherwise the rule that denies it:
+     *         a pattern index, a FilterRules result code or QUOTA
+     */
+    private int evaluate(LogEvent event, FilterRules rules) {
         try {
             // Check if the logger is in the ignored list
-            if (ignoredLoggers.contains(event.getLoggerName())) {
-                return Result.DENY;
+            if (rules.match(event.getLoggerName(), null) == FilterRules.IGNORED_LOGGER) {
+                return FilterRules.IGNORED_LOGGER;
             }
-
+            
+            // Write an OutOfMemoryError or StackOverflowError before formatting the message allocates anything
+            Throwable throwable = event.getThrown();
+            boolean emergency = throwable instanceof VirtualMachineError && exceptionLogger != null
+                    && exceptionLogger.captureEmergency(event.getLoggerName(), event.getThreadName(), throwable);
+
+            int levelValue = event.getLevel() != null ? event.getLevel().intLevel() : FilterRules.ANY_LEVEL;
+            Marker marker = event.getMarker();
+            boolean capture = throwable != null && !emergency && exceptionLogger != null && exceptionLogger.isInitialized();
+            // Levels without patterns skip formatting, unless a quota or a capture needs the message
+            boolean hasPatterns = rules.hasPatternsFor(levelValue, marker);
+            
             // Get the message
             String message = "";
-            if (event.getMessage() != null) {
+            if (event.getMessage() != null && (hasPatterns || capture || quotas != null)) {
                 try {
                     message = event.getMessage().getFormattedMessage();
                 } catch (Exception e) {
@@ -53,19 +134,12 @@ public class SpamFilter extends AbstractFilter {
             }
 
             // Check if this is an exception and we need to log it separately
-            Throwable throwable = event.getThrown();
-            if (throwable != null && exceptionLogger != null && exceptionLogger.isInitialized()) {
+            if (capture) {
                 // We'll log all types of exceptions
                 try {
-                    // Include logger name and level in the message for better context
-                    String loggerContext = event.getLoggerName() != null ? 
-                                        "[Logger: " + event.getLoggerName() + "] " : "";
-                    String levelContext = "[Level: " + event.getLevel() + "] ";
-                    String threadContext = "[Thread: " + event.getThreadName() + "] ";
-                    String contextualMessage = loggerContext + levelContext + threadContext + message;
-                    
-                    // Log the exception with its extended context information
-                    exceptionLogger.logException(contextualMessage, throwable);
+                    // Log the exception with the logger, level and thread for context
+                    exceptionLogger.logException(event.getLoggerName(), String.valueOf(event.getLevel()),
+                            event.getThreadName(), message, throwable);
                 } catch (Exception ex) {
                     // If exception logging fails, at least log that we tried
                     System.err.println("Failed to log exception: " + ex.getMessage());
@@ -73,17 +147,35 @@ public class SpamFilter extends AbstractFilter {
                 // We still want to filter the console output based on patterns
             }
 
-            // Check if the message matches any spam patterns
-            if (message != null && !message.isEmpty()) {
-                for (Pattern pattern : spamPatterns) {
-                    try {
-                        if (pattern.matcher(message).matches()) {
-                            return Result.DENY;
-                        }
-                    } catch (Exception e) {
-                        // If pattern matching fails, log this but allow the message to pass through
-                        System.err.println("Error matching pattern: " + e.getMessage());
-                    }
+            // Check the logger levels and unformatted templates before the more expensive patterns
+            String template = event.getMessage() != null ? event.getMessage().getFormat() : null;
+            int preEnqueue = rules.matchPreEnqueue(event.getLoggerName(), levelValue, template);
+            if (preEnqueue != FilterRules.NO_MATCH) {
+                return preEnqueue;
+            }
+            
+            // Known-harmless exceptions are kept off the console; they were captured above all the same
+            if (rules.matchException(throwable) != FilterRules.NO_MATCH) {
+                return FilterRules.EXCEPTION_RULE;
+            }
+
+            // Check if the message matches any spam pattern scoped to its level and marker
+            if (hasPatterns) {
+                int pattern = rules.match(null, levelValue, marker, message);
+                if (pattern != FilterRules.NO_MATCH) {
+                    return pattern;
+                }
+            }
+            
+            // Hold the mod that logged the message to its console quota
+            if (quotas != null) {
+                int verdict = quotas.check(event.getLoggerName(), message.length());
+                if (verdict == ModQuotas.DEMOTE) {
+                    quotas.demote(event);
+                    return QUOTA;
+                }
+                if (verdict == ModQuotas.DENY) {
+                    return QUOTA;
                 }
             }
         } catch (Exception e) {
@@ -91,7 +183,7 @@ public class SpamFilter extends AbstractFilter {
             System.err.println("Error in SpamFilter: " + e.getMessage());
         }
 
-        return Result.NEUTRAL;
+        return FilterRules.NO_MATCH;
     }
 
     @Override
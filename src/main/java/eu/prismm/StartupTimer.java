@@ -0,0 +1,36 @@
+package eu.prismm;
+
+/**
+ * Measures the phases of NoConsoleSpam's initialization so slow startups can be traced
+ * to a specific step.
+ */
+public class StartupTimer {
+    private final long start = System.nanoTime();
+    private final StringBuilder phases = new StringBuilder();
+    private long phaseStart = start;
+
+    /**
+     * End the current phase
+     *
+     * @param name The name of the phase that just finished
+     */
+    public void phase(String name) {
+        long now = System.nanoTime();
+        if (phases.length() > 0) {
+            phases.append(", ");
+        }
+        phases.append(name).append(' ').append(formatMillis(now - phaseStart));
+        phaseStart = now;
+    }
+
+    /**
+     * @return Every finished phase with its duration, followed by the total
+     */
+    public String summary() {
+        return phases + " (total " + formatMillis(System.nanoTime() - start) + ")";
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format("%.1f ms", nanos / 1_000_000.0);
+    }
+}
@@ -0,0 +1,377 @@
+package eu.prismm;
+
+import com.google.gson.stream.JsonWriter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.LogEvent;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Mines message templates from the console output and suggests spam rules for the busy ones.
+ *
+ * A sample of the messages SpamFilter lets through is handed over a bounded lock-free queue
+ * to a background thread, so mining never runs on the logging thread. The thread clusters
+ * messages the way Drain does: messages are routed through a fixed-depth tree by their token
+ * count and first tokens, and join the most similar template in the leaf they reach, where
+ * the tokens that differ become wildcards. Templates with a high estimated rate are written to
+ * suggested-spamfilters.json as ready-made spamPatterns.
+ *
+ * Memory is capped by the queue size, the message length, the number of tokens and the
+ * number of templates; the least recently seen template is evicted when there are too many.
+ */
+public final class TemplateMiner implements FilterObserver {
+    private static final Logger LOGGER = LogManager.getLogger(NoConsoleSpam.MOD_ID);
+    public static final String FILENAME = "suggested-spamfilters.json";
+    private static final String WILDCARD = "<*>";
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final int MAX_MESSAGE_LENGTH = 512;
+    private static final int MAX_TOKENS = 64;
+    // Children per tree node before further tokens share the wildcard child
+    private static final int MAX_CHILDREN = 100;
+    private static final int MAX_SUGGESTIONS = 50;
+    private static final int MIN_SAMPLES = 3;
+
+    private final int sampleRate;
+    private final int depth;
+    private final double similarityThreshold;
+    private final int maxTemplates;
+    private final double minRatePerMinute;
+    private final long writeIntervalNanos;
+    private final Path suggestionsFile;
+
+    private final Queue<Sample> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger dropped = new AtomicInteger();
+    private volatile boolean running;
+    private Thread miner;
+
+    // Only touched by the miner thread
+    private final Node root = new Node(null, null);
+    private final LinkedHashMap<Template, Template> templates = new LinkedHashMap<>(16, 0.75f, true);
+
+    private record Sample(String loggerName, String message, long time) {
+    }
+
+    private static final class Node {
+        final Node parent;
+        final String key;
+        final Map<String, Node> children = new HashMap<>();
+        final List<Template> templates = new ArrayList<>();
+
+        Node(Node parent, String key) {
+            this.parent = parent;
+            this.key = key;
+        }
+    }
+
+    private static final class Template {
+        final String[] tokens;
+        final Node leaf;
+        final String loggerName;
+        final String example;
+        // Set once any sample of the template was cut, so the pattern leaves the rest open
+        boolean truncated;
+        final long firstSeen;
+        long samples;
+
+        Template(String[] tokens, Node leaf, Sample sample, boolean truncated) {
+            this.tokens = tokens;
+            this.leaf = leaf;
+            this.loggerName = sample.loggerName();
+            this.example = sample.message().length() > MAX_MESSAGE_LENGTH
+                    ? sample.message().substring(0, MAX_MESSAGE_LENGTH) : sample.message();
+            this.truncated = truncated;
+            this.firstSeen = sample.time();
+        }
+    }
+
+    /**
+     * @param settings The miner settings
+     * @param configDirectory The directory suggested-spamfilters.json is written to
+     */
+    public TemplateMiner(FilterConfig.TemplateMinerSettings settings, Path configDirectory) {
+        this.sampleRate = Math.max(1, settings.getSampleRate());
+        this.depth = Math.max(3, settings.getDepth());
+        this.similarityThreshold = settings.getSimilarityThreshold();
+        this.maxTemplates = Math.max(1, settings.getMaxTemplates());
+        this.minRatePerMinute = settings.getMinRatePerMinute();
+        this.writeIntervalNanos = TimeUnit.SECONDS.toNanos(Math.max(1, settings.getWriteIntervalSeconds()));
+        this.suggestionsFile = configDirectory.resolve(FILENAME);
+    }
+
+    @Override
+    public void observe(LogEvent event, boolean suppressed) {
+        // Suppressed lines already have a rule, and our own output isn't spam
+        if (suppressed || !running || NoConsoleSpam.MOD_ID.equals(event.getLoggerName())
+                || ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            return;
+        }
+        if (queued.incrementAndGet() > QUEUE_CAPACITY) {
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        String message = event.getMessage() != null ? event.getMessage().getFormattedMessage() : "";
+        if (message.length() > MAX_MESSAGE_LENGTH) {
+            // One extra character tells the miner the message went on
+            message = message.substring(0, MAX_MESSAGE_LENGTH + 1);
+        }
+        queue.offer(new Sample(event.getLoggerName(), message, System.nanoTime()));
+    }
+
+    public void start() {
+        running = true;
+        miner = new Thread(this::runMiner, "NoConsoleSpam-TemplateMiner");
+        miner.setDaemon(true);
+        miner.setPriority(Thread.MIN_PRIORITY);
+        miner.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (miner != null) {
+            miner.interrupt();
+        }
+    }
+
+    private void runMiner() {
+        long nextWrite = System.nanoTime() + writeIntervalNanos;
+        while (running) {
+            Sample sample;
+            while ((sample = queue.poll()) != null) {
+                queued.decrementAndGet();
+                try {
+                    add(sample);
+                } catch (Exception e) {
+                    System.err.println("Template miner failed on a message: " + e.getMessage());
+                }
+            }
+            if (System.nanoTime() - nextWrite >= 0) {
+                nextWrite = System.nanoTime() + writeIntervalNanos;
+                try {
+                    writeSuggestions();
+                } catch (Exception e) {
+                    System.err.println("Failed to write " + FILENAME + ": " + e.getMessage());
+                }
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(200));
+        }
+    }
+
+    /**
+     * Cluster one message into the template tree
+     */
+    void add(Sample sample) {
+        String message = sample.message();
+        boolean truncated = message.length() > MAX_MESSAGE_LENGTH;
+        String[] tokens = tokenize(truncated ? message.substring(0, MAX_MESSAGE_LENGTH) : message);
+        if (tokens.length == 0) {
+            return;
+        }
+        truncated |= tokens.length == MAX_TOKENS;
+
+        Node leaf = leafFor(tokens);
+        Template best = null;
+        double bestSimilarity = -1;
+        for (Template template : leaf.templates) {
+            double similarity = similarity(template.tokens, tokens);
+            if (similarity > bestSimilarity) {
+                best = template;
+                bestSimilarity = similarity;
+            }
+        }
+
+        if (best != null && bestSimilarity >= similarityThreshold) {
+            for (int i = 0; i < tokens.length; i++) {
+                if (!best.tokens[i].equals(tokens[i])) {
+                    best.tokens[i] = WILDCARD;
+                }
+            }
+            best.truncated |= truncated;
+            best.samples++;
+            templates.get(best); // Marks the template as recently seen
+            return;
+        }
+
+        Template template = new Template(tokens, leaf, sample, truncated);
+        template.samples = 1;
+        leaf.templates.add(template);
+        templates.put(template, template);
+        if (templates.size() > maxTemplates) {
+            evict(templates.keySet().iterator().next());
+        }
+    }
+
+    private void evict(Template template) {
+        templates.remove(template);
+        template.leaf.templates.remove(template);
+        // Prune the branch that now leads nowhere so the tree stays within the cap too
+        Node node = template.leaf;
+        while (node.parent != null && node.templates.isEmpty() && node.children.isEmpty()) {
+            node.parent.children.remove(node.key);
+            node = node.parent;
+        }
+    }
+
+    /**
+     * Walk the tree by token count and then the first depth - 2 tokens
+     */
+    private Node leafFor(String[] tokens) {
+        Node node = child(root, Integer.toString(tokens.length));
+        for (int i = 0; i < depth - 2 && i < tokens.length; i++) {
+            String token = tokens[i];
+            if (!node.children.containsKey(token) && node.children.size() >= MAX_CHILDREN) {
+                token = WILDCARD;
+            }
+            node = child(node, token);
+        }
+        return node;
+    }
+
+    private static Node child(Node parent, String key) {
+        return parent.children.computeIfAbsent(key, k -> new Node(parent, k));
+    }
+
+    private static double similarity(String[] template, String[] tokens) {
+        int same = 0;
+        for (int i = 0; i < tokens.length; i++) {
+            if (template[i].equals(tokens[i])) {
+                same++;
+            }
+        }
+        return (double) same / tokens.length;
+    }
+
+    /**
+     * Split on whitespace, replacing tokens that contain digits with the wildcard up front
+     * like Drain's masking step, so numbers never split a template
+     */
+    static String[] tokenize(String message) {
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= message.length() && tokens.size() < MAX_TOKENS; i++) {
+            boolean space = i == message.length() || Character.isWhitespace(message.charAt(i));
+            if (space && start >= 0) {
+                tokens.add(mask(message.substring(start, i)));
+                start = -1;
+            } else if (!space && start < 0) {
+                start = i;
+            }
+        }
+        return tokens.toArray(new String[0]);
+    }
+
+    private static String mask(String token) {
+        for (int i = 0; i < token.length(); i++) {
+            if (Character.isDigit(token.charAt(i))) {
+                return WILDCARD;
+            }
+        }
+        return token;
+    }
+
+    /**
+     * @return A spamPatterns regex that matches every message of the template. Patterns are
+     *         matched against the whole message, so whitespace around it is allowed for.
+     */
+    static String toPattern(String[] tokens, boolean truncated) {
+        StringBuilder pattern = new StringBuilder("\\s*");
+        for (int i = 0; i < tokens.length; i++) {
+            if (i > 0) {
+                pattern.append("\\s+");
+            }
+            if (tokens[i].equals(WILDCARD)) {
+                pattern.append("\\S+");
+            } else {
+                for (int c = 0; c < tokens[i].length(); c++) {
+                    char ch = tokens[i].charAt(c);
+                    if ("\\^$.|?*+()[]{}".indexOf(ch) >= 0) {
+                        pattern.append('\\');
+                    }
+                    pattern.append(ch);
+                }
+            }
+        }
+        pattern.append(truncated ? "(?s:.*)" : "\\s*");
+        return pattern.toString();
+    }
+
+    /**
+     * Write the templates whose estimated rate is high enough, busiest first
+     */
+    void writeSuggestions() throws IOException {
+        long now = System.nanoTime();
+        List<Template> candidates = new ArrayList<>();
+        Map<Template, Double> rates = new HashMap<>();
+        for (Template template : templates.keySet()) {
+            if (template.samples < MIN_SAMPLES) {
+                continue;
+            }
+            // Each sample stands for sampleRate messages
+            double minutes = Math.max(1.0, (now - template.firstSeen) / 60e9);
+            double rate = template.samples * sampleRate / minutes;
+            if (rate >= minRatePerMinute) {
+                candidates.add(template);
+                rates.put(template, rate);
+            }
+        }
+        candidates.sort((a, b) -> Double.compare(rates.get(b), rates.get(a)));
+        if (candidates.size() > MAX_SUGGESTIONS) {
+            candidates = candidates.subList(0, MAX_SUGGESTIONS);
+        }
+
+        Files.createDirectories(suggestionsFile.getParent());
+        Path temp = suggestionsFile.resolveSibling(FILENAME + ".tmp");
+        try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8);
+             JsonWriter json = new JsonWriter(out)) {
+            json.setIndent("  ");
+            json.beginObject();
+            json.name("generated").value(LocalDateTime.now().toString());
+            json.name("droppedSamples").value(dropped.get());
+            json.name("spamPatterns").beginArray();
+            for (Template template : candidates) {
+                json.value(toPattern(template.tokens, template.truncated));
+            }
+            json.endArray();
+            json.name("suggestions").beginArray();
+            for (Template template : candidates) {
+                json.beginObject();
+                json.name("pattern").value(toPattern(template.tokens, template.truncated));
+                json.name("template").value(String.join(" ", template.tokens));
+                json.name("logger").value(template.loggerName);
+                json.name("estimatedPerMinute").value(Math.round(rates.get(template)));
+                json.name("samples").value(template.samples);
+                json.name("example").value(template.example);
+                json.endObject();
+            }
+            json.endArray();
+            json.endObject();
+        }
+        Files.move(temp, suggestionsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (!candidates.isEmpty()) {
+            LOGGER.debug("Wrote {} suggested spam patterns to {}", candidates.size(), suggestionsFile);
+        }
+    }
+
+    int getTemplateCount() {
+        return templates.size();
+    }
+}
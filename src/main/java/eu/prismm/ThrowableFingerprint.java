@@ -0,0 +1,66 @@
+package eu.prismm;
+
+/**
+ * Computes a cheap 64-bit identity for a throwable: its class, the top frames of its
+ * stack trace and the classes of its cause chain. Two throws from the same place
+ * produce the same fingerprint, regardless of their messages.
+ */
+public final class ThrowableFingerprint {
+    // Deep enough to separate call sites, shallow enough to stay cheap on mixin-heavy traces
+    private static final int FRAME_DEPTH = 8;
+    private static final int MAX_CAUSES = 8;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private ThrowableFingerprint() {
+    }
+
+    /**
+     * @param throwable The throwable to fingerprint
+     * @return A non-zero fingerprint, 0 only for a null throwable
+     */
+    public static long of(Throwable throwable) {
+        if (throwable == null) {
+            return 0;
+        }
+
+        long hash = FNV_OFFSET;
+        hash = mix(hash, throwable.getClass().getName());
+
+        StackTraceElement[] stackTrace = throwable.getStackTrace();
+        int depth = Math.min(stackTrace.length, FRAME_DEPTH);
+        for (int i = 0; i < depth; i++) {
+            StackTraceElement element = stackTrace[i];
+            hash = mix(hash, element.getClassName());
+            hash = mix(hash, element.getMethodName());
+            hash = mix(hash, element.getLineNumber());
+        }
+
+        // Causes are identified by type only; their frames usually repeat the top frames anyway
+        Throwable cause = throwable.getCause();
+        for (int i = 0; cause != null && cause != throwable && i < MAX_CAUSES; i++) {
+            hash = mix(hash, cause.getClass().getName());
+            cause = cause.getCause();
+        }
+
+        // Zero marks an empty slot in the fingerprint index
+        return hash != 0 ? hash : 1;
+    }
+
+    static long mix(long hash, String value) {
+        if (value == null) {
+            return mix(hash, 0);
+        }
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return mix(hash, value.length());
+    }
+
+    static long mix(long hash, int value) {
+        hash ^= value;
+        hash *= FNV_PRIME;
+        return hash;
+    }
+}
@@ -0,0 +1,97 @@
+package eu.prismm;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Command line export of the filter statistics as CSV, one row per bucket and one column per series.
+ *
+ * Usage: java -cp noconsolespam.jar:log4j-api.jar:log4j-core.jar eu.prismm.TimeSeriesExport
+ *        [--file logs/noconsolespam-stats.rrd] [--tier minute|hour|day] [--series denied/rule/]
+ *        [--since 3d]
+ *
+ * --series keeps the series whose key starts with the given prefix and may be repeated.
+ * Durations are relative to now and accept the suffixes s, m, h and d.
+ */
+public class TimeSeriesExport {
+
+    public static void main(String[] args) {
+        Path file = Path.of("logs/noconsolespam-stats.rrd");
+        TimeSeriesStore.Tier tier = TimeSeriesStore.Tier.HOUR;
+        List<String> prefixes = new ArrayList<>();
+        long since = Long.MIN_VALUE;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--file" -> file = Path.of(args[++i]);
+                    case "--tier" -> tier = TimeSeriesStore.Tier.valueOf(args[++i].toUpperCase());
+                    case "--series" -> prefixes.add(args[++i]);
+                    case "--since" -> since = System.currentTimeMillis() - CaptureQuery.parseDuration(args[++i]);
+                    default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: TimeSeriesExport [--file <file>] [--tier minute|hour|day] [--series <prefix>]"
+                    + " [--since <duration>]");
+            System.exit(2);
+            return;
+        }
+
+        try {
+            TimeSeriesStore store = TimeSeriesStore.openExisting(file);
+            try {
+                List<String> keys = store.getKeys();
+                List<Integer> columns = new ArrayList<>();
+                StringBuilder header = new StringBuilder("time");
+                for (int slot = 0; slot < keys.size(); slot++) {
+                    if (matches(keys.get(slot), prefixes)) {
+                        columns.add(slot);
+                        header.append(',').append(csv(keys.get(slot)));
+                    }
+                }
+                System.out.println(header);
+                for (TimeSeriesStore.Row row : store.read(tier)) {
+                    if (row.time() < since) {
+                        continue;
+                    }
+                    StringBuilder line = new StringBuilder(Instant.ofEpochMilli(row.time()).toString());
+                    for (int slot : columns) {
+                        line.append(',').append(row.counts()[slot]);
+                    }
+                    System.out.println(line);
+                }
+            } finally {
+                store.close();
+            }
+        } catch (Exception e) {
+            System.err.println("Failed to export the statistics: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static boolean matches(String key, List<String> prefixes) {
+        if (prefixes.isEmpty()) {
+            return true;
+        }
+        for (String prefix : prefixes) {
+            if (key.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The value, quoted if it holds a comma, quote or line break
+     */
+    private static String csv(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+}
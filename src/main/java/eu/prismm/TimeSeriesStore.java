@@ -0,0 +1,398 @@
+package eu.prismm;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A round-robin time series database in one fixed-size memory-mapped file, in the spirit of RRD.
+ *
+ * Every series is a named counter. Counts are kept in three tiers of ring buffers: per minute
+ * for a day, per hour for a month and per day for two years. Adding the counts of a minute adds
+ * them to the matching row of each tier, and a row is cleared when the ring wraps around to it,
+ * so the file never grows and old data ages out on its own.
+ *
+ * Once every slot is taken, a new series takes over the slot of a series that has no counts
+ * left in any row of the day tier, so nothing was counted for it in the last two years. Series
+ * handed out since the store was opened are never taken over, since their callers keep using
+ * the slot.
+ *
+ * File layout:
+ *   header (64 bytes): magic, format version, series capacity, series count
+ *   keys (128 bytes per series): key length and UTF-8 bytes
+ *   tiers (minute, hour, day): rows of the bucket number (0 for an empty row) and one count per series
+ */
+public class TimeSeriesStore {
+    private static final Logger LOGGER = LogManager.getLogger(NoConsoleSpam.MOD_ID);
+
+    private static final int MAGIC = 0x4E435354; // "NCST"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int KEY_SIZE = 128;
+    private static final int MAX_KEY_BYTES = KEY_SIZE - 2;
+
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_CAPACITY = 8;
+    private static final int OFFSET_COUNT = 12;
+
+    /**
+     * The resolutions counts are kept at
+     */
+    public enum Tier {
+        MINUTE(1, 1440),
+        HOUR(60, 744),
+        DAY(1440, 730);
+
+        private final int minutesPerBucket;
+        private final int rows;
+
+        Tier(int minutesPerBucket, int rows) {
+            this.minutesPerBucket = minutesPerBucket;
+            this.rows = rows;
+        }
+
+        public int getMinutesPerBucket() {
+            return minutesPerBucket;
+        }
+
+        public int getRows() {
+            return rows;
+        }
+    }
+
+    private final Path file;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private final List<String> keys = new ArrayList<>();
+    private final Map<String, Integer> slots = new HashMap<>();
+    // The slots handed out since the store was opened
+    private final BitSet issued = new BitSet();
+
+    private TimeSeriesStore(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Open the store, creating an empty one if the file is missing, unreadable or was made
+     * for a different number of series
+     *
+     * @param file The store file
+     * @param capacity The number of series the store holds
+     * @return The opened store
+     */
+    public static TimeSeriesStore open(Path file, int capacity) throws IOException {
+        TimeSeriesStore store = new TimeSeriesStore(file);
+        store.load(capacity);
+        return store;
+    }
+
+    /**
+     * Open an existing store for reading, whatever its capacity
+     *
+     * @param file The store file
+     * @return The opened store
+     */
+    public static TimeSeriesStore openExisting(Path file) throws IOException {
+        TimeSeriesStore store = new TimeSeriesStore(file);
+        ByteBuffer header = readHeader(file);
+        int capacity = header.getInt(OFFSET_CAPACITY);
+        if (!isValid(header, Files.size(file), capacity)) {
+            throw new IOException("Not a statistics file: " + file);
+        }
+        store.map();
+        store.capacity = capacity;
+        store.readKeys();
+        return store;
+    }
+
+    private void load(int requestedCapacity) throws IOException {
+        if (Files.exists(file) && Files.size(file) >= HEADER_SIZE) {
+            // Checked without mapping the file, since a mapped file can't be moved on Windows
+            // until the mapping is garbage collected
+            if (isValid(readHeader(file), Files.size(file), requestedCapacity)) {
+                map();
+                capacity = requestedCapacity;
+                readKeys();
+                return;
+            }
+            // Keep the old history next to the new file instead of throwing it away
+            Path previous = file.resolveSibling(file.getFileName() + ".old");
+            Files.move(file, previous, StandardCopyOption.REPLACE_EXISTING);
+            LOGGER.warn("Statistics file {} has a different layout, moved it to {}", file.toAbsolutePath(), previous.getFileName());
+        }
+        create(requestedCapacity);
+        map();
+        capacity = requestedCapacity;
+    }
+
+    private static ByteBuffer readHeader(Path file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (header.hasRemaining()) {
+                if (in.read(header) < 0) {
+                    break;
+                }
+            }
+        }
+        return header;
+    }
+
+    private static boolean isValid(ByteBuffer header, long size, int expectedCapacity) {
+        return !header.hasRemaining()
+                && header.getInt(OFFSET_MAGIC) == MAGIC
+                && header.getInt(OFFSET_VERSION) == FORMAT_VERSION
+                && header.getInt(OFFSET_CAPACITY) == expectedCapacity
+                && expectedCapacity > 0
+                && size == fileSize(expectedCapacity);
+    }
+
+    private static long fileSize(int capacity) {
+        long size = HEADER_SIZE + (long) capacity * KEY_SIZE;
+        for (Tier tier : Tier.values()) {
+            size += (long) tier.rows * rowSize(capacity);
+        }
+        return size;
+    }
+
+    private static int rowSize(int capacity) {
+        return 8 + capacity * 8;
+    }
+
+    private void create(int capacity) throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        try (FileChannel created = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer header = created.map(FileChannel.MapMode.READ_WRITE, 0, fileSize(capacity));
+            header.putInt(OFFSET_MAGIC, MAGIC);
+            header.putInt(OFFSET_VERSION, FORMAT_VERSION);
+            header.putInt(OFFSET_CAPACITY, capacity);
+            header.putInt(OFFSET_COUNT, 0);
+            header.force();
+        }
+    }
+
+    private void map() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+    }
+
+    private void readKeys() {
+        int count = Math.min(buffer.getInt(OFFSET_COUNT), capacity);
+        for (int i = 0; i < count; i++) {
+            int offset = HEADER_SIZE + i * KEY_SIZE;
+            byte[] bytes = new byte[Math.min(buffer.getShort(offset), MAX_KEY_BYTES)];
+            buffer.get(offset + 2, bytes);
+            String key = new String(bytes, StandardCharsets.UTF_8);
+            keys.add(key);
+            slots.put(key, i);
+        }
+    }
+
+    /**
+     * Find the series of a key, adding it if there is room or a series that went idle can be
+     * taken over
+     *
+     * @param key The series key, cut to 126 UTF-8 bytes
+     * @return The slot of the series, or -1 if the store is full
+     */
+    public synchronized int slot(String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        while (bytes.length > MAX_KEY_BYTES) {
+            // Cut whole characters, so the key stays valid UTF-8
+            key = key.substring(0, key.length() - 1);
+            bytes = key.getBytes(StandardCharsets.UTF_8);
+        }
+        Integer existing = slots.get(key);
+        if (existing != null) {
+            issued.set(existing);
+            return existing;
+        }
+        if (buffer == null) {
+            return -1;
+        }
+        int slot;
+        if (keys.size() < capacity) {
+            slot = keys.size();
+            keys.add(key);
+        } else {
+            slot = idleSlot();
+            if (slot < 0) {
+                return -1;
+            }
+            slots.remove(keys.get(slot));
+            keys.set(slot, key);
+            clearCounts(slot);
+        }
+        int offset = HEADER_SIZE + slot * KEY_SIZE;
+        buffer.putShort(offset, (short) bytes.length);
+        buffer.put(offset + 2, bytes);
+        slots.put(key, slot);
+        buffer.putInt(OFFSET_COUNT, keys.size());
+        issued.set(slot);
+        return slot;
+    }
+
+    /**
+     * @return A slot not handed out since the store was opened that has no counts in the day tier, or -1
+     */
+    private int idleSlot() {
+        int base = tierOffset(Tier.DAY);
+        for (int slot = issued.nextClearBit(0); slot < capacity; slot = issued.nextClearBit(slot + 1)) {
+            boolean idle = true;
+            for (int row = 0; row < Tier.DAY.rows && idle; row++) {
+                idle = buffer.getLong(base + row * rowSize(capacity) + 8 + slot * 8) == 0;
+            }
+            if (idle) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Clear the counts of a slot in every tier, so a series taking it over starts empty
+     */
+    private void clearCounts(int slot) {
+        for (Tier tier : Tier.values()) {
+            int base = tierOffset(tier);
+            for (int row = 0; row < tier.rows; row++) {
+                buffer.putLong(base + row * rowSize(capacity) + 8 + slot * 8, 0);
+            }
+        }
+    }
+
+    /**
+     * Add the counts of one minute to every tier
+     *
+     * @param epochMinute The minute the counts belong to, in minutes since the epoch
+     * @param counts The counts, indexed by slot
+     */
+    public synchronized void add(long epochMinute, long[] counts) {
+        if (buffer == null) {
+            return;
+        }
+        for (Tier tier : Tier.values()) {
+            int offset = rowOffset(tier, epochMinute / tier.minutesPerBucket);
+            int length = Math.min(counts.length, capacity);
+            for (int slot = 0; slot < length; slot++) {
+                if (counts[slot] != 0) {
+                    int position = offset + 8 + slot * 8;
+                    buffer.putLong(position, buffer.getLong(position) + counts[slot]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The offset of the row for a bucket, cleared first if it still holds an older bucket
+     */
+    private int rowOffset(Tier tier, long bucket) {
+        int offset = tierOffset(tier) + (int) Math.floorMod(bucket, (long) tier.rows) * rowSize(capacity);
+        // Bucket numbers are stored plus one, so 0 marks a row that was never written
+        if (buffer.getLong(offset) != bucket + 1) {
+            for (int i = 0; i < rowSize(capacity); i += 8) {
+                buffer.putLong(offset + i, 0);
+            }
+            buffer.putLong(offset, bucket + 1);
+        }
+        return offset;
+    }
+
+    private int tierOffset(Tier tier) {
+        long offset = HEADER_SIZE + (long) capacity * KEY_SIZE;
+        for (Tier before : Tier.values()) {
+            if (before == tier) {
+                break;
+            }
+            offset += (long) before.rows * rowSize(capacity);
+        }
+        return (int) offset;
+    }
+
+    /**
+     * @return The series keys, in slot order
+     */
+    public synchronized List<String> getKeys() {
+        return new ArrayList<>(keys);
+    }
+
+    /**
+     * Read the rows of a tier, oldest first
+     *
+     * @param tier The tier
+     * @return The rows that hold data
+     */
+    public synchronized List<Row> read(Tier tier) {
+        List<Row> rows = new ArrayList<>();
+        if (buffer == null) {
+            return rows;
+        }
+        int base = tierOffset(tier);
+        for (int i = 0; i < tier.rows; i++) {
+            int offset = base + i * rowSize(capacity);
+            long stored = buffer.getLong(offset);
+            if (stored == 0) {
+                continue;
+            }
+            long[] counts = new long[keys.size()];
+            for (int slot = 0; slot < counts.length; slot++) {
+                counts[slot] = buffer.getLong(offset + 8 + slot * 8);
+            }
+            rows.add(new Row((stored - 1) * tier.minutesPerBucket * 60_000L, counts));
+        }
+        rows.sort((a, b) -> Long.compare(a.time(), b.time()));
+        return rows;
+    }
+
+    /**
+     * The counts of one bucket
+     *
+     * @param time The start of the bucket in epoch milliseconds
+     * @param counts The counts, indexed by slot
+     */
+    public record Row(long time, long[] counts) {
+    }
+
+    public synchronized void force() {
+        if (buffer != null) {
+            buffer.force();
+        }
+    }
+
+    public synchronized void close() {
+        if (buffer != null) {
+            buffer.force();
+        }
+        buffer = null;
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Failed to close statistics file {}", file.toAbsolutePath(), e);
+        }
+        channel = null;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+}
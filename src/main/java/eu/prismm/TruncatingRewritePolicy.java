@@ -0,0 +1,258 @@
+package eu.prismm;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.rewrite.RewritePolicy;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.ReusableMessage;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.StringBuilderFormattable;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shortens oversized messages, such as NBT, registry or recipe dumps logged on one line,
+ * after SpamFilter has let them through.
+ *
+ * A message longer than the limit of its logger or rule first has its whitespace runs and
+ * repeated runs (like "0,0,0,0" or the same JSON object over and over) collapsed. If it is
+ * still too long, the middle is replaced with the number of bytes left out.
+ *
+ * Messages within their limit are returned as the very same event. Garbage-free messages are
+ * measured by formatting them into a reused per-thread buffer, so nothing is copied for them.
+ */
+public final class TruncatingRewritePolicy implements RewritePolicy {
+    private static final int MAX_RUN_UNIT = 64;
+    private static final int MIN_RUN_REPEATS = 3;
+    // A collapsed run must save more than its marker costs
+    private static final int MIN_RUN_SAVING = 24;
+    private static final int NO_LIMIT = 0;
+
+    private final int maxLength;
+    private final boolean collapseRuns;
+    // Logger prefixes with their own limit, longest prefix first
+    private final String[] loggerPrefixes;
+    private final int[] loggerLimits;
+    private final FilterRules patternRules;
+    private final int[] patternLimits;
+    // The smallest non-zero limit of any pattern
+    private final int smallestPatternLimit;
+    // Only created when there are logger limits
+    private final BoundedCache<String, Integer> loggerLimitCache;
+    private final ThreadLocal<StringBuilder> formatBuffer = ThreadLocal.withInitial(() -> new StringBuilder(1024));
+    private final ThreadLocal<StringBuilder> collapseBuffer = ThreadLocal.withInitial(() -> new StringBuilder(1024));
+
+    public TruncatingRewritePolicy(FilterConfig.RewriteSettings settings) {
+        this.maxLength = Math.max(0, settings.getMaxLength());
+        this.collapseRuns = settings.isCollapseRuns();
+
+        List<Map.Entry<String, Integer>> loggers = new ArrayList<>(settings.getLoggers().entrySet());
+        loggers.sort(Comparator.comparingInt((Map.Entry<String, Integer> entry) -> entry.getKey().length()).reversed());
+        this.loggerPrefixes = new String[loggers.size()];
+        this.loggerLimits = new int[loggers.size()];
+        for (int i = 0; i < loggers.size(); i++) {
+            loggerPrefixes[i] = loggers.get(i).getKey();
+            loggerLimits[i] = Math.max(0, loggers.get(i).getValue());
+        }
+        this.loggerLimitCache = loggerPrefixes.length > 0
+                ? CacheBudget.global().newCache("rewriteLimits", 10, (name, limit) -> CacheBudget.stringBytes(name))
+                : null;
+
+        List<String> patterns = new ArrayList<>(settings.getPatterns().keySet());
+        this.patternRules = FilterRules.fromSources(patterns, null);
+        this.patternLimits = new int[patterns.size()];
+        int smallest = Integer.MAX_VALUE;
+        for (int i = 0; i < patterns.size(); i++) {
+            patternLimits[i] = Math.max(0, settings.getPatterns().get(patterns.get(i)));
+            if (patternLimits[i] != NO_LIMIT) {
+                smallest = Math.min(smallest, patternLimits[i]);
+            }
+        }
+        this.smallestPatternLimit = smallest;
+    }
+
+    @Override
+    public LogEvent rewrite(LogEvent source) {
+        try {
+            Message message = source.getMessage();
+            if (message == null) {
+                return source;
+            }
+            CharSequence text;
+            if (message instanceof ReusableMessage && message instanceof StringBuilderFormattable formattable) {
+                StringBuilder buffer = formatBuffer.get();
+                buffer.setLength(0);
+                formattable.formatTo(buffer);
+                text = buffer;
+            } else {
+                // Cached by most message types, so the appenders don't format it again
+                text = message.getFormattedMessage();
+            }
+            if (text == null) {
+                return source;
+            }
+
+            int limit = limitFor(source.getLoggerName(), text);
+            if (limit == NO_LIMIT || text.length() <= limit) {
+                return source;
+            }
+            return new Log4jLogEvent.Builder(source)
+                    .setMessage(new SimpleMessage(shorten(text, limit)))
+                    .build();
+        } catch (Exception e) {
+            // Never lose a message because it couldn't be shortened
+            System.err.println("Error in TruncatingRewritePolicy: " + e.getMessage());
+            return source;
+        }
+    }
+
+    /**
+     * @return The length limit for a message: its rule's, else its logger's, else the global one
+     */
+    private int limitFor(String loggerName, CharSequence text) {
+        int limit = loggerLimit(loggerName);
+        // Rules only matter for messages over some limit, so most messages never run them
+        int threshold = Math.min(limit == NO_LIMIT ? Integer.MAX_VALUE : limit, smallestPatternLimit);
+        if (patternLimits.length > 0 && text.length() > threshold) {
+            int rule = patternRules.match(null, text.toString());
+            if (rule >= 0) {
+                return patternLimits[rule];
+            }
+        }
+        return limit;
+    }
+
+    private int loggerLimit(String loggerName) {
+        if (loggerName == null || loggerPrefixes.length == 0) {
+            return maxLength;
+        }
+        Integer cached = loggerLimitCache.get(loggerName);
+        if (cached != null) {
+            return cached;
+        }
+        int limit = maxLength;
+        for (int i = 0; i < loggerPrefixes.length; i++) {
+            String prefix = loggerPrefixes[i];
+            if (loggerName.startsWith(prefix)
+                    && (loggerName.length() == prefix.length() || loggerName.charAt(prefix.length()) == '.')) {
+                limit = loggerLimits[i];
+                break;
+            }
+        }
+        loggerLimitCache.put(loggerName, limit);
+        return limit;
+    }
+
+    /**
+     * Collapse runs and then elide the middle until the text fits
+     *
+     * @param text The oversized message
+     * @param limit The maximum length to keep, not counting the elision marker
+     * @return The shortened message
+     */
+    String shorten(CharSequence text, int limit) {
+        CharSequence working = text;
+        if (collapseRuns) {
+            StringBuilder collapsed = collapseBuffer.get();
+            collapsed.setLength(0);
+            collapse(text, collapsed);
+            if (collapsed.length() <= limit) {
+                return collapsed.toString();
+            }
+            working = collapsed;
+        }
+
+        int head = limit / 2;
+        int tail = limit - head;
+        // Don't cut a surrogate pair in half
+        if (head > 0 && Character.isHighSurrogate(working.charAt(head - 1))) {
+            head--;
+        }
+        int tailStart = working.length() - tail;
+        if (tailStart < working.length() && Character.isLowSurrogate(working.charAt(tailStart))) {
+            tailStart++;
+        }
+
+        StringBuilder result = new StringBuilder(limit + 48);
+        result.append(working, 0, head);
+        result.append(" ... [").append(utf8Length(working, head, tailStart)).append(" bytes elided] ... ");
+        result.append(working, tailStart, working.length());
+        return result.toString();
+    }
+
+    /**
+     * Copy text to out with whitespace runs reduced to one character and repeated runs
+     * reduced to one copy and a count
+     */
+    static void collapse(CharSequence text, StringBuilder out) {
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                int end = i;
+                boolean newline = false;
+                while (end < length && Character.isWhitespace(text.charAt(end))) {
+                    newline |= text.charAt(end) == '\n';
+                    end++;
+                }
+                out.append(end - i == 1 ? c : newline ? '\n' : ' ');
+                i = end;
+                continue;
+            }
+
+            int bestUnit = 0;
+            int bestRepeats = 0;
+            for (int unit = 1; unit <= MAX_RUN_UNIT && i + unit * MIN_RUN_REPEATS <= length; unit++) {
+                if (text.charAt(i + unit) != c) {
+                    continue;
+                }
+                int repeats = 1;
+                while (i + (repeats + 1) * unit <= length && regionMatches(text, i, i + repeats * unit, unit)) {
+                    repeats++;
+                }
+                if (repeats >= MIN_RUN_REPEATS && (long) (repeats - 1) * unit > (long) Math.max(0, bestRepeats - 1) * bestUnit) {
+                    bestUnit = unit;
+                    bestRepeats = repeats;
+                }
+            }
+            if (bestUnit > 0 && (bestRepeats - 1) * bestUnit > MIN_RUN_SAVING) {
+                out.append(text, i, i + bestUnit).append("[repeated ").append(bestRepeats).append(" times]");
+                i += bestUnit * bestRepeats;
+            } else {
+                out.append(c);
+                i++;
+            }
+        }
+    }
+
+    private static boolean regionMatches(CharSequence text, int first, int second, int length) {
+        for (int k = 0; k < length; k++) {
+            if (text.charAt(first + k) != text.charAt(second + k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long utf8Length(CharSequence text, int start, int end) {
+        long bytes = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,85 @@
+package eu.prismm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that caches of one name share their budget and that replaced values are weighed again.
+ */
+class CacheBudgetTest {
+    private static final int ENTRY = BoundedCache.ENTRY_OVERHEAD;
+
+    @Test
+    void cachesOfOneNameSplitItsShare() {
+        CacheBudget budget = new CacheBudget(100_000);
+        BoundedCache<String, String> first = budget.newCache("shared", 10, (k, v) -> v.length());
+        assertEquals(10_000, first.getMaxBytes());
+
+        BoundedCache<String, String> second = budget.newCache("shared", 10, (k, v) -> v.length());
+        assertEquals(5_000, first.getMaxBytes());
+        assertEquals(5_000, second.getMaxBytes());
+
+        budget.configure(200_000);
+        assertEquals(10_000, first.getMaxBytes());
+        assertEquals(10_000, second.getMaxBytes());
+
+        first.put("a", "x".repeat(100));
+        second.put("b", "x".repeat(200));
+        List<CacheBudgetMXBean.CacheStats> stats = budget.getCaches();
+        assertEquals(1, stats.size());
+        assertEquals(2, stats.get(0).getEntries());
+        assertEquals(2 * ENTRY + 300, stats.get(0).getEstimatedBytes());
+        assertEquals(20_000, stats.get(0).getMaxBytes());
+        assertEquals(2 * ENTRY + 300, budget.getEstimatedBytes());
+    }
+
+    @Test
+    @Timeout(20)
+    void collectedCachesGiveTheirShareBack() throws InterruptedException {
+        CacheBudget budget = new CacheBudget(100_000);
+        BoundedCache<String, String> kept = budget.newCache("shared", 10, (k, v) -> v.length());
+        budget.<String, String>newCache("shared", 10, (k, v) -> v.length());
+        assertEquals(5_000, kept.getMaxBytes());
+
+        while (kept.getMaxBytes() != 10_000) {
+            System.gc();
+            Thread.sleep(20);
+            budget.getEstimatedBytes();
+        }
+        assertEquals(1, budget.getCaches().size());
+    }
+
+    @Test
+    void replacedValuesAreWeighedAgain() {
+        CacheBudget budget = new CacheBudget(100_000);
+        BoundedCache<String, String> cache = budget.newCache("values", 10, (k, v) -> v.length());
+
+        cache.put("key", "x".repeat(10));
+        assertEquals(ENTRY + 10, cache.getEstimatedBytes());
+        cache.put("key", "x".repeat(1_000));
+        assertEquals(ENTRY + 1_000, cache.getEstimatedBytes());
+        cache.put("key", "x");
+        assertEquals(ENTRY + 1, cache.getEstimatedBytes());
+        assertEquals("x", cache.get("key"));
+    }
+
+    @Test
+    void growingValuesEvictOtherEntries() {
+        CacheBudget budget = new CacheBudget(100_000);
+        BoundedCache<String, String> cache = budget.newCache("values", 10, (k, v) -> v.length());
+        for (int i = 0; i < 20; i++) {
+            cache.put("key" + i, "x".repeat(100));
+        }
+        assertEquals(20 * (ENTRY + 100), cache.getEstimatedBytes());
+
+        for (int i = 0; i < 20; i++) {
+            cache.put("key" + i, "x".repeat(2_000));
+        }
+        assertTrue(cache.getEstimatedBytes() <= cache.getMaxBytes(), cache.getEstimatedBytes() + " > " + cache.getMaxBytes());
+    }
+}
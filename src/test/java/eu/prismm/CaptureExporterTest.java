@@ -0,0 +1,180 @@
+package eu.prismm;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs CaptureExporter against a collector stand-in listening on a local TCP or Unix domain socket.
+ */
+@Timeout(20)
+class CaptureExporterTest {
+    @TempDir
+    Path directory;
+
+    private final List<AutoCloseable> opened = new ArrayList<>();
+
+    @AfterEach
+    void closeAll() throws Exception {
+        for (AutoCloseable closeable : opened) {
+            closeable.close();
+        }
+    }
+
+    @Test
+    void newlineFramingSendsOneJsonObjectPerLine() throws Exception {
+        ServerSocketChannel server = listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        CaptureExporter exporter = start(server.getLocalAddress(), CaptureExporter.Framing.NEWLINE, 0, 16);
+
+        exporter.offer(capture("first", false));
+        exporter.offer(capture("second", true));
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                Channels.newInputStream(accept(server)), StandardCharsets.UTF_8));
+        JsonObject first = JsonParser.parseString(reader.readLine()).getAsJsonObject();
+        JsonObject second = JsonParser.parseString(reader.readLine()).getAsJsonObject();
+
+        assertEquals("first", first.get("message").getAsString());
+        assertEquals("TestSource", first.get("source").getAsString());
+        assertEquals(IllegalStateException.class.getName(), first.get("class").getAsString());
+        assertEquals("Runtime", first.get("category").getAsString());
+        assertTrue(first.get("trace").getAsString().contains("IllegalStateException"));
+        // Repeats only carry the fingerprint, not the trace
+        assertEquals("second", second.get("message").getAsString());
+        assertTrue(second.get("repeat").getAsBoolean());
+        assertFalse(second.has("trace"));
+    }
+
+    @Test
+    void lengthPrefixedFramingOverUnixSocket() throws Exception {
+        ServerSocketChannel server = listen(UnixDomainSocketAddress.of(directory.resolve("collector.sock")));
+        CaptureExporter exporter = start(server.getLocalAddress(), CaptureExporter.Framing.LENGTH_PREFIXED, 0, 16);
+
+        exporter.offer(capture("one", false));
+        exporter.offer(capture("two\nlines", false));
+
+        DataInputStream in = new DataInputStream(Channels.newInputStream(accept(server)));
+        assertEquals("one", readLengthPrefixed(in).get("message").getAsString());
+        assertEquals("two\nlines", readLengthPrefixed(in).get("message").getAsString());
+    }
+
+    @Test
+    void capturesWithinTheLingerTimeAreSentAsOneBatch() throws Exception {
+        ServerSocketChannel server = listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        CaptureExporter exporter = start(server.getLocalAddress(), CaptureExporter.Framing.NEWLINE, 1_000, 16);
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(exporter.offer(capture("batched " + i, false)));
+        }
+        Thread.sleep(200);
+        assertEquals(0, exporter.getSent(), "nothing is sent before the linger time has passed");
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                Channels.newInputStream(accept(server)), StandardCharsets.UTF_8));
+        for (int i = 0; i < 5; i++) {
+            assertEquals("batched " + i, JsonParser.parseString(reader.readLine()).getAsJsonObject().get("message").getAsString());
+        }
+        // The sent count is raised once for the whole batch, right after it was written
+        while (exporter.getSent() == 0) {
+            Thread.sleep(10);
+        }
+        assertEquals(5, exporter.getSent());
+    }
+
+    @Test
+    void capturesAreDroppedAndCountedWhenTheQueueIsFull() {
+        CaptureExporter exporter = new CaptureExporter(UnixDomainSocketAddress.of(directory.resolve("absent.sock")),
+                CaptureExporter.Framing.NEWLINE, 0, 2, throwable -> "Runtime");
+        opened.add(exporter::shutdown);
+
+        // Not started, so nothing takes captures off the queue
+        assertTrue(exporter.offer(capture("kept", false)));
+        assertTrue(exporter.offer(capture("kept", false)));
+        assertFalse(exporter.offer(capture("dropped", false)));
+        assertFalse(exporter.offer(capture("dropped", false)));
+        assertEquals(2, exporter.getDropped());
+    }
+
+    @Test
+    void reconnectsAfterTheCollectorRestarts() throws Exception {
+        UnixDomainSocketAddress address = UnixDomainSocketAddress.of(directory.resolve("restarting.sock"));
+        ServerSocketChannel server = listen(address);
+        CaptureExporter exporter = start(address, CaptureExporter.Framing.NEWLINE, 0, 64);
+
+        exporter.offer(capture("before", false));
+        SocketChannel connection = accept(server);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(connection), StandardCharsets.UTF_8));
+        assertEquals("before", JsonParser.parseString(reader.readLine()).getAsJsonObject().get("message").getAsString());
+
+        connection.close();
+        server.close();
+        Files.deleteIfExists(address.getPath());
+        // Fails on the closed connection and is kept until the exporter is connected again
+        exporter.offer(capture("after", false));
+        Thread.sleep(300);
+
+        ServerSocketChannel restarted = listen(address);
+        reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(accept(restarted)), StandardCharsets.UTF_8));
+        assertEquals("after", JsonParser.parseString(reader.readLine()).getAsJsonObject().get("message").getAsString());
+        assertEquals(2, exporter.getReconnects());
+        assertEquals(0, exporter.getDropped());
+    }
+
+    private ServerSocketChannel listen(SocketAddress address) throws IOException {
+        ServerSocketChannel server = address instanceof UnixDomainSocketAddress
+                ? ServerSocketChannel.open(StandardProtocolFamily.UNIX)
+                : ServerSocketChannel.open();
+        server.bind(address);
+        opened.add(server);
+        return server;
+    }
+
+    private SocketChannel accept(ServerSocketChannel server) throws IOException {
+        SocketChannel connection = server.accept();
+        opened.add(connection);
+        return connection;
+    }
+
+    private CaptureExporter start(SocketAddress address, CaptureExporter.Framing framing, long lingerMillis, int capacity) {
+        CaptureExporter exporter = new CaptureExporter(address, framing, lingerMillis, capacity, throwable -> "Runtime");
+        opened.add(exporter::shutdown);
+        exporter.start();
+        return exporter;
+    }
+
+    private static CaptureExporter.Capture capture(String message, boolean repeat) {
+        return new CaptureExporter.Capture(System.currentTimeMillis(), "TestSource", message,
+                new IllegalStateException("broken"), 0x1234L, repeat);
+    }
+
+    private static JsonObject readLengthPrefixed(DataInputStream in) throws IOException {
+        byte[] record = new byte[in.readInt()];
+        in.readFully(record);
+        return JsonParser.parseString(new String(record, StandardCharsets.UTF_8)).getAsJsonObject();
+    }
+}
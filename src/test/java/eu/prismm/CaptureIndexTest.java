@@ -0,0 +1,47 @@
+package eu.prismm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that the capture index stays readable after a crash tore its last term or record.
+ */
+class CaptureIndexTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void tornTermAndRecordAreDroppedOnOpen() throws Exception {
+        CaptureIndex index = CaptureIndex.open(directory);
+        index.add(1_000, "java.lang.IllegalStateException", "alpha", "Runtime", "a.B.run", "alpha/1.log");
+        index.close();
+
+        Path indexDirectory = directory.resolve(CaptureIndex.DIRECTORY);
+        Files.write(indexDirectory.resolve("terms.dat"), "java.io.Unfini".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+        Files.write(indexDirectory.resolve("captures.dat"), new byte[CaptureIndex.RECORD_SIZE / 2], StandardOpenOption.APPEND);
+
+        index = CaptureIndex.open(directory);
+        index.add(2_000, "java.io.IOException", "beta", "IO", "c.D.read", "beta/1.log");
+        index.add(3_000, "java.lang.IllegalStateException", "beta", "Runtime", "a.B.run", "beta/2.log");
+        index.close();
+
+        CaptureIndex.Reader reader = CaptureIndex.read(directory);
+        List<CaptureIndex.Hit> io = reader.query(new CaptureIndex.Query().exceptionClass("java.io.IOException"), 10);
+        assertEquals(1, io.size());
+        assertEquals("beta", io.get(0).source());
+        assertEquals("IO", io.get(0).category());
+        assertEquals("c.D.read", io.get(0).topFrame());
+        assertEquals("beta/1.log", io.get(0).path());
+        assertEquals(2, reader.count(new CaptureIndex.Query().exceptionClass("java.lang.IllegalStateException")));
+        assertEquals(3, reader.count(new CaptureIndex.Query()));
+    }
+}
@@ -0,0 +1,39 @@
+package eu.prismm;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.DefaultConfiguration;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the layout keeps formatting correctly once a huge message made it drop its grown buffers.
+ */
+class ColorizedLayoutTest {
+    @Test
+    void formatsNormallyAfterAHugeMessage() throws Exception {
+        ColorizedLayout layout = ColorizedLayout.load(new DefaultConfiguration());
+        String huge = "dump ".repeat(400_000) + "é中";
+
+        String first = layout.toSerializable(event("before"));
+        String dumped = layout.toSerializable(event(huge));
+        String after = layout.toSerializable(event("after"));
+
+        assertTrue(first.contains("before"));
+        assertTrue(dumped.contains(huge));
+        assertTrue(after.contains("after"));
+        assertFalse(after.contains("dump"));
+        assertTrue(after.length() < 1024);
+    }
+
+    private static Log4jLogEvent event(String message) {
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName("test")
+                .setLevel(Level.INFO)
+                .setMessage(new SimpleMessage(message))
+                .build();
+    }
+}
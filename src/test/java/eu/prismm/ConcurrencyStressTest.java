@@ -0,0 +1,375 @@
+package eu.prismm;
+
+import com.google.gson.JsonParser;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Stress test for the code that runs concurrently on every server thread: filtering while the
+ * rules are swapped, captures of many threads into the same source directories, and retention
+ * pruning those directories while they are written.
+ *
+ * Each test hammers the real classes from many threads and then asserts invariants that only
+ * hold if no thread saw a half-updated state: every verdict comes from one complete rule set,
+ * no exception escapes a filter, every capture that was not reported as dropped is on disk in
+ * one piece, and retention deletes exactly as many files as it should.
+ *
+ * The tests are tagged "stress" and only run with the stress profile, which runs them in
+ * target/stress, since captures go to "Console Errors" relative to the working directory.
+ * Some sources are made unwritable on purpose, which the exception logger reports.
+ *
+ * Usage: mvn -Pstress test [-Dstress.threads=8] [-Dstress.duration=10] [-Dstress.captures=2000]
+ *
+ * stress.duration is the length of the reload test in seconds, stress.captures the number of
+ * exceptions each thread logs in the capture tests.
+ */
+@Tag("stress")
+class ConcurrencyStressTest {
+    private static final Path ERROR_DIRECTORY = Path.of("Console Errors");
+    private static final String[] SOURCES = {"alpha", "beta", "gamma", "delta"};
+    // Made unwritable, so their captures fall back to the shared error directory
+    private static final String[] BLOCKED_SOURCES = {"blocked0", "blocked1", "blocked2", "blocked3"};
+
+    private final int threads = Integer.getInteger("stress.threads", 8);
+    private final long durationNanos = TimeUnit.SECONDS.toNanos(Integer.getInteger("stress.duration", 10));
+    private final int capturesPerThread = Integer.getInteger("stress.captures", 2000);
+    private final List<String> failures = new ArrayList<>();
+
+    @BeforeAll
+    static void quietExceptionLogger() {
+        assertFalse(Files.exists(ERROR_DIRECTORY),
+                "\"" + ERROR_DIRECTORY.toAbsolutePath() + "\" already exists, delete it or run from an empty directory");
+        // The unwritable sources would otherwise report every capture on the console
+        Configurator.setLevel(NoConsoleSpam.MOD_ID, Level.OFF);
+    }
+
+    @AfterEach
+    void assertNoFailures() {
+        assertTrue(failures.isEmpty(), failures.size() + " check(s) failed:\n  " + String.join("\n  ", failures));
+    }
+
+    /**
+     * Filter from many threads while another thread keeps swapping between two rule sets that
+     * agree on every verdict but number their patterns differently. A verdict or a rule
+     * description that mixes both sets shows up as a wrong result.
+     */
+    @Test
+    void reload() throws InterruptedException {
+        FilterRules forward = FilterRules.fromSources(List.of("^alpha .*", "^beta .*"), List.of("ignored"));
+        FilterRules reversed = FilterRules.fromSources(List.of("^beta .*", "^alpha .*"), List.of("ignored"));
+        AtomicLong torn = new AtomicLong();
+        AtomicLong escaped = new AtomicLong();
+        AtomicLong events = new AtomicLong();
+        AtomicLong reloads = new AtomicLong();
+
+        FilterObserver observer = new FilterObserver() {
+            @Override
+            public void observe(LogEvent event, boolean suppressed) {
+            }
+
+            @Override
+            public void observe(LogEvent event, boolean suppressed, String rule) {
+                String message = event.getMessage().getFormattedMessage();
+                String expected = event.getLoggerName().equals("ignored") ? "ignoredLoggers"
+                        : message.startsWith("alpha") ? "^alpha .*"
+                        : message.startsWith("beta") ? "^beta .*"
+                        : null;
+                if (suppressed != (expected != null) || (expected != null && !expected.equals(rule))) {
+                    torn.incrementAndGet();
+                }
+            }
+        };
+        SpamFilter filter = new SpamFilter(forward, null, null, List.of(observer));
+        PreEnqueueFilter preEnqueue = new PreEnqueueFilter(forward);
+
+        PrintStream originalErr = System.err;
+        CountingPrintStream err = new CountingPrintStream(originalErr);
+        System.setErr(err);
+        try {
+            long end = System.nanoTime() + durationNanos;
+            Thread reloader = new Thread(() -> {
+                for (long i = 0; System.nanoTime() < end; i++) {
+                    // Now and then a freshly compiled set, so publishing new objects is covered too
+                    FilterRules next = i % 64 == 0
+                            ? FilterRules.fromSources(i % 128 == 0 ? List.of("^alpha .*", "^beta .*") : List.of("^beta .*", "^alpha .*"),
+                                    List.of("ignored"))
+                            : (i % 2 == 0 ? forward : reversed);
+                    filter.setRules(next);
+                    preEnqueue.setRules(next);
+                    reloads.incrementAndGet();
+                }
+            }, "Stress reloader");
+            runWorkers(index -> {
+                String[] messages = {"alpha " + index, "beta " + index, "gamma " + index};
+                for (long i = 0; System.nanoTime() < end; i++) {
+                    String loggerName = i % 7 == 0 ? "ignored" : "stress." + index;
+                    String message = messages[(int) (i % messages.length)];
+                    LogEvent event = Log4jLogEvent.newBuilder()
+                            .setLoggerName(loggerName)
+                            .setLevel(Level.INFO)
+                            .setMessage(new SimpleMessage(message))
+                            .build();
+                    try {
+                        Filter.Result result = filter.filter(event);
+                        Filter.Result early = preEnqueue.filter(event);
+                        boolean ignored = loggerName.equals("ignored");
+                        if ((result == Filter.Result.DENY) != (ignored || !message.startsWith("gamma"))
+                                || (early == Filter.Result.DENY) != ignored) {
+                            torn.incrementAndGet();
+                        }
+                    } catch (Throwable t) {
+                        escaped.incrementAndGet();
+                    }
+                    events.incrementAndGet();
+                }
+            }, reloader);
+        } finally {
+            System.setErr(originalErr);
+        }
+
+        System.out.printf("reload: %,d events during %,d rule swaps, %d torn verdicts, %d escaped exceptions, %d filter errors%n",
+                events.get(), reloads.get(), torn.get(), escaped.get(), err.lines.get());
+        if (torn.get() > 0) {
+            fail("reload: " + torn.get() + " verdicts mixed two rule sets");
+        }
+        if (escaped.get() > 0 || err.lines.get() > 0) {
+            fail("reload: " + (escaped.get() + err.lines.get()) + " exceptions were thrown while filtering");
+        }
+    }
+
+    /**
+     * Capture from many threads as JSON lines, into per-source directories and, for the blocked
+     * sources, into the shared error directory, then count and parse every line written.
+     */
+    @Test
+    void captures() throws Exception {
+        FilterConfig.ExceptionSettings settings = captureSettings("jsonl");
+        settings.setMaxLogSize(Long.MAX_VALUE);
+        ExceptionLogger exceptionLogger = startExceptionLogger(settings);
+        long submitted = logCaptures(exceptionLogger);
+        exceptionLogger.shutdown();
+
+        long lines = 0;
+        long broken = 0;
+        for (Path file : captureFiles(path -> path.getFileName().toString().startsWith(JsonLinesCaptureWriter.FILENAME))) {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                lines++;
+                try {
+                    JsonParser.parseString(line).getAsJsonObject();
+                } catch (RuntimeException e) {
+                    broken++;
+                }
+            }
+        }
+        long expected = submitted - exceptionLogger.getDroppedCaptures();
+        System.out.printf("captures: %,d captures, %,d dropped, %,d lines written, %d broken%n",
+                submitted, exceptionLogger.getDroppedCaptures(), lines, broken);
+        if (lines != expected) {
+            fail("captures: expected " + expected + " lines but found " + lines);
+        }
+        if (broken > 0) {
+            fail("captures: " + broken + " lines are not valid JSON");
+        }
+        deleteErrorDirectory();
+    }
+
+    /**
+     * Capture one file per exception with a small retention limit, so every write also prunes
+     * its directory, and check that each directory ends up with exactly the limit, that the
+     * files left are complete and that the emergency file survived.
+     */
+    @Test
+    void retention() throws Exception {
+        int maxBackupIndex = 5;
+        FilterConfig.ExceptionSettings settings = captureSettings("text");
+        settings.setMaxBackupIndex(maxBackupIndex);
+        ExceptionLogger exceptionLogger = startExceptionLogger(settings);
+        exceptionLogger.captureEmergency("stress", "main", new OutOfMemoryError("Emergency capture written before the run"));
+        long submitted = logCaptures(exceptionLogger);
+        exceptionLogger.shutdown();
+
+        List<Path> directories = new ArrayList<>();
+        directories.add(ERROR_DIRECTORY);
+        for (String source : SOURCES) {
+            directories.add(ERROR_DIRECTORY.resolve(source));
+        }
+        for (Path directory : directories) {
+            List<Path> files;
+            try (Stream<Path> list = Files.list(directory)) {
+                files = list.filter(file -> file.getFileName().toString().endsWith(".log")
+                        && !file.getFileName().toString().equals(EmergencyCapture.FILENAME)).toList();
+            }
+            if (files.size() != maxBackupIndex) {
+                fail("retention: " + directory + " holds " + files.size() + " captures instead of " + maxBackupIndex);
+            }
+            for (Path file : files) {
+                String content = Files.readString(file, StandardCharsets.UTF_8);
+                if (!content.startsWith("Date: ") || !content.contains("StackTrace:")) {
+                    fail("retention: " + file + " is incomplete");
+                }
+            }
+        }
+        if (!Files.exists(ERROR_DIRECTORY.resolve(EmergencyCapture.FILENAME))) {
+            fail("retention: the emergency capture file was deleted");
+        }
+
+        // Every capture written is indexed, even once retention has deleted its file
+        long indexed = CaptureIndex.read(ERROR_DIRECTORY).count(new CaptureIndex.Query());
+        long expected = submitted - exceptionLogger.getDroppedCaptures();
+        System.out.printf("retention: %,d captures, %,d dropped, %,d indexed%n",
+                submitted, exceptionLogger.getDroppedCaptures(), indexed);
+        if (indexed != expected) {
+            fail("retention: expected " + expected + " indexed captures but found " + indexed);
+        }
+        deleteErrorDirectory();
+    }
+
+    private static FilterConfig.ExceptionSettings captureSettings(String format) {
+        FilterConfig.ExceptionSettings settings = new FilterConfig.ExceptionSettings();
+        settings.setCaptureExceptions(true);
+        settings.setOrganizeBySource(true);
+        settings.setCaptureFormat(format);
+        settings.setMaxBackupIndex(Integer.MAX_VALUE);
+        settings.setWriterThreads(4);
+        // Every capture is written in full, so each one can be counted on disk
+        settings.setDeduplicateAcrossRestarts(false);
+        settings.setIndexCaptures(true);
+        return settings;
+    }
+
+    private static ExceptionLogger startExceptionLogger(FilterConfig.ExceptionSettings settings) throws IOException {
+        ExceptionLogger exceptionLogger = new ExceptionLogger(settings);
+        if (!exceptionLogger.isInitialized()) {
+            throw new IOException("The exception logger could not be initialized");
+        }
+        for (String source : BLOCKED_SOURCES) {
+            // A file where the source directory should be
+            Files.writeString(ERROR_DIRECTORY.resolve(source), "");
+        }
+        return exceptionLogger;
+    }
+
+    /**
+     * @return The number of exceptions logged
+     */
+    private long logCaptures(ExceptionLogger exceptionLogger) throws InterruptedException {
+        String[] sources = new String[SOURCES.length + BLOCKED_SOURCES.length];
+        System.arraycopy(SOURCES, 0, sources, 0, SOURCES.length);
+        System.arraycopy(BLOCKED_SOURCES, 0, sources, SOURCES.length, BLOCKED_SOURCES.length);
+        AtomicLong submitted = new AtomicLong();
+        runWorkers(index -> {
+            for (int i = 0; i < capturesPerThread; i++) {
+                String source = sources[(index + i) % sources.length];
+                IllegalStateException exception = new IllegalStateException("Capture " + i + " of thread " + index);
+                exception.setStackTrace(new StackTraceElement[]{
+                        new StackTraceElement("com.example." + source + ".Worker", "run", "Worker.java", 10 + i % 50)
+                });
+                exceptionLogger.logException("stress." + source, "ERROR", Thread.currentThread().getName(),
+                        "Capture " + i, exception);
+                submitted.incrementAndGet();
+            }
+        }, null);
+        return submitted.get();
+    }
+
+    /**
+     * Run the body on every worker thread, all released at once, and wait for them to finish
+     *
+     * @param body The work, given the worker index
+     * @param companion Another thread started with the workers, may be null
+     */
+    private void runWorkers(WorkerBody body, Thread companion) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            int index = i;
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                    body.run(index);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Throwable t) {
+                    fail("worker " + index + " died: " + t);
+                }
+            }, "Stress worker " + i);
+            workers.add(worker);
+            worker.start();
+        }
+        if (companion != null) {
+            companion.start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (companion != null) {
+            companion.join();
+        }
+    }
+
+    private interface WorkerBody {
+        void run(int index) throws Exception;
+    }
+
+    private static List<Path> captureFiles(Predicate<Path> filter) throws IOException {
+        try (Stream<Path> files = Files.walk(ERROR_DIRECTORY)) {
+            return files.filter(Files::isRegularFile).filter(filter).toList();
+        }
+    }
+
+    private static void deleteErrorDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(ERROR_DIRECTORY)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private synchronized void fail(String failure) {
+        failures.add(failure);
+    }
+
+    /**
+     * Passes everything through and counts the lines printed, which the filters only do when
+     * they caught an exception
+     */
+    private static class CountingPrintStream extends PrintStream {
+        final AtomicLong lines = new AtomicLong();
+
+        CountingPrintStream(PrintStream target) {
+            super(target, true);
+        }
+
+        @Override
+        public void println(String line) {
+            lines.incrementAndGet();
+            super.println(line);
+        }
+    }
+}
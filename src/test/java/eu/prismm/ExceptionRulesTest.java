@@ -0,0 +1,43 @@
+package eu.prismm;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks how exception rules match on type, cause type and top frame package.
+ */
+class ExceptionRulesTest {
+    @Test
+    void matchesTypeCauseAndTopFrame() {
+        ExceptionRules rules = new ExceptionRules(List.of(
+                new ExceptionRules.Rule("java.lang.IllegalStateException", null, "com.example.noisy"),
+                new ExceptionRules.Rule(null, "java.io.IOException", null),
+                new ExceptionRules.Rule("java.lang.RuntimeException", null, null)));
+
+        assertEquals(0, rules.match(thrownAt(new IllegalStateException(), "com.example.noisy.Worker")));
+        assertEquals(2, rules.match(thrownAt(new IllegalStateException(), "com.example.quiet.Worker")));
+        assertEquals(1, rules.match(new UncheckedIOException(new IOException())));
+        assertEquals(ExceptionRules.NO_MATCH, rules.match(new Exception()));
+        assertEquals(ExceptionRules.NO_MATCH, rules.match(null));
+    }
+
+    @Test
+    void rulesWithoutTopFrameIgnoreTheStackTrace() {
+        ExceptionRules rules = new ExceptionRules(List.of(new ExceptionRules.Rule("java.lang.Error", null, null)));
+        Error error = new LinkageError();
+        error.setStackTrace(new StackTraceElement[0]);
+
+        assertEquals(0, rules.match(error));
+        assertEquals(ExceptionRules.NO_MATCH, rules.match(new RuntimeException()));
+    }
+
+    private static <T extends Throwable> T thrownAt(T throwable, String className) {
+        throwable.setStackTrace(new StackTraceElement[]{new StackTraceElement(className, "run", "Worker.java", 1)});
+        return throwable;
+    }
+}
@@ -0,0 +1,38 @@
+package eu.prismm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that urgent captures, those of Errors, are written ahead of the captures already queued.
+ */
+@Timeout(10)
+class ExceptionWriterPoolTest {
+    @Test
+    void urgentTasksRunAheadOfQueuedOnes() throws InterruptedException {
+        ExceptionWriterPool pool = new ExceptionWriterPool(1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        List<String> order = new CopyOnWriteArrayList<>();
+
+        pool.submit("source", shard -> {
+            try {
+                blocked.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        pool.submit("source", shard -> order.add("first"));
+        pool.submit("source", shard -> order.add("second"));
+        pool.submit("source", shard -> order.add("error"), true);
+        blocked.countDown();
+        pool.shutdown();
+
+        assertEquals(List.of("error", "first", "second"), order);
+    }
+}
@@ -0,0 +1,42 @@
+package eu.prismm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that counts without a series of their own land in "(other)" once the store is full.
+ */
+class FilterStatisticsTest {
+    // 2026-01-01 in minutes since the epoch
+    private static final long MINUTE = 29_453_760L;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void capturesBeyondTheCapacityAreCountedAsOther() throws Exception {
+        // The six fixed series and one more
+        TimeSeriesStore store = TimeSeriesStore.open(directory.resolve("statistics.bin"), 7);
+        FilterStatistics statistics = new FilterStatistics(store, 7);
+
+        statistics.recordCapture("alpha");
+        statistics.recordCapture("beta");
+        statistics.recordCapture("beta");
+        statistics.flush(MINUTE);
+        // Tried again after the flush, still without room
+        statistics.recordCapture("beta");
+        statistics.flush(MINUTE + 1);
+
+        List<String> keys = store.getKeys();
+        long[] counts = store.read(TimeSeriesStore.Tier.HOUR).get(0).counts();
+        assertEquals(7, keys.size());
+        assertEquals(1, counts[keys.indexOf("captures/source/alpha")]);
+        assertEquals(3, counts[keys.indexOf("captures/source/" + FilterStatistics.OTHER)]);
+        store.close();
+    }
+}
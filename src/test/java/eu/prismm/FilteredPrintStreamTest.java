@@ -0,0 +1,37 @@
+package eu.prismm;
+
+import org.apache.logging.log4j.Level;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that printed lines only meet the patterns that apply to INFO messages without a marker.
+ */
+class FilteredPrintStreamTest {
+    @Test
+    void linesAreMatchedAsInfo() {
+        FilterRules rules = FilterRules.fromSources(List.of("^debug .*", "^marked .*", "^info .*", "^any .*"), List.of())
+                .withPatternScopes(List.of(
+                        new FilterRules.Scope(List.of(Level.DEBUG), List.of()),
+                        new FilterRules.Scope(List.of(), List.of("NETWORK")),
+                        new FilterRules.Scope(List.of(Level.INFO), List.of()),
+                        FilterRules.Scope.ALL));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        FilteredPrintStream stream = new FilteredPrintStream(new PrintStream(bytes, true, StandardCharsets.UTF_8), rules, "STDOUT");
+
+        stream.println("debug 1");
+        stream.println("marked 1");
+        stream.println("info 1");
+        stream.println("any 1");
+        stream.close();
+
+        assertEquals("debug 1\nmarked 1\n", bytes.toString(StandardCharsets.UTF_8));
+        assertEquals(2, stream.getSuppressedLines());
+    }
+}
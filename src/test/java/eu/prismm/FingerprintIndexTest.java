@@ -0,0 +1,68 @@
+package eu.prismm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the fingerprint index follows renamed and deleted capture files, also across growing and reopening.
+ */
+class FingerprintIndexTest {
+    private static final long VERSION = 7;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void followsRenamedAndDeletedFiles() throws Exception {
+        FingerprintIndex index = FingerprintIndex.open(directory);
+        assertTrue(index.record(1, 0, VERSION));
+        assertTrue(index.record(2, 0, VERSION));
+        assertTrue(index.record(3, 0, VERSION));
+        index.setRepresentativeFile(1, "source/a.log");
+        index.setRepresentativeFile(2, "source/a.log");
+        index.setRepresentativeFile(3, "source/b.log");
+
+        assertEquals(2, index.moveRepresentativeFile("source/a.log", "source/a.1.log"));
+        assertEquals("source/a.1.log", index.getRepresentativeFile(1));
+        assertEquals("source/a.1.log", index.getRepresentativeFile(2));
+        assertEquals(0, index.moveRepresentativeFile("source/a.log", null));
+
+        // Pointed at another file after the map was built
+        index.setRepresentativeFile(2, "source/c.log");
+        assertEquals(1, index.moveRepresentativeFile("source/a.1.log", null));
+        assertEquals("", index.getRepresentativeFile(1));
+        assertEquals("source/c.log", index.getRepresentativeFile(2));
+        assertFalse(index.record(2, 1, VERSION));
+        // Its trace is gone, so the next occurrence is written in full again
+        assertTrue(index.record(1, 1, VERSION));
+        assertFalse(index.record(1, 2, VERSION));
+        index.close();
+    }
+
+    @Test
+    void followsFilesAfterGrowingAndReopening() throws Exception {
+        FingerprintIndex index = FingerprintIndex.open(directory);
+        index.record(1, 0, VERSION);
+        index.setRepresentativeFile(1, "first.log");
+        assertEquals(0, index.moveRepresentativeFile("absent.log", null));
+        for (long fingerprint = 2; fingerprint <= 20_000; fingerprint++) {
+            index.record(fingerprint, 0, VERSION);
+            index.setRepresentativeFile(fingerprint, "bulk.log");
+        }
+        assertEquals(1, index.moveRepresentativeFile("first.log", "renamed.log"));
+        index.close();
+
+        index = FingerprintIndex.open(directory);
+        assertEquals("renamed.log", index.getRepresentativeFile(1));
+        assertEquals(19_999, index.moveRepresentativeFile("bulk.log", null));
+        assertEquals(1, index.moveRepresentativeFile("renamed.log", null));
+        assertTrue(index.record(20_000, 1, VERSION));
+        index.close();
+    }
+}
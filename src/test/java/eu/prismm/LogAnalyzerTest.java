@@ -0,0 +1,67 @@
+package eu.prismm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks the offline analyzer's config loading and how it joins the tallies of consecutive chunks.
+ */
+class LogAnalyzerTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void missingOrBrokenConfigFails() throws IOException {
+        assertThrows(IOException.class, () -> FilterConfig.loadStrict(directory.resolve("absent.json").toFile()));
+
+        Path broken = directory.resolve("broken.json");
+        Files.writeString(broken, "{\"spamPatterns\": [");
+        assertThrows(IOException.class, () -> FilterConfig.loadStrict(broken.toFile()));
+
+        Path empty = directory.resolve("empty.json");
+        Files.writeString(empty, "");
+        assertThrows(IOException.class, () -> FilterConfig.loadStrict(empty.toFile()));
+    }
+
+    @Test
+    void configIsLoadedFromTheGivenFile() throws IOException {
+        Path config = directory.resolve("spamfilters.json");
+        Files.writeString(config, "{\"spamPatterns\": [\"^Candidate .*\"], \"ignoredLoggers\": []}");
+
+        FilterRules rules = FilterConfig.loadStrict(config.toFile()).compileRules();
+        assertEquals(1, rules.getPatternCount());
+        assertEquals(0, rules.match("x", FilterRules.ANY_LEVEL, null, "Candidate rule"));
+    }
+
+    @Test
+    void leadingContinuationLinesCountForThePreviousChunksLastEvent() {
+        LogAnalyzer.Tally first = new LogAnalyzer.Tally(2, 0);
+        first.events = 1;
+        first.lastSlot = 1;
+        LogAnalyzer.Tally second = new LogAnalyzer.Tally(2, 0);
+        second.events = 1;
+        second.bytes = 300;
+        second.leadingBytes = 100;
+        second.lastSlot = -1;
+        LogAnalyzer.Tally third = new LogAnalyzer.Tally(2, 0);
+        third.leadingBytes = 50;
+
+        first.append(second);
+        first.append(third);
+        // The trace starting the second chunk was suppressed with its message, the third chunk's belongs to a passed event
+        assertEquals(100, first.ruleBytes[1]);
+        assertEquals(100, first.suppressedBytes);
+        assertEquals(-1, first.lastSlot);
+
+        LogAnalyzer.Tally empty = new LogAnalyzer.Tally(2, 0);
+        empty.append(second);
+        assertEquals(100, empty.leadingBytes);
+    }
+}
@@ -0,0 +1,46 @@
+package eu.prismm;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that suggested patterns match the messages they were mined from, the way FilterRules applies them.
+ */
+class TemplateMinerTest {
+
+    @Test
+    void patternMatchesMessagesWithSurroundingWhitespace() {
+        FilterRules rules = rules(TemplateMiner.toPattern(new String[]{"Loaded", "<*>", "chunks"}, false));
+
+        assertTrue(rules.matches("x", "Loaded 42 chunks"));
+        assertTrue(rules.matches("x", "  Loaded 42 chunks"));
+        assertTrue(rules.matches("x", "Loaded 42 chunks \r\n"));
+        assertFalse(rules.matches("x", "Loaded 42 chunks and more"));
+        assertFalse(rules.matches("x", "Unloaded 42 chunks"));
+    }
+
+    @Test
+    void truncatedPatternMatchesAnyRest() {
+        FilterRules rules = rules(TemplateMiner.toPattern(new String[]{"Dump:", "<*>"}, true));
+
+        assertTrue(rules.matches("x", "Dump: a b c\nmore lines"));
+        assertTrue(rules.matches("x", " Dump: a"));
+        assertFalse(rules.matches("x", "No dump: a"));
+    }
+
+    @Test
+    void regexMetacharactersAreEscaped() {
+        FilterRules rules = rules(TemplateMiner.toPattern(new String[]{"[Worker]", "done.", "(1/2)"}, false));
+
+        assertTrue(rules.matches("x", "[Worker] done. (1/2)"));
+        assertFalse(rules.matches("x", "W done! (1/2)"));
+    }
+
+    private static FilterRules rules(String pattern) {
+        return FilterRules.fromSources(List.of(pattern), null);
+    }
+}
@@ -0,0 +1,71 @@
+package eu.prismm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks how TimeSeriesStore replaces files of another layout and hands out the slots of idle series.
+ */
+class TimeSeriesStoreTest {
+    // 2026-01-01 in minutes since the epoch
+    private static final long MINUTE = 29_453_760L;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void fileOfAnotherCapacityIsMovedAside() throws Exception {
+        Path file = directory.resolve("statistics.bin");
+        TimeSeriesStore small = TimeSeriesStore.open(file, 2);
+        small.slot("kept");
+        small.close();
+
+        TimeSeriesStore larger = TimeSeriesStore.open(file, 4);
+        assertEquals(List.of(), larger.getKeys());
+        assertEquals(0, larger.slot("new"));
+        larger.close();
+
+        TimeSeriesStore old = TimeSeriesStore.openExisting(directory.resolve("statistics.bin.old"));
+        assertEquals(List.of("kept"), old.getKeys());
+        old.close();
+    }
+
+    @Test
+    void fullStoreTakesOverSeriesWithoutCounts() throws Exception {
+        Path file = directory.resolve("statistics.bin");
+        TimeSeriesStore store = TimeSeriesStore.open(file, 3);
+        assertEquals(0, store.slot("active"));
+        assertEquals(1, store.slot("idle"));
+        assertEquals(2, store.slot("recent"));
+        store.add(MINUTE, new long[]{5, 0, 0});
+        store.add(MINUTE - 300 * 1440, new long[]{0, 0, 7});
+        // Everything was handed out in this session, so nothing can be taken over
+        assertEquals(-1, store.slot("late"));
+        store.close();
+
+        store = TimeSeriesStore.open(file, 3);
+        assertEquals(0, store.slot("active"));
+        assertEquals(1, store.slot("late"));
+        assertEquals(-1, store.slot("later"));
+        assertEquals(List.of("active", "late", "recent"), store.getKeys());
+        store.add(MINUTE + 1, new long[]{0, 3, 0});
+        store.close();
+
+        store = TimeSeriesStore.openExisting(file);
+        assertEquals(List.of("active", "late", "recent"), store.getKeys());
+        List<TimeSeriesStore.Row> days = store.read(TimeSeriesStore.Tier.DAY);
+        assertEquals(2, days.size());
+        assertArrayEquals(new long[]{0, 0, 7}, days.get(0).counts());
+        assertArrayEquals(new long[]{5, 3, 0}, days.get(1).counts());
+        store.close();
+        assertTrue(Files.notExists(directory.resolve("statistics.bin.old")));
+    }
+}